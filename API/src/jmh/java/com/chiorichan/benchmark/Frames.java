@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Real March frames from the hexcode notes, shared by the benchmarks
+ */
+final class Frames
+{
+	/**
+	 * ~LGIN login detail request, 30 bytes
+	 */
+	static final String LGIN = "01001a0016000000" + "0b0306057e4c47494e0300000000004c9cc10b020202";
+	
+	/**
+	 * ~LGIN with a user name, 40 bytes
+	 */
+	static final String LGIN_USER = "010020001c000000" + "0b0306057e4c47494e030000000000509cc00b02060561646d696e02";
+	
+	/**
+	 * 0x65 answer to ~LGIN carrying the loginParams AssocArray, 118 bytes
+	 */
+	static final String LOGIN_PARAMS = "010072006e000000" + "0b030601650300000000004c9cc10b02060b6c6f67696e506172616d7309" + "0a4173736f6341727261790608" + "2a64656661756c7402061b64656661756c7441757468656e7469636174696f6e4d6574686f640605" + "4d61726368060c7761726e496e61637469766508" + "06042a656e640a";
+	
+	private Frames()
+	{
+		
+	}
+	
+	/**
+	 * @return A direct buffer holding the frame, decode from duplicates so it keeps a reference like the cumulation of the
+	 *         frame decoder does
+	 */
+	static ByteBuf direct( String hex )
+	{
+		try
+		{
+			byte[] bytes = Hex.decodeHex( hex.toCharArray() );
+			return Unpooled.directBuffer( bytes.length ).writeBytes( bytes );
+		}
+		catch ( DecoderException e )
+		{
+			throw new IllegalArgumentException( e );
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chiorichan.ssl.SslEngineProvider;
+
+/**
+ * A full handshake of a DVR with the server certificate, both engines in memory on one thread and without session
+ * resumption. The client is always the JDK engine, the server is the provider under test. The time covers both sides, so
+ * it is an upper bound of the CPU one handshake costs the server, with the JDK provider that is what the handshake
+ * admission in Main is sized from.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class HandshakeBenchmark
+{
+	@Param( {"jdk", "openssl"} )
+	public String provider;
+	
+	private SslEngineProvider server;
+	private SslEngineProvider client;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		server = Tls.serverProvider( provider );
+		client = Tls.clientProvider();
+	}
+	
+	@Benchmark
+	public SSLEngine handshake() throws Exception
+	{
+		SSLEngine serverEngine = server.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 );
+		Tls.handshake( client.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ), serverEngine );
+		return serverEngine;
+	}
+}
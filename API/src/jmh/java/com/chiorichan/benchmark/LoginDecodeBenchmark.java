@@ -0,0 +1,70 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chiorichan.packet.FlatPacketPayload;
+import com.chiorichan.packet.Packet;
+
+/**
+ * Fully decodes the frames of a ~LGIN exchange with the map based parser, which resolves every key and the AssocArray
+ * marker. Run with {@code -prof gc} for the allocations per frame.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LoginDecodeBenchmark
+{
+	@Param( {"LGIN_USER", "LOGIN_PARAMS"} )
+	public String frame;
+	
+	private ByteBuf buf;
+	
+	@Setup
+	public void setup()
+	{
+		FlatPacketPayload.setEnabled( false );
+		buf = Frames.direct( "LGIN_USER".equals( frame ) ? Frames.LGIN_USER : Frames.LOGIN_PARAMS );
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		buf.release();
+		FlatPacketPayload.setEnabled( true );
+	}
+	
+	@Benchmark
+	public Object decode() throws Exception
+	{
+		Packet packet = Packet.decodeLazy( buf.duplicate() );
+		Object payload = packet.getPayload();
+		packet.release();
+		return payload;
+	}
+}
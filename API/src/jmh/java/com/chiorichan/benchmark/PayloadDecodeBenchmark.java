@@ -0,0 +1,81 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chiorichan.packet.FlatPacketPayload;
+import com.chiorichan.packet.Packet;
+import com.chiorichan.packet.PacketPayload;
+
+/**
+ * Decodes the loginParams answer and reads a key of its nested AssocArray, with the flat payload and with the map based
+ * one. Run with {@code -prof gc} for the allocations per frame.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PayloadDecodeBenchmark
+{
+	@Param( {"flat", "map"} )
+	public String payload;
+	
+	private ByteBuf frame;
+	
+	@Setup
+	public void setup()
+	{
+		FlatPacketPayload.setEnabled( "flat".equals( payload ) );
+		frame = Frames.direct( Frames.LOGIN_PARAMS );
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		frame.release();
+		FlatPacketPayload.setEnabled( true );
+	}
+	
+	@Benchmark
+	public Object decodeNested() throws Exception
+	{
+		Packet packet = Packet.decodeLazy( frame.duplicate() );
+		PacketPayload loginParams = ( ( PacketPayload ) packet.getPayload() ).getValue( "*0" ).getPayload();
+		Object value = loginParams.getString( "*1" );
+		packet.release();
+		return value;
+	}
+	
+	@Benchmark
+	public Object relay() throws Exception
+	{
+		Packet packet = Packet.decodeLazy( frame.duplicate() );
+		boolean relayable = packet.isRelayable();
+		packet.release();
+		return relayable;
+	}
+}
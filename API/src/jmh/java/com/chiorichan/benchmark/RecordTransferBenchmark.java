@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moves one record each way over an established session, the server engine from the provider under test wraps what the
+ * JDK client unwraps and unwraps what it wraps. The sizes are a ~LGIN answer and a full record of stream data.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RecordTransferBenchmark
+{
+	@Param( {"jdk", "openssl"} )
+	public String provider;
+	
+	@Param( {"118", "16384"} )
+	public int size;
+	
+	private SSLEngine server;
+	private SSLEngine client;
+	private ByteBuffer plaintext;
+	private ByteBuffer net;
+	private ByteBuffer app;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		server = Tls.serverProvider( provider ).newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 );
+		client = Tls.clientProvider().newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 );
+		Tls.handshake( client, server );
+		
+		plaintext = ByteBuffer.allocateDirect( size );
+		net = ByteBuffer.allocateDirect( server.getSession().getPacketBufferSize() );
+		app = ByteBuffer.allocateDirect( server.getSession().getApplicationBufferSize() );
+	}
+	
+	private void transfer( SSLEngine from, SSLEngine to ) throws Exception
+	{
+		plaintext.clear();
+		net.clear();
+		from.wrap( plaintext, net );
+		
+		net.flip();
+		app.clear();
+		to.unwrap( net, app );
+	}
+	
+	@Benchmark
+	public int roundTrip() throws Exception
+	{
+		transfer( server, client );
+		transfer( client, server );
+		return app.position();
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chiorichan.NetClient;
+
+/**
+ * Accepts DVR connections on a single worker loop while the upstream stand-in takes its time to answer the preamble.
+ * Every accepted connection opens an upstream leg and then writes one byte back, the benchmark measures how long a DVR
+ * waits for that byte.
+ * <p>
+ * In async mode the leg is connected on the loop of the accepted channel and nobody waits for it, like Handler.start
+ * does now. In blocking mode the loop waits until the leg is ready, as it did while connect() was synchronous, so every
+ * DVR queues behind the upstream answers of the ones before it.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Threads( 4 )
+@Fork( 1 )
+public class SlowUpstreamAcceptBenchmark
+{
+	/**
+	 * Opens the upstream leg of every accepted DVR and then answers it with one byte
+	 */
+	@Sharable
+	private class Front extends ChannelHandlerAdapter
+	{
+		private final boolean async;
+		
+		Front( boolean async )
+		{
+			this.async = async;
+		}
+		
+		@Override
+		public void channelActive( ChannelHandlerContext ctx )
+		{
+			final NetClient client;
+			
+			if ( async )
+			{
+				client = new NetClient( "127.0.0.1", upstreamPort, "/", false, null, ctx.channel().eventLoop() );
+				client.connect();
+			}
+			else
+			{
+				// Another loop, waiting on our own would never finish
+				client = new NetClient( "127.0.0.1", upstreamPort, "/", false, null, legGroup.next() );
+				client.connect().awaitUninterruptibly();
+			}
+			
+			ctx.channel().closeFuture().addListener( new ChannelFutureListener()
+			{
+				@Override
+				public void operationComplete( ChannelFuture future )
+				{
+					client.disconnect();
+				}
+			} );
+			
+			ctx.writeAndFlush( Unpooled.wrappedBuffer( new byte[] {0x01} ) );
+		}
+	}
+	
+	/**
+	 * Answers the preamble late
+	 */
+	@Sharable
+	private class SlowUpstream extends ChannelHandlerAdapter
+	{
+		@Override
+		public void channelRead( final ChannelHandlerContext ctx, Object msg )
+		{
+			ReferenceCountUtil.release( msg );
+			
+			ctx.executor().schedule( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ctx.writeAndFlush( Unpooled.wrappedBuffer( RESPONSE ) );
+				}
+			}, upstreamDelayMillis, TimeUnit.MILLISECONDS );
+		}
+	}
+	
+	private static final byte[] RESPONSE = "HTTP/1.0 200 OK\r\n\r\n".getBytes( CharsetUtil.US_ASCII );
+	
+	@Param( {"async", "blocking"} )
+	public String connect;
+	
+	@Param( {"50"} )
+	public int upstreamDelayMillis;
+	
+	private EventLoopGroup upstreamGroup;
+	private EventLoopGroup frontGroup;
+	private EventLoopGroup legGroup;
+	private Channel upstream;
+	private Channel front;
+	private int upstreamPort;
+	private int frontPort;
+	
+	@Setup
+	public void setup()
+	{
+		// LoggingHandler in the client pipeline would log every event
+		Logger.getLogger( "" ).setLevel( Level.WARNING );
+		
+		upstreamGroup = new NioEventLoopGroup( 1 );
+		upstream = new ServerBootstrap().group( upstreamGroup ).channel( NioServerSocketChannel.class ).childHandler( new SlowUpstream() ).bind( "127.0.0.1", 0 ).syncUninterruptibly().channel();
+		upstreamPort = ( ( InetSocketAddress ) upstream.localAddress() ).getPort();
+		
+		legGroup = new NioEventLoopGroup( 1 );
+		frontGroup = new NioEventLoopGroup( 1 );
+		front = new ServerBootstrap().group( frontGroup ).channel( NioServerSocketChannel.class ).childHandler( new Front( "async".equals( connect ) ) ).bind( "127.0.0.1", 0 ).syncUninterruptibly().channel();
+		frontPort = ( ( InetSocketAddress ) front.localAddress() ).getPort();
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		front.close().syncUninterruptibly();
+		upstream.close().syncUninterruptibly();
+		frontGroup.shutdownGracefully().syncUninterruptibly();
+		legGroup.shutdownGracefully().syncUninterruptibly();
+		upstreamGroup.shutdownGracefully().syncUninterruptibly();
+	}
+	
+	@Benchmark
+	public int accept() throws Exception
+	{
+		Socket socket = new Socket( "127.0.0.1", frontPort );
+		
+		try
+		{
+			InputStream in = socket.getInputStream();
+			return in.read();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+}
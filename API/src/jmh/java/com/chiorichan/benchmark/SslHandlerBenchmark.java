@@ -0,0 +1,90 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.chiorichan.ssl.MarchSslHandler;
+
+/**
+ * Sends March frames from a DVR through two {@link MarchSslHandler}s on embedded channels, the whole handler path from
+ * the write to the decrypted read without a socket. A batch of frames is written before one flush, like the relay does
+ * with a read of several frames, so the larger batches show what coalescing them into one record saves.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SslHandlerBenchmark
+{
+	@Param( {"LGIN", "LOGIN_PARAMS"} )
+	public String frame;
+	
+	@Param( {"1", "8"} )
+	public int batch;
+	
+	private ByteBuf buf;
+	private EmbeddedChannel client;
+	private EmbeddedChannel server;
+	
+	@Setup
+	public void setup() throws Exception
+	{
+		buf = Frames.direct( "LGIN".equals( frame ) ? Frames.LGIN : Frames.LOGIN_PARAMS );
+		
+		server = new EmbeddedChannel( new MarchSslHandler( Tls.serverProvider( "jdk" ).newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ) ) );
+		client = new EmbeddedChannel( new MarchSslHandler( Tls.clientProvider().newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ) ) );
+		Tls.pump( client, server );
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		client.finish();
+		server.finish();
+		buf.release();
+	}
+	
+	@Benchmark
+	public int send()
+	{
+		for ( int i = 0; i < batch; i++ )
+			client.write( buf.duplicate().retain() );
+		client.flush();
+		
+		Tls.pump( client, server );
+		
+		int read = 0;
+		for ( Object msg = server.readInbound(); msg != null; msg = server.readInbound() )
+		{
+			read += ( ( ByteBuf ) msg ).readableBytes();
+			( ( ByteBuf ) msg ).release();
+		}
+		return read;
+	}
+}
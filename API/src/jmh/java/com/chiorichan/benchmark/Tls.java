@@ -0,0 +1,206 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.benchmark;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import com.chiorichan.ssl.JdkSslEngineProvider;
+import com.chiorichan.ssl.OpenSslEngineProvider;
+import com.chiorichan.ssl.SslContextFactory;
+import com.chiorichan.ssl.SslEngineProvider;
+import com.chiorichan.ssl.TlsProfile;
+
+/**
+ * The engine providers of the listeners with their certificate, a 2048 bit RSA key, and an in memory handshake between
+ * two engines, shared by the TLS benchmarks
+ */
+final class Tls
+{
+	private static final String PASSWORD = "abc123";
+	
+	private Tls()
+	{
+		
+	}
+	
+	/**
+	 * @return A client provider like the DVRs, with the MODERN profile as the JDK no longer enables the LEGACY suites
+	 */
+	static SslEngineProvider clientProvider()
+	{
+		return new JdkSslEngineProvider( SslContextFactory.getClientContext(), true, TlsProfile.MODERN );
+	}
+	
+	/**
+	 * Copies a resource to a temporary file, OpenSSL only loads certificates from files
+	 */
+	private static File file( String resource ) throws IOException
+	{
+		File file = File.createTempFile( "benchmark", ".pem" );
+		file.deleteOnExit();
+		
+		InputStream in = Tls.class.getResourceAsStream( resource );
+		OutputStream out = new FileOutputStream( file );
+		
+		try
+		{
+			byte[] buf = new byte[4096];
+			for ( int n = in.read( buf ); n > 0; n = in.read( buf ) )
+				out.write( buf, 0, n );
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+		
+		return file;
+	}
+	
+	/**
+	 * Drives both engines until neither is handshaking, delegated tasks run inline
+	 */
+	static void handshake( SSLEngine client, SSLEngine server ) throws SSLException
+	{
+		int size = Math.max( client.getSession().getPacketBufferSize(), server.getSession().getPacketBufferSize() );
+		ByteBuffer toServer = ByteBuffer.allocate( size );
+		ByteBuffer toClient = ByteBuffer.allocate( size );
+		ByteBuffer app = ByteBuffer.allocate( Math.max( client.getSession().getApplicationBufferSize(), server.getSession().getApplicationBufferSize() ) );
+		
+		client.beginHandshake();
+		server.beginHandshake();
+		
+		for ( int i = 0; i < 100; i++ )
+		{
+			step( client, toClient, toServer, app );
+			step( server, toServer, toClient, app );
+			
+			if ( !isHandshaking( client ) && !isHandshaking( server ) )
+				return;
+		}
+		
+		throw new IllegalStateException( "The handshake did not finish" );
+	}
+	
+	/**
+	 * Hands what each channel wrote to the other until neither writes anything
+	 */
+	static void pump( EmbeddedChannel a, EmbeddedChannel b )
+	{
+		for ( boolean moved = true; moved; )
+			moved = transfer( a, b ) | transfer( b, a );
+	}
+	
+	private static boolean isHandshaking( SSLEngine engine )
+	{
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+	
+	/**
+	 * @param provider
+	 *            jdk or openssl, the latter fails unless netty-tcnative finds the system's OpenSSL
+	 */
+	static SslEngineProvider serverProvider( String provider ) throws IOException
+	{
+		if ( "openssl".equals( provider ) )
+			return new OpenSslEngineProvider( file( "/com/chiorichan/ssl/server.crt.pem" ), file( "/com/chiorichan/ssl/server.key.pem" ), null, TlsProfile.MODERN, 0, 0 );
+		
+		return new JdkSslEngineProvider( serverContext(), false, TlsProfile.MODERN );
+	}
+	
+	static SSLContext serverContext()
+	{
+		try
+		{
+			InputStream in = Tls.class.getResourceAsStream( "/com/chiorichan/ssl/server.p12" );
+			KeyStore ks = KeyStore.getInstance( "PKCS12" );
+			
+			try
+			{
+				ks.load( in, PASSWORD.toCharArray() );
+			}
+			finally
+			{
+				in.close();
+			}
+			
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance( "SunX509" );
+			kmf.init( ks, PASSWORD.toCharArray() );
+			
+			SSLContext context = SSLContext.getInstance( "TLS" );
+			context.init( kmf.getKeyManagers(), null, null );
+			return context;
+		}
+		catch ( Exception e )
+		{
+			throw new IllegalStateException( "Failed to load the server certificate", e );
+		}
+	}
+	
+	private static boolean transfer( EmbeddedChannel from, EmbeddedChannel to )
+	{
+		boolean moved = false;
+		
+		for ( Object msg = from.readOutbound(); msg != null; msg = from.readOutbound() )
+		{
+			to.writeInbound( msg );
+			moved = true;
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * Runs what the engine asks for next, the records it writes go to {@code out} and the ones it reads come from
+	 * {@code in}
+	 */
+	private static void step( SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app ) throws SSLException
+	{
+		for ( ;; )
+			switch ( engine.getHandshakeStatus() )
+			{
+				case NEED_TASK:
+					for ( Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask() )
+						task.run();
+					break;
+				case NEED_WRAP:
+					// Nothing to write until the peer had its turn
+					if ( engine.wrap( ByteBuffer.allocate( 0 ), out ).bytesProduced() == 0 )
+						return;
+					break;
+				case NEED_UNWRAP:
+					in.flip();
+					int consumed = engine.unwrap( in, app ).bytesConsumed();
+					in.compact();
+					app.clear();
+					
+					// The peer has to write more first
+					if ( consumed == 0 )
+						return;
+					break;
+				default:
+					return;
+			}
+	}
+}
@@ -11,32 +11,46 @@ package com.chiorichan;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.DefaultHttpResponse;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
 
 import javax.net.ssl.SSLEngine;
 
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.lang3.Validate;
+
 import com.chiorichan.packet.MessageBus;
 import com.chiorichan.packet.MessageStream;
 import com.chiorichan.packet.Packet;
+import com.chiorichan.packet.PacketEncoder;
 import com.chiorichan.packet.PacketException;
+import com.chiorichan.packet.PacketFrameDecoder;
+import com.chiorichan.ssl.MarchSslHandler;
 import com.chiorichan.ssl.SslContextFactory;
+import com.chiorichan.ssl.SslEngineProvider;
+import com.chiorichan.util.NetMetrics;
+import com.google.common.collect.Lists;
 
 /**
  * Used to connect to an ESM Server or DVR Box
@@ -47,17 +61,41 @@ public class NetClient
 	{
 		private ChannelHandlerContext context;
 		private SSLEngine engine;
+		private long engineCreatedAt;
 		
 		@Override
 		public void channelActive( ChannelHandlerContext ctx )
 		{
-			bus.setStream( new MessageStream( ctx ) );
+			stream = new MessageStream( ctx );
+			if ( bus != null )
+				bus.setStream( stream );
 		}
 		
 		@Override
 		public void channelInactive( ChannelHandlerContext ctx )
 		{
-			bus.stopPinger();
+			if ( bus != null )
+				bus.close();
+			
+			for ( ByteBuf buf : parked )
+				buf.release();
+			parked.clear();
+		}
+		
+		@Override
+		public void channelReadComplete( ChannelHandlerContext ctx ) throws Exception
+		{
+			if ( bus != null )
+				bus.endRead();
+			ctx.fireChannelReadComplete();
+		}
+		
+		@Override
+		public void channelWritabilityChanged( ChannelHandlerContext ctx ) throws Exception
+		{
+			if ( bus != null )
+				bus.writabilityChanged( ctx.channel().isWritable() );
+			ctx.fireChannelWritabilityChanged();
 		}
 		
 		@Override
@@ -71,42 +109,35 @@ public class NetClient
 				
 				if ( ssl )
 				{
-					engine = SslContextFactory.getClientContext().createSSLEngine();
-					engine.setUseClientMode( true );
-					engine.setEnabledProtocols( new String[] {"TLSv1"} );
-					engine.setEnabledCipherSuites( new String[] {"SSL_RSA_WITH_RC4_128_SHA", "SSL_RSA_WITH_RC4_128_MD5"} );
+					// Keyed by the peer so the session cache can resume on reconnect
+					engineCreatedAt = System.currentTimeMillis();
+					engine = sslProvider.newEngine( ctx.alloc(), addr, port );
 					
-					ctx.pipeline().addFirst( "ssl", new SslHandler( engine ) );
+					if ( bus != null )
+						bus.handshaking();
+					ctx.pipeline().addFirst( "ssl", new MarchSslHandler( engine ) );
 				}
 				else
 					start( ctx );
 			}
-			else if ( obj instanceof HttpContent )
-				try
-				{
-					System.out.println( "From Server Message Received: " + obj );
-					
-					HttpContent msg = ( HttpContent ) obj;
-					ByteBuf buf = msg.content();
-					
-					if ( buf.readableBytes() < 1 )
-					{
-						System.out.println( "WARNING: Received an empty message!" );
-						return;
-					}
-					
-					Packet[] rcvds = Packet.decode( buf );
-					
-					if ( rcvds.length > 0 )
-						bus.handle( rcvds );
-					else
-						bus.incoming( buf );
-				}
-				catch ( PacketException e )
+			else if ( obj instanceof ByteBuf )
+			{
+				System.out.println( "From Server Message Received: " + obj );
+				
+				ByteBuf buf = ( ByteBuf ) obj;
+				
+				if ( buf.readableBytes() < 1 )
 				{
-					System.out.println( e.hexDump() );
-					throw e;
+					System.out.println( "WARNING: Received an empty message!" );
+					return;
 				}
+				
+				// A pooled leg keeps what the server sends until a bus claims it
+				if ( bus == null )
+					parked.add( buf.retain() );
+				else
+					dispatch( buf );
+			}
 			else
 				System.out.println( "Received an unknown packet type: " + obj );
 		}
@@ -118,10 +149,14 @@ public class NetClient
 			{
 				SslHandshakeCompletionEvent event = ( SslHandshakeCompletionEvent ) evt;
 				if ( event.isSuccess() )
+				{
+					NetMetrics.handshakeCompleted( engine, engineCreatedAt );
 					start( ctx );
+				}
 				else
 				{
 					System.err.println( "SSL Handshake Failed!" );
+					ready.tryFailure( event.cause() );
 					ctx.close();
 				}
 			}
@@ -138,79 +173,271 @@ public class NetClient
 			p.addLast( new LoggingHandler( LogLevel.INFO ) );
 			
 			p.addLast( "codec", new Codec() );
+			p.addLast( "frameDecoder", new PacketFrameDecoder() );
+			p.addLast( "packetEncoder", new PacketEncoder() );
 			p.addLast( "handler", new NetHandler() );
 		}
 	}
 	
-	private EventLoopGroup group = new NioEventLoopGroup();
-	private Thread process;
+	private final Transport transport;
+	private final EventLoopGroup group;
+	private final boolean privateGroup;
+	private Channel channel = null;
+	private MessageStream stream = null;
+	private final List<ByteBuf> parked = Lists.newArrayList();
+	private Promise<Channel> ready = null;
+	private Promise<Channel> opened = null;
+	private volatile boolean disconnected = false;
+	private int lowWaterMark = 0;
+	private int highWaterMark = 0;
+	private SslEngineProvider sslProvider = SslContextFactory.getClientProvider();
 	
 	private final String addr;
 	private final int port;
-	private final String url;
+	private String url;
 	private final boolean ssl;
-	private final MessageBus bus;
+	private MessageBus bus;
 	
 	public NetClient( String addr, int port, String url, boolean ssl, MessageBus bus )
+	{
+		this( addr, port, url, ssl, bus, null );
+	}
+	
+	/**
+	 * @param url
+	 *            The url sent in the preamble, null for a pooled leg that is given one later with {@link #request(String)}
+	 * @param bus
+	 *            The bus of this leg, null for a pooled leg that is given one later with {@link #attach(MessageBus)}
+	 * @param loop
+	 *            The event loop of the inbound channel, so both legs of the session share one thread.
+	 *            When null the client runs on a private group that is shutdown once the connection closes.
+	 */
+	public NetClient( String addr, int port, String url, boolean ssl, MessageBus bus, EventLoop loop )
 	{
 		this.addr = addr;
 		this.port = port;
 		this.url = url;
 		this.ssl = ssl;
 		this.bus = bus;
+		
+		privateGroup = loop == null;
+		transport = privateGroup ? Transport.best() : Transport.of( loop );
+		group = privateGroup ? transport.newGroup( 0 ) : loop;
 	}
 	
-	public void connect()
+	/**
+	 * Starts connecting without blocking, the preamble and TLS handshake are driven by listeners.
+	 * 
+	 * @return A future completed with the channel once the leg is ready to carry packets, or failed if it never gets there
+	 */
+	public Future<Channel> connect()
 	{
-		try
+		Validate.validState( url != null, "A leg without an url is connected with open()" );
+		open();
+		return ready;
+	}
+	
+	/**
+	 * Starts connecting without blocking like {@link #connect()}, but the preamble is only sent if the leg has an url. A
+	 * pooled leg is opened without one, as the url belongs to the DVR that claims it.
+	 * 
+	 * @return A future completed with the channel once the connection is made
+	 */
+	public Future<Channel> open()
+	{
+		Validate.validState( ready == null, "The leg was already connected" );
+		
+		ready = new DefaultPromise<Channel>( group.next() );
+		opened = new DefaultPromise<Channel>( group.next() );
+		
+		Bootstrap b = new Bootstrap();
+		b.group( group ).channel( transport.channel() ).handler( new NetInitializer() );
+		
+		if ( highWaterMark > 0 )
 		{
-			Bootstrap b = new Bootstrap();
-			b.group( group ).channel( NioSocketChannel.class ).handler( new NetInitializer() );
-			
-			final Channel channel = b.connect( addr, port ).sync().channel();
-			
-			HttpRequest request = new DefaultHttpRequest( HttpVersion.HTTP_1_0, HttpMethod.GET, url );
-			
-			channel.writeAndFlush( request ).sync();
-			
-			process = new Thread()
+			b.option( ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark );
+			b.option( ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark );
+		}
+		
+		// Never block here, we might be running on the very loop the connection is made on
+		b.connect( addr, port ).addListener( new ChannelFutureListener()
+		{
+			@Override
+			public void operationComplete( ChannelFuture future )
 			{
-				@Override
-				public void run()
+				if ( !future.isSuccess() )
 				{
-					try
-					{
-						channel.closeFuture().sync();
-					}
-					catch ( InterruptedException e )
-					{
-						e.printStackTrace();
-					}
-					finally
+					opened.tryFailure( future.cause() );
+					ready.tryFailure( future.cause() );
+					shutdown();
+					return;
+				}
+				
+				channel = future.channel();
+				channel.closeFuture().addListener( new ChannelFutureListener()
+				{
+					@Override
+					public void operationComplete( ChannelFuture future )
 					{
-						group.shutdownGracefully();
+						opened.tryFailure( new ClosedChannelException() );
+						ready.tryFailure( new ClosedChannelException() );
+						shutdown();
 					}
+				} );
+				
+				if ( disconnected )
+				{
+					channel.close();
+					return;
 				}
-			};
+				
+				if ( url != null )
+					sendPreamble();
+				opened.trySuccess( channel );
+			}
+		} );
+		
+		return opened;
+	}
+	
+	/**
+	 * Sends the preamble on a leg that was opened without an url, must be called on the event loop of the leg.
+	 * 
+	 * @return A future completed with the channel once the leg is ready to carry packets, or failed if it never gets there
+	 */
+	public Future<Channel> request( String url )
+	{
+		Validate.notNull( url );
+		Validate.validState( this.url == null, "The preamble was already sent" );
+		Validate.validState( opened != null && opened.isSuccess(), "The leg is not connected" );
+		
+		this.url = url;
+		sendPreamble();
+		return ready;
+	}
+	
+	private void sendPreamble()
+	{
+		channel.writeAndFlush( new DefaultHttpRequest( HttpVersion.HTTP_1_0, HttpMethod.GET, url ) ).addListener( ChannelFutureListener.CLOSE_ON_FAILURE );
+	}
+	
+	/**
+	 * Gives a pooled leg its bus, must be called on the event loop of the leg. If the leg is already past the preamble and
+	 * TLS handshake the bus is started right away and what the server sent meanwhile is handed to it.
+	 */
+	public void attach( MessageBus bus )
+	{
+		Validate.notNull( bus );
+		Validate.validState( this.bus == null, "The leg already has a bus" );
+		
+		this.bus = bus;
+		
+		if ( stream != null )
+			bus.setStream( stream );
+		
+		if ( ready != null && ready.isSuccess() )
+		{
+			bus.start0();
+			bus.startPinger();
+			
+			try
+			{
+				for ( ByteBuf buf : parked )
+					dispatch( buf );
+				bus.endRead();
+			}
+			catch ( Exception e )
+			{
+				e.printStackTrace();
+				channel.close();
+			}
+			finally
+			{
+				for ( ByteBuf buf : parked )
+					buf.release();
+				parked.clear();
+			}
+		}
+	}
+	
+	public void disconnect()
+	{
+		disconnected = true;
+		if ( channel != null )
+			channel.close();
+	}
+	
+	private void dispatch( ByteBuf buf ) throws PacketException, DecoderException
+	{
+		try
+		{
+			bus.beginRead();
 			
-			process.setName( "NetClient Connection" );
-			process.start();
+			// PacketFrameDecoder hands us either exactly one whole frame or a run of raw data
+			if ( PacketFrameDecoder.isFrame( buf ) )
+				bus.handle( Packet.decodeLazy( buf ) );
+			else
+			{
+				bus.markActivity();
+				bus.incoming( buf.retain() );
+			}
 		}
-		catch ( InterruptedException e )
+		catch ( PacketException e )
 		{
-			e.printStackTrace();
-			group.shutdownGracefully();
+			System.out.println( e.hexDump() );
+			throw e;
 		}
 	}
 	
-	public void disconnect()
+	/**
+	 * @return true if the connection is open
+	 */
+	public boolean isActive()
 	{
+		return channel != null && channel.isActive();
+	}
+	
+	/**
+	 * Sets the provider of the engine of this leg, by default {@link SslContextFactory#getClientProvider()}
+	 */
+	public void setSslProvider( SslEngineProvider sslProvider )
+	{
+		Validate.notNull( sslProvider );
+		this.sslProvider = sslProvider;
+	}
+	
+	/**
+	 * Sets the write buffer watermarks of the connection, by default Netty's are used. Also applied to a connection that is
+	 * already open, such as a pooled leg.
+	 */
+	public void setWriteBufferWaterMarks( int lowWaterMark, int highWaterMark )
+	{
+		Validate.isTrue( lowWaterMark > 0 && lowWaterMark <= highWaterMark, "The low watermark must be positive and no more than the high watermark" );
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
 		
+		if ( channel != null )
+		{
+			// Raise the high watermark first so the low one is never above it
+			channel.config().setWriteBufferHighWaterMark( Math.max( highWaterMark, channel.config().getWriteBufferHighWaterMark() ) );
+			channel.config().setWriteBufferLowWaterMark( lowWaterMark );
+			channel.config().setWriteBufferHighWaterMark( highWaterMark );
+		}
+	}
+	
+	private void shutdown()
+	{
+		if ( privateGroup )
+			group.shutdownGracefully();
 	}
 	
 	public void start( ChannelHandlerContext ctx )
 	{
-		bus.start0();
-		bus.startPinger();
+		if ( bus != null )
+		{
+			bus.start0();
+			bus.startPinger();
+		}
+		ready.trySuccess( ctx.channel() );
 	}
 }
@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * The Netty transport the channels and event loops are created with.
+ * <p>
+ * The native epoll transport is used on Linux when it's available, it supports {@code SO_REUSEPORT} so several acceptor
+ * channels can be bound to the same port and accept in parallel. Everywhere else we fall back to NIO.
+ * <p>
+ * The native library for Linux x86_64 ships inside netty-all, so no other dependency is needed. Start with
+ * {@code -Dgreenetree.epoll=false} to stay on NIO.
+ */
+public enum Transport
+{
+	NIO, EPOLL;
+	
+	/**
+	 * @return EPOLL if the native transport is available, otherwise NIO
+	 */
+	public static Transport best()
+	{
+		return epollUnavailabilityCause() == null ? EPOLL : NIO;
+	}
+	
+	/**
+	 * @return Why {@link #best()} does not pick EPOLL, null if it does
+	 */
+	public static String epollUnavailabilityCause()
+	{
+		if ( !Boolean.parseBoolean( System.getProperty( "greenetree.epoll", "true" ) ) )
+			return "Disabled with -Dgreenetree.epoll=false";
+		
+		if ( !Epoll.isAvailable() )
+			return String.valueOf( Epoll.unavailabilityCause() );
+		
+		// The library loads fine without it, but every EpollEventLoop allocates its event array through sun.misc.Unsafe
+		if ( !PlatformDependent.hasUnsafe() )
+			return "sun.misc.Unsafe is not accessible";
+		
+		return null;
+	}
+	
+	/**
+	 * @return The transport the event loop belongs to, so channels registered with it use the matching channel class
+	 */
+	public static Transport of( EventLoop loop )
+	{
+		return loop.parent() instanceof EpollEventLoopGroup ? EPOLL : NIO;
+	}
+	
+	public Class<? extends SocketChannel> channel()
+	{
+		return this == EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+	}
+	
+	/**
+	 * @param threads
+	 *            The number of threads, 0 for Netty's default of twice the cores
+	 */
+	public EventLoopGroup newGroup( int threads )
+	{
+		return this == EPOLL ? new EpollEventLoopGroup( threads ) : new NioEventLoopGroup( threads );
+	}
+	
+	/**
+	 * Enables {@code SO_REUSEPORT} on the bootstrap, does nothing if the transport lacks it
+	 */
+	public void reusePort( ServerBootstrap b )
+	{
+		if ( this == EPOLL )
+			b.option( EpollChannelOption.SO_REUSEPORT, true );
+	}
+	
+	public Class<? extends ServerChannel> serverChannel()
+	{
+		return this == EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+	}
+	
+	public boolean supportsReusePort()
+	{
+		return this == EPOLL;
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+
+import com.chiorichan.packet.MessageBus;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps connected upstream legs to the ESM server, so a DVR that connects can claim one instead of waiting on a cold TCP
+ * connect. The preamble carries the url of the DVR, so pooled legs are opened without it and the claimer sends it with
+ * {@link NetClient#request(String)}; the TLS handshake follows the answer to the preamble and is not pooled either.
+ * <p>
+ * Pooling is off until enabled with {@link #setDefaults(int, int, long, long, TimeUnit)}. There is one pool per event loop
+ * and upstream, its legs run on that loop so a claimed leg shares the thread of the DVR leg. Every pool is confined to its
+ * loop, {@link #get(EventLoop, String, int, boolean)} and {@link #claim()} must be called there. Once a second the pool
+ * drops legs that closed or sat idle longer than the max idle age, then opens up to the refill rate of new legs until it's
+ * back at its target size. A pool that goes unclaimed for the retire age closes its legs and is removed.
+ * <p>
+ * While the upstream is down the pool backs off: after a failed connect it skips refills for a second, doubling with
+ * every further failure up to a minute, and then probes with a single leg until a connect succeeds again.
+ */
+public class UpstreamPool
+{
+	private static class Entry
+	{
+		final NetClient client;
+		final long openedAt;
+		
+		Entry( NetClient client, long openedAt )
+		{
+			this.client = client;
+			this.openedAt = openedAt;
+		}
+	}
+	
+	private static final long MIN_BACKOFF = TimeUnit.SECONDS.toNanos( 1 );
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos( 1 );
+	
+	private static final ConcurrentMap<List<Object>, UpstreamPool> pools = Maps.newConcurrentMap();
+	
+	private static volatile int defaultTargetSize = 0;
+	private static volatile int defaultRefillRate = 4;
+	private static volatile long defaultMaxIdle = TimeUnit.SECONDS.toNanos( 30 );
+	private static volatile long defaultRetireAfter = TimeUnit.MINUTES.toNanos( 5 );
+	
+	private final List<Object> key;
+	private final EventLoop loop;
+	private final String addr;
+	private final int port;
+	private final boolean ssl;
+	
+	private final Deque<Entry> idle = new ArrayDeque<Entry>();
+	private int pending = 0;
+	private long lastClaimAt = System.nanoTime();
+	private ScheduledFuture<?> refillFuture = null;
+	private boolean retired = false;
+	private int failures = 0;
+	private long backoffUntil = 0;
+	
+	private volatile int targetSize = defaultTargetSize;
+	private volatile int refillRate = defaultRefillRate;
+	private volatile long maxIdle = defaultMaxIdle;
+	private volatile long retireAfter = defaultRetireAfter;
+	
+	private UpstreamPool( List<Object> key, EventLoop loop, String addr, int port, boolean ssl )
+	{
+		this.key = key;
+		this.loop = loop;
+		this.addr = addr;
+		this.port = port;
+		this.ssl = ssl;
+	}
+	
+	/**
+	 * @return The pool of the event loop for this upstream, created and started filling on first use, or null if pooling is
+	 *         disabled
+	 */
+	public static UpstreamPool get( EventLoop loop, String addr, int port, boolean ssl )
+	{
+		if ( defaultTargetSize == 0 )
+			return null;
+		
+		List<Object> key = Arrays.<Object> asList( loop, addr, port, ssl );
+		UpstreamPool pool = pools.get( key );
+		
+		if ( pool == null )
+		{
+			pool = new UpstreamPool( key, loop, addr, port, ssl );
+			UpstreamPool existing = pools.putIfAbsent( key, pool );
+			if ( existing != null )
+				return existing;
+			pool.start();
+		}
+		
+		return pool;
+	}
+	
+	/**
+	 * Sets the configuration of pools created from now on, pools that exist keep theirs
+	 *
+	 * @param targetSize
+	 *            The number of connected legs each pool keeps, 0 disables pooling which is the default
+	 * @param refillRate
+	 *            The most legs a pool opens per second
+	 * @param maxIdle
+	 *            How long a connected leg is kept before it's closed unused
+	 * @param retireAfter
+	 *            How long a pool goes without a claim before it closes its legs and is removed
+	 */
+	public static void setDefaults( int targetSize, int refillRate, long maxIdle, long retireAfter, TimeUnit unit )
+	{
+		Validate.isTrue( targetSize >= 0, "The target size can't be negative" );
+		Validate.isTrue( refillRate > 0, "The refill rate must be positive" );
+		Validate.isTrue( maxIdle > 0, "The max idle age must be positive" );
+		Validate.isTrue( retireAfter > 0, "The retire age must be positive" );
+		
+		defaultTargetSize = targetSize;
+		defaultRefillRate = refillRate;
+		defaultMaxIdle = unit.toNanos( maxIdle );
+		defaultRetireAfter = unit.toNanos( retireAfter );
+	}
+	
+	/**
+	 * Takes the most recently connected leg out of the pool, the caller gives it a bus with
+	 * {@link NetClient#attach(MessageBus)} and then sends the preamble with {@link NetClient#request(String)}
+	 *
+	 * @return The leg, or null if none is connected and the caller has to connect a new one
+	 */
+	public NetClient claim()
+	{
+		lastClaimAt = System.nanoTime();
+		evict();
+		
+		Entry entry = idle.pollLast();
+		return entry == null ? null : entry.client;
+	}
+	
+	/**
+	 * Closes the legs that closed on their own or sat idle too long
+	 */
+	private void evict()
+	{
+		long now = System.nanoTime();
+		
+		for ( Iterator<Entry> i = idle.iterator(); i.hasNext(); )
+		{
+			Entry entry = i.next();
+			if ( !entry.client.isActive() || now - entry.openedAt > maxIdle )
+			{
+				entry.client.disconnect();
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * @return The connects that failed since the last one that succeeded
+	 */
+	public int getFailures()
+	{
+		return failures;
+	}
+	
+	public int getIdle()
+	{
+		return idle.size();
+	}
+	
+	public long getMaxIdle( TimeUnit unit )
+	{
+		return unit.convert( maxIdle, TimeUnit.NANOSECONDS );
+	}
+	
+	public long getRetireAfter( TimeUnit unit )
+	{
+		return unit.convert( retireAfter, TimeUnit.NANOSECONDS );
+	}
+	
+	public int getRefillRate()
+	{
+		return refillRate;
+	}
+	
+	public int getTargetSize()
+	{
+		return targetSize;
+	}
+	
+	private void open()
+	{
+		final NetClient client = new NetClient( addr, port, null, ssl, null, loop );
+		pending++;
+		
+		client.open().addListener( new FutureListener<Channel>()
+		{
+			@Override
+			public void operationComplete( Future<Channel> future )
+			{
+				pending--;
+				
+				if ( retired )
+					client.disconnect();
+				else if ( future.isSuccess() )
+				{
+					failures = 0;
+					idle.add( new Entry( client, System.nanoTime() ) );
+				}
+				else
+				{
+					long backoff = Math.min( MAX_BACKOFF, MIN_BACKOFF << Math.min( failures, 6 ) );
+					failures++;
+					backoffUntil = System.nanoTime() + backoff;
+					System.err.println( "Failed to open a pooled connection to the ESM server, retrying in " + TimeUnit.NANOSECONDS.toSeconds( backoff ) + "s: " + future.cause() );
+				}
+			}
+		} );
+	}
+	
+	private void refill()
+	{
+		if ( System.nanoTime() - lastClaimAt > retireAfter )
+		{
+			retire();
+			return;
+		}
+		
+		evict();
+		
+		if ( failures > 0 )
+		{
+			// Probe with one leg until the upstream accepts again
+			if ( pending == 0 && idle.size() < targetSize && System.nanoTime() - backoffUntil >= 0 )
+				open();
+			return;
+		}
+		
+		for ( int i = 0; i < refillRate && idle.size() + pending < targetSize; i++ )
+			open();
+	}
+	
+	/**
+	 * Stops refilling, closes the idle legs and removes the pool, the next {@link #get(EventLoop, String, int, boolean)}
+	 * creates a new one
+	 */
+	private void retire()
+	{
+		retired = true;
+		refillFuture.cancel( false );
+		pools.remove( key, this );
+		
+		for ( Entry entry : idle )
+			entry.client.disconnect();
+		idle.clear();
+	}
+	
+	public void setMaxIdle( long maxIdle, TimeUnit unit )
+	{
+		Validate.isTrue( maxIdle > 0, "The max idle age must be positive" );
+		this.maxIdle = unit.toNanos( maxIdle );
+	}
+	
+	public void setRetireAfter( long retireAfter, TimeUnit unit )
+	{
+		Validate.isTrue( retireAfter > 0, "The retire age must be positive" );
+		this.retireAfter = unit.toNanos( retireAfter );
+	}
+	
+	public void setRefillRate( int refillRate )
+	{
+		Validate.isTrue( refillRate > 0, "The refill rate must be positive" );
+		this.refillRate = refillRate;
+	}
+	
+	public void setTargetSize( int targetSize )
+	{
+		Validate.isTrue( targetSize >= 0, "The target size can't be negative" );
+		this.targetSize = targetSize;
+	}
+	
+	private void start()
+	{
+		refillFuture = loop.scheduleAtFixedRate( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				refill();
+			}
+		}, 0, 1, TimeUnit.SECONDS );
+	}
+}
@@ -0,0 +1,791 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Multipart payload that stays in the frame it was decoded from.
+ * <p>
+ * Decoding walks the section once and only records type tags, offsets and lengths, nested AssocArrays included. The
+ * walk uses scratch arrays kept by the thread and the result is packed into a single int array sized to the section.
+ * Keys are resolved with the same rules as {@link PacketPayload#putKey(String)} and
+ * {@link PacketPayload#putValue(PayloadValue)}, so {@link #getValue(String)}, {@link #getString(String)} and
+ * {@link #getBytes(String)} return what the map based payload would. The map is only built once the payload is changed
+ * or printed, and an unchanged payload is encoded by copying its original bytes.
+ * <p>
+ * Sections holding values the flat form does not understand, such as the 0x03 long, are left to the map based parser.
+ */
+public class FlatPacketPayload extends PacketPayload
+{
+	/**
+	 * Shared by every node decoded from the same section. Nodes and their live entries are packed into one int array, the
+	 * entries of a node are kept together in the order the map would iterate them.
+	 */
+	static final class Index
+	{
+		static final int KEY_SYNTHETIC = -1; // "*" + counter, the counter is kept as the length
+		static final int KEY_TRUE = -2; // "true", the key made from a true value
+		static final int KEY_NONE = -3;
+		
+		static final byte VALUE_NULL = 0x00;
+		static final byte VALUE_EMPTY = 0x02;
+		static final byte VALUE_BYTES = 0x06;
+		static final byte VALUE_TRUE = 0x08;
+		static final byte VALUE_CHILD = 0x09;
+		
+		static final int NODE_START = 0;
+		static final int NODE_END = 1;
+		static final int NODE_FIRST = 2;
+		static final int NODE_COUNT = 3;
+		static final int NODE_COUNTER = 4;
+		static final int NODE_PREV_OFF = 5;
+		static final int NODE_PREV_LEN = 6;
+		static final int NODE_ASSOC = 7;
+		static final int NODE_STRIDE = 8;
+		
+		static final int KEY_OFF = 0;
+		static final int KEY_LEN = 1;
+		static final int VAL_TAG = 2;
+		static final int VAL_OFF = 3;
+		static final int VAL_LEN = 4; // The child node for VALUE_CHILD
+		static final int ENTRY_STRIDE = 5;
+		
+		ByteBuf frame;
+		boolean detached = false;
+		final int[] table;
+		final int entryBase;
+		
+		PayloadValue[] values = null;
+		
+		Index( ByteBuf frame, int[] table, int entryBase )
+		{
+			this.frame = frame;
+			this.table = table;
+			this.entryBase = entryBase;
+		}
+		
+		int entry( int e, int field )
+		{
+			return table[entryBase + e * ENTRY_STRIDE + field];
+		}
+		
+		int entries()
+		{
+			return ( table.length - entryBase ) / ENTRY_STRIDE;
+		}
+		
+		int find( int node, String key )
+		{
+			if ( key == null )
+				return -1;
+			
+			int first = node( node, NODE_FIRST );
+			int last = first + node( node, NODE_COUNT );
+			
+			for ( int e = first; e < last; e++ )
+				if ( keyEquals( entry( e, KEY_OFF ), entry( e, KEY_LEN ), key ) )
+					return e;
+			return -1;
+		}
+		
+		private int keyByte( int off, int len, int i )
+		{
+			return off >= 0 ? frame.getByte( off + i ) : syntheticByte( off, len, i );
+		}
+		
+		private boolean keyEquals( int off, int len, String key )
+		{
+			int length = keyLength( off, len );
+			
+			if ( length != key.length() && off < 0 )
+				return false;
+			
+			for ( int i = 0; i < length; i++ )
+			{
+				int b = keyByte( off, len, i );
+				
+				// Not ASCII, the bytes and chars no longer line up
+				if ( b < 0 )
+					return frame.toString( off, len, Charset.defaultCharset() ).equals( key );
+				
+				if ( i >= key.length() || b != key.charAt( i ) )
+					return false;
+			}
+			return length == key.length();
+		}
+		
+		int node( int node, int field )
+		{
+			return table[node * NODE_STRIDE + field];
+		}
+		
+		String keyString( int off, int len )
+		{
+			if ( off >= 0 )
+				return PayloadSymbols.toString( frame, off, len );
+			if ( off == KEY_TRUE )
+				return "true";
+			if ( off == KEY_SYNTHETIC )
+				return PayloadSymbols.synthetic( len );
+			return null;
+		}
+	}
+	
+	/**
+	 * Walks a section into growable scratch arrays, which are reused by the thread for the next section. The section is
+	 * copied out of the frame once, reading it a byte at a time through the ByteBuf costs more than the walk itself. Keys
+	 * can be replaced or dropped while walking, so entries are linked per node and only the live ones are copied into the
+	 * {@link Index}.
+	 */
+	static final class Scanner
+	{
+		private static final ThreadLocal<Scanner> scanners = new ThreadLocal<Scanner>()
+		{
+			@Override
+			protected Scanner initialValue()
+			{
+				return new Scanner();
+			}
+		};
+		
+		ByteBuf frame;
+		byte[] bytes = new byte[256];
+		int base;
+		int pos;
+		int limit;
+		
+		int nodes = 0;
+		boolean[] nodeAssoc = new boolean[4];
+		int[] nodeStart = new int[4];
+		int[] nodeEnd = new int[4];
+		int[] nodeHead = new int[4];
+		int[] nodeTail = new int[4];
+		int[] nodeCounter = new int[4];
+		int[] nodePrevOff = new int[4];
+		int[] nodePrevLen = new int[4];
+		
+		int entries = 0;
+		int[] keyOff = new int[16];
+		int[] keyLen = new int[16];
+		byte[] valTag = new byte[16];
+		int[] valOff = new int[16];
+		int[] valLen = new int[16];
+		int[] next = new int[16];
+		boolean[] dead = new boolean[16];
+		
+		static Scanner get( ByteBuf frame, int pos, int limit )
+		{
+			Scanner scanner = scanners.get();
+			scanner.frame = frame;
+			scanner.base = pos;
+			scanner.pos = pos;
+			scanner.limit = limit;
+			scanner.nodes = 0;
+			scanner.entries = 0;
+			
+			if ( scanner.bytes.length < limit - pos )
+				scanner.bytes = new byte[limit - pos];
+			frame.getBytes( pos, scanner.bytes, 0, limit - pos );
+			
+			return scanner;
+		}
+		
+		private int append( int node, int kOff, int kLen, byte tag, int vOff, int vLen )
+		{
+			if ( entries == keyOff.length )
+			{
+				int size = entries * 2;
+				keyOff = Arrays.copyOf( keyOff, size );
+				keyLen = Arrays.copyOf( keyLen, size );
+				valTag = Arrays.copyOf( valTag, size );
+				valOff = Arrays.copyOf( valOff, size );
+				valLen = Arrays.copyOf( valLen, size );
+				next = Arrays.copyOf( next, size );
+				dead = Arrays.copyOf( dead, size );
+			}
+			
+			int e = entries++;
+			keyOff[e] = kOff;
+			keyLen[e] = kLen;
+			valTag[e] = tag;
+			valOff[e] = vOff;
+			valLen[e] = vLen;
+			next[e] = -1;
+			dead[e] = false;
+			
+			if ( nodeHead[node] < 0 )
+				nodeHead[node] = e;
+			else
+				next[nodeTail[node]] = e;
+			nodeTail[node] = e;
+			
+			return e;
+		}
+		
+		int find( int node, int off, int len )
+		{
+			for ( int e = nodeHead[node]; e >= 0; e = next[e] )
+				if ( !dead[e] && keyEquals( keyOff[e], keyLen[e], off, len ) )
+					return e;
+			return -1;
+		}
+		
+		private boolean isAssocArray( int off, int len )
+		{
+			byte[] marker = PacketPayloadChild.ASSOC_ARRAY;
+			
+			if ( len != marker.length )
+				return false;
+			
+			for ( int i = 0; i < len; i++ )
+				if ( bytes[off - base + i] != marker[i] )
+					return false;
+			return true;
+		}
+		
+		private int keyByte( int off, int len, int i )
+		{
+			return off >= 0 ? bytes[off - base + i] : syntheticByte( off, len, i );
+		}
+		
+		private boolean keyEquals( int off1, int len1, int off2, int len2 )
+		{
+			// Two synthetic keys are equal when their counters are, "true" is only equal to itself or the bytes "true"
+			if ( off1 < 0 && off1 == off2 )
+				return off1 == Index.KEY_TRUE || len1 == len2;
+			
+			int length = keyLength( off1, len1 );
+			
+			if ( length != keyLength( off2, len2 ) )
+				return false;
+			
+			for ( int i = 0; i < length; i++ )
+				if ( keyByte( off1, len1, i ) != keyByte( off2, len2, i ) )
+					return false;
+			return true;
+		}
+		
+		/**
+		 * Copies the live entries into an exactly sized {@link Index} and lets go of the frame
+		 */
+		Index finish()
+		{
+			int live = 0;
+			for ( int e = 0; e < entries; e++ )
+				if ( !dead[e] )
+					live++;
+			
+			int entryBase = nodes * Index.NODE_STRIDE;
+			int[] table = new int[entryBase + live * Index.ENTRY_STRIDE];
+			int entry = 0;
+			
+			for ( int n = 0; n < nodes; n++ )
+			{
+				int base = n * Index.NODE_STRIDE;
+				table[base + Index.NODE_START] = nodeStart[n];
+				table[base + Index.NODE_END] = nodeEnd[n];
+				table[base + Index.NODE_FIRST] = entry;
+				table[base + Index.NODE_COUNTER] = nodeCounter[n];
+				table[base + Index.NODE_PREV_OFF] = nodePrevOff[n];
+				table[base + Index.NODE_PREV_LEN] = nodePrevLen[n];
+				table[base + Index.NODE_ASSOC] = nodeAssoc[n] ? 1 : 0;
+				
+				for ( int e = nodeHead[n]; e >= 0; e = next[e] )
+					if ( !dead[e] )
+					{
+						int p = entryBase + entry * Index.ENTRY_STRIDE;
+						table[p + Index.KEY_OFF] = keyOff[e];
+						table[p + Index.KEY_LEN] = keyLen[e];
+						table[p + Index.VAL_TAG] = valTag[e];
+						table[p + Index.VAL_OFF] = valOff[e];
+						table[p + Index.VAL_LEN] = valLen[e];
+						entry++;
+					}
+				
+				table[base + Index.NODE_COUNT] = entry - table[base + Index.NODE_FIRST];
+			}
+			
+			Index index = new Index( frame, table, entryBase );
+			frame = null;
+			return index;
+		}
+		
+		int newNode( boolean assoc, int start )
+		{
+			if ( nodes == nodeAssoc.length )
+			{
+				int size = nodes * 2;
+				nodeAssoc = Arrays.copyOf( nodeAssoc, size );
+				nodeStart = Arrays.copyOf( nodeStart, size );
+				nodeEnd = Arrays.copyOf( nodeEnd, size );
+				nodeHead = Arrays.copyOf( nodeHead, size );
+				nodeTail = Arrays.copyOf( nodeTail, size );
+				nodeCounter = Arrays.copyOf( nodeCounter, size );
+				nodePrevOff = Arrays.copyOf( nodePrevOff, size );
+				nodePrevLen = Arrays.copyOf( nodePrevLen, size );
+			}
+			
+			int n = nodes++;
+			nodeAssoc[n] = assoc;
+			nodeStart[n] = start;
+			nodeEnd[n] = start;
+			nodeHead[n] = -1;
+			nodeTail[n] = -1;
+			nodeCounter[n] = 0;
+			nodePrevOff[n] = Index.KEY_NONE;
+			nodePrevLen[n] = 0;
+			return n;
+		}
+		
+		/**
+		 * Same as the private PacketPayload#put
+		 */
+		private void put( int node, int kOff, int kLen, byte tag, int vOff, int vLen )
+		{
+			nodePrevOff[node] = kOff;
+			nodePrevLen[node] = kLen;
+			
+			int e = find( node, kOff, kLen );
+			if ( e < 0 )
+				append( node, kOff, kLen, tag, vOff, vLen );
+			else
+			{
+				valTag[e] = tag;
+				valOff[e] = vOff;
+				valLen[e] = vLen;
+			}
+		}
+		
+		/**
+		 * Same as {@link PacketPayload#putValue(PayloadValue)}
+		 */
+		private void putValue( int node, byte tag, int vOff, int vLen )
+		{
+			int e = nodePrevOff[node] == Index.KEY_NONE ? -1 : find( node, nodePrevOff[node], nodePrevLen[node] );
+			
+			if ( e < 0 )
+				putValue0( node, tag, vOff, vLen );
+			else
+			{
+				if ( nodeAssoc[node] )
+				{
+					// The previous value becomes the key, see PayloadValue#getString()
+					dead[e] = true;
+					switch ( valTag[e] )
+					{
+						case Index.VALUE_BYTES:
+							put( node, valOff[e], valLen[e], tag, vOff, vLen );
+							break;
+						case Index.VALUE_EMPTY:
+							put( node, valOff[e], 0, tag, vOff, vLen );
+							break;
+						case Index.VALUE_TRUE:
+							put( node, Index.KEY_TRUE, 0, tag, vOff, vLen );
+							break;
+						default:
+							putValue0( node, tag, vOff, vLen );
+					}
+				}
+				else
+					putValue0( node, tag, vOff, vLen );
+				nodePrevOff[node] = Index.KEY_NONE;
+			}
+		}
+		
+		private void putValue0( int node, byte tag, int vOff, int vLen )
+		{
+			put( node, Index.KEY_SYNTHETIC, nodeCounter[node], tag, vOff, vLen );
+			nodeCounter[node]++;
+		}
+		
+		/**
+		 * Same as Packet#readMultipartPayload, but only records where things are
+		 *
+		 * @return false if the payload holds something we leave to the map based parser
+		 */
+		boolean scan( int node, int maxPayloads )
+		{
+			if ( pos >= limit )
+				return true;
+			
+			// Start in Key Mode
+			boolean keyMode = true;
+			
+			for ( int i = 0; i < maxPayloads; i++ )
+			{
+				if ( pos >= limit )
+					return false;
+				
+				int marker = pos;
+				int payloadStart = bytes[pos++ - base];
+				
+				switch ( payloadStart )
+				{
+					case 0x0a: // End of AssocArray
+						return true;
+					case 0x01: // Unknown Key
+						break;
+					case 0x02: // Make Last Key Empty
+					{
+						keyMode = true;
+						putValue( node, Index.VALUE_EMPTY, marker, 0 );
+						break;
+					}
+					case 0x06: // Normal String
+					{
+						int payloadLength = readLength();
+						if ( payloadLength < 0 )
+							return false;
+						
+						if ( keyMode )
+							put( node, pos, payloadLength, Index.VALUE_NULL, marker, 0 );
+						else
+							putValue( node, Index.VALUE_BYTES, pos, payloadLength );
+						
+						pos += payloadLength;
+						keyMode = false;
+						break;
+					}
+					case 0x08: // Boolean Value? True or False?
+					{
+						putValue( node, Index.VALUE_TRUE, marker, 0 );
+						break;
+					}
+					case 0x09: // Typically means following payload is AssocArray
+					{
+						int payloadLength = readLength();
+						if ( payloadLength < 0 || !isAssocArray( pos, payloadLength ) )
+							return false;
+						
+						pos += payloadLength;
+						
+						int child = newNode( true, marker );
+						putValue( node, Index.VALUE_CHILD, marker, child );
+						
+						if ( !scan( child, 9999 ) ) // No Max Available ATM
+							return false;
+						
+						nodeEnd[child] = pos;
+						break;
+					}
+					default:
+						return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		private int readLength()
+		{
+			if ( pos >= limit )
+				return -1;
+			
+			int length = bytes[pos++ - base];
+			return pos + length > limit ? -1 : length;
+		}
+	}
+	
+	private static volatile boolean enabled = true;
+	
+	/**
+	 * Decodes the 0x0b multipart section the buffer is positioned at
+	 *
+	 * @return The payload with the readerIndex moved past the section, or null if the section has to be decoded by the map
+	 *         based parser in which case the readerIndex is not changed
+	 */
+	static FlatPacketPayload decode( ByteBuf data )
+	{
+		if ( !enabled || data.readableBytes() < 2 || data.getByte( data.readerIndex() ) != 0x0b )
+			return null;
+		
+		Scanner scanner = Scanner.get( data, data.readerIndex() + 2, data.writerIndex() );
+		int root = scanner.newNode( false, data.readerIndex() );
+		
+		if ( !scanner.scan( root, data.getByte( data.readerIndex() + 1 ) ) )
+		{
+			scanner.frame = null;
+			return null;
+		}
+		
+		scanner.nodeEnd[root] = scanner.pos;
+		data.readerIndex( scanner.pos );
+		
+		return new FlatPacketPayload( scanner.finish(), root );
+	}
+	
+	/**
+	 * @return The character at i of a synthetic or "true" key
+	 */
+	private static int syntheticByte( int off, int len, int i )
+	{
+		if ( off == Index.KEY_TRUE )
+			return "true".charAt( i );
+		if ( i == 0 )
+			return '*';
+		
+		int div = 1;
+		for ( int d = keyLength( off, len ) - 1 - i; d > 0; d-- )
+			div *= 10;
+		return '0' + len / div % 10;
+	}
+	
+	private static int keyLength( int off, int len )
+	{
+		if ( off >= 0 )
+			return len;
+		if ( off == Index.KEY_TRUE )
+			return 4;
+		
+		int digits = 1;
+		for ( int i = len; i >= 10; i /= 10 )
+			digits++;
+		return 1 + digits;
+	}
+	
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	/**
+	 * Enables decoding lazily parsed packets into flat payloads, enabled by default
+	 */
+	public static void setEnabled( boolean enabled )
+	{
+		FlatPacketPayload.enabled = enabled;
+	}
+	
+	private final Index index;
+	private final int node;
+	private boolean inflated = false;
+	
+	FlatPacketPayload( Index index, int node )
+	{
+		super( null, index.node( node, Index.NODE_ASSOC ) != 0 ? PayloadType.ASSOC_ARRAY : PayloadType.ROOT );
+		this.index = index;
+		this.node = node;
+	}
+	
+	/**
+	 * Copies the frame bytes this payload points into to the heap, so it stays valid once the frame is released. Called by
+	 * the packet only when its release frees the frame, while another reference is held the frame stays valid as is.
+	 */
+	void detach()
+	{
+		if ( index.detached )
+			return;
+		
+		int length = index.frame.capacity();
+		ByteBuf copy = Unpooled.buffer( length, length );
+		copy.writeBytes( index.frame, 0, length );
+		
+		index.frame = copy;
+		index.detached = true;
+	}
+	
+	boolean isDetached()
+	{
+		return index.detached;
+	}
+	
+	@Override
+	public void drop( String key )
+	{
+		inflate();
+		super.drop( key );
+	}
+	
+	@Override
+	protected void encode( ByteBuf buf )
+	{
+		if ( !modified )
+			buf.writeBytes( index.frame, index.node( node, Index.NODE_START ), encodedLength() );
+		else
+		{
+			inflate();
+			if ( isAssocArray() )
+				PacketPayloadChild.encodeAssoc( this, buf );
+			else
+				super.encode( buf );
+		}
+	}
+	
+	@Override
+	protected int encodedLength()
+	{
+		if ( !modified )
+			return index.node( node, Index.NODE_END ) - index.node( node, Index.NODE_START );
+		
+		inflate();
+		return isAssocArray() ? PacketPayloadChild.encodedAssocLength( this ) : super.encodedLength();
+	}
+	
+	@Override
+	public byte[] getBytes( String key )
+	{
+		if ( inflated )
+			return super.getBytes( key );
+		
+		int e = index.find( node, key );
+		if ( e < 0 )
+			return null;
+		
+		switch ( index.entry( e, Index.VAL_TAG ) )
+		{
+			case Index.VALUE_BYTES:
+				return getBytes( e );
+			case Index.VALUE_EMPTY:
+				return PayloadValue.EMPTY.getBytes();
+			default:
+				return null;
+		}
+	}
+	
+	@Override
+	public String getPreviousKey()
+	{
+		if ( inflated )
+			return super.getPreviousKey();
+		return index.keyString( index.node( node, Index.NODE_PREV_OFF ), index.node( node, Index.NODE_PREV_LEN ) );
+	}
+	
+	@Override
+	public String getString( String key )
+	{
+		if ( inflated )
+			return super.getString( key );
+		
+		int e = index.find( node, key );
+		if ( e < 0 )
+			return null;
+		
+		switch ( index.entry( e, Index.VAL_TAG ) )
+		{
+			case Index.VALUE_BYTES:
+				return PayloadSymbols.toString( index.frame, index.entry( e, Index.VAL_OFF ), index.entry( e, Index.VAL_LEN ) );
+			case Index.VALUE_EMPTY:
+				return "";
+			case Index.VALUE_TRUE:
+				return "true";
+			default:
+				return null;
+		}
+	}
+	
+	@Override
+	public PayloadValue getValue( String key )
+	{
+		if ( inflated )
+			return super.getValue( key );
+		
+		int e = index.find( node, key );
+		return e < 0 ? null : valueOf( e );
+	}
+	
+	/**
+	 * Builds the map from the index, does not count as a modification
+	 */
+	private void inflate()
+	{
+		if ( inflated )
+			return;
+		
+		inflated = true;
+		
+		payload = Maps.newLinkedHashMap();
+		
+		int first = index.node( node, Index.NODE_FIRST );
+		for ( int e = first; e < first + index.node( node, Index.NODE_COUNT ); e++ )
+			payload.put( index.keyString( index.entry( e, Index.KEY_OFF ), index.entry( e, Index.KEY_LEN ) ), valueOf( e ) );
+		
+		keyCounter = index.node( node, Index.NODE_COUNTER );
+		previousKey = index.keyString( index.node( node, Index.NODE_PREV_OFF ), index.node( node, Index.NODE_PREV_LEN ) );
+	}
+	
+	@Override
+	public void putKey( String data )
+	{
+		inflate();
+		super.putKey( data );
+	}
+	
+	@Override
+	public PacketPayload putSubload( PayloadType type )
+	{
+		inflate();
+		return super.putSubload( type );
+	}
+	
+	@Override
+	public PacketPayload putSubload( String key, PayloadType type )
+	{
+		inflate();
+		return super.putSubload( key, type );
+	}
+	
+	@Override
+	public void putValue( PayloadValue data )
+	{
+		inflate();
+		super.putValue( data );
+	}
+	
+	@Override
+	public String toString()
+	{
+		inflate();
+		return super.toString();
+	}
+	
+	private PayloadValue valueOf( int e )
+	{
+		switch ( index.entry( e, Index.VAL_TAG ) )
+		{
+			case Index.VALUE_EMPTY:
+				return PayloadValue.EMPTY;
+			case Index.VALUE_TRUE:
+				return PayloadValue.TRUE;
+			case Index.VALUE_BYTES:
+			case Index.VALUE_CHILD:
+			{
+				if ( index.values == null )
+					index.values = new PayloadValue[index.entries()];
+				
+				if ( index.values[e] == null )
+					if ( index.entry( e, Index.VAL_TAG ) == Index.VALUE_CHILD )
+					{
+						FlatPacketPayload child = new FlatPacketPayload( index, index.entry( e, Index.VAL_LEN ) );
+						child.parent = this;
+						index.values[e] = child;
+					}
+					else
+						index.values[e] = new PayloadValue( getBytes( e ) );
+				
+				return index.values[e];
+			}
+			default:
+				return new PayloadValue();
+		}
+	}
+	
+	private byte[] getBytes( int e )
+	{
+		byte[] bytes = new byte[index.entry( e, Index.VAL_LEN )];
+		index.frame.getBytes( index.entry( e, Index.VAL_OFF ), bytes );
+		return bytes;
+	}
+}
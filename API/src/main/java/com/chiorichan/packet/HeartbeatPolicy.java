@@ -0,0 +1,105 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Decides when a {@link MessageBus} sends its pings.
+ * <p>
+ * The first ping is sent after a random delay within one interval and every following ping is moved by up to the jitter
+ * either way, so sessions that reconnected together after an ESM restart don't keep pinging in lock-step. In adaptive mode a
+ * ping is skipped if the session carried traffic within the interval, since that already proves the connection is alive.
+ */
+public class HeartbeatPolicy
+{
+	private static volatile HeartbeatPolicy defaultPolicy = new HeartbeatPolicy( 30, 5, false, TimeUnit.SECONDS );
+	
+	private final long interval;
+	private final long jitter;
+	private final boolean adaptive;
+	
+	/**
+	 * @param interval
+	 *            The average time between pings
+	 * @param jitter
+	 *            The most each ping is moved from the interval either way, must be less than the interval
+	 * @param adaptive
+	 *            Skip the ping if there was traffic within the interval
+	 */
+	public HeartbeatPolicy( long interval, long jitter, boolean adaptive, TimeUnit unit )
+	{
+		Validate.isTrue( interval > 0, "The interval must be positive" );
+		Validate.isTrue( jitter >= 0 && jitter < interval, "The jitter must be positive and less than the interval" );
+		
+		this.interval = unit.toNanos( interval );
+		this.jitter = unit.toNanos( jitter );
+		this.adaptive = adaptive;
+	}
+	
+	public static HeartbeatPolicy getDefault()
+	{
+		return defaultPolicy;
+	}
+	
+	/**
+	 * Sets the policy used by buses that were not given one
+	 */
+	public static void setDefault( HeartbeatPolicy policy )
+	{
+		Validate.notNull( policy );
+		defaultPolicy = policy;
+	}
+	
+	/**
+	 * @return The delay before the first ping in nanoseconds, random within one interval
+	 */
+	public long initialDelay()
+	{
+		return 1 + ThreadLocalRandom.current().nextLong( interval );
+	}
+	
+	public long interval( TimeUnit unit )
+	{
+		return unit.convert( interval, TimeUnit.NANOSECONDS );
+	}
+	
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+	
+	public long jitter( TimeUnit unit )
+	{
+		return unit.convert( jitter, TimeUnit.NANOSECONDS );
+	}
+	
+	/**
+	 * @return The delay before the next ping in nanoseconds
+	 */
+	public long nextDelay()
+	{
+		if ( jitter == 0 )
+			return interval;
+		return interval - jitter + ThreadLocalRandom.current().nextLong( jitter * 2 + 1 );
+	}
+	
+	/**
+	 * @param idle
+	 *            Nanoseconds since the session last carried traffic
+	 * @return true if the ping is not needed
+	 */
+	public boolean skip( long idle )
+	{
+		return adaptive && idle < interval;
+	}
+}
@@ -9,83 +9,203 @@
 package com.chiorichan.packet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
 
 import java.util.Arrays;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.lang3.Validate;
 
-import com.google.common.collect.Lists;
+import com.chiorichan.util.NetMetrics;
+
+import com.google.common.collect.Maps;
 
 /**
  * Handles the I/O of March Commands
+ * <p>
+ * A bus is confined to the event loop of its stream, which both legs of a session share. {@link #sendPacket(Packet...)},
+ * {@link #write(ByteBuf...)} and {@link #start0()} must be called there; only a sender that caches while the bus is not
+ * open yet may be elsewhere, the drain it triggers is then handed to the loop so nothing overtakes the cached packets.
  */
 public abstract class MessageBus
 {
-	private static final Packet PING_PACKET = new Packet( "ping" );
-	private static final Packet PONG_PACKET = new Packet( "pong" );
+	/**
+	 * The lifecycle of a bus, it only ever moves forward
+	 */
+	public enum State
+	{
+		/**
+		 * The stream is not there yet, what we are asked to send is cached
+		 */
+		CONNECTING,
+		/**
+		 * The stream is there but TLS is still being negotiated, what we are asked to send is cached
+		 */
+		HANDSHAKING,
+		/**
+		 * The stream carries packets
+		 */
+		OPEN,
+		/**
+		 * The stream is gone, what we are asked to send is released
+		 */
+		CLOSED;
+	}
+	
+	/**
+	 * Immutable open addressed table from the raw command bytes to their receivers, replaced on every registration
+	 */
+	private static final class CommandIndex
+	{
+		static final CommandIndex EMPTY = new CommandIndex( new byte[0][], new MessageReceiver[0][] );
+		private static final MessageReceiver[] NONE = new MessageReceiver[0];
+		
+		private final byte[][] commands;
+		private final MessageReceiver[][] receivers;
+		private final byte[][] keys;
+		private final MessageReceiver[][] values;
+		private final int mask;
+		
+		private CommandIndex( byte[][] commands, MessageReceiver[][] receivers )
+		{
+			this.commands = commands;
+			this.receivers = receivers;
+			
+			int size = 4;
+			while ( size < commands.length * 2 )
+				size *= 2;
+			
+			mask = size - 1;
+			keys = new byte[size][];
+			values = new MessageReceiver[size][];
+			
+			for ( int i = 0; i < commands.length; i++ )
+			{
+				int slot = slot( Arrays.hashCode( commands[i] ) );
+				while ( keys[slot] != null )
+					slot = ( slot + 1 ) & mask;
+				
+				keys[slot] = commands[i];
+				values[slot] = receivers[i];
+			}
+		}
+		
+		MessageReceiver[] get( Packet packet )
+		{
+			for ( int slot = slot( packet.commandHash() ); keys[slot] != null; slot = ( slot + 1 ) & mask )
+				if ( packet.commandEquals( keys[slot] ) )
+					return values[slot];
+			return NONE;
+		}
+		
+		private int slot( int hash )
+		{
+			return ( hash ^ hash >>> 16 ) & mask;
+		}
+		
+		CommandIndex with( byte[] command, MessageReceiver receiver )
+		{
+			for ( int i = 0; i < commands.length; i++ )
+				if ( Arrays.equals( commands[i], command ) )
+				{
+					MessageReceiver[][] newReceivers = receivers.clone();
+					newReceivers[i] = Arrays.copyOf( receivers[i], receivers[i].length + 1 );
+					newReceivers[i][receivers[i].length] = receiver;
+					return new CommandIndex( commands, newReceivers );
+				}
+			
+			byte[][] newCommands = Arrays.copyOf( commands, commands.length + 1 );
+			newCommands[commands.length] = command.clone();
+			
+			MessageReceiver[][] newReceivers = Arrays.copyOf( receivers, receivers.length + 1 );
+			newReceivers[receivers.length] = new MessageReceiver[] {receiver};
+			
+			return new CommandIndex( newCommands, newReceivers );
+		}
+	}
 	
-	private Timer timer = new Timer( "Heartbeat", true );
-	public List<MessageReceiver> receivers = Lists.newArrayList();
+	private static final PacketTemplate PING_PACKET = new PacketTemplate( new Packet( "ping" ) );
+	private static final PacketTemplate PONG_PACKET = new PacketTemplate( new Packet( "pong" ) );
+	
+	protected static final PacketTemplate BAD_COMMAND_PACKET = newResponseTemplate( "badCommand" );
+	protected static final PacketTemplate FAILED_COMMAND_PACKET = newResponseTemplate( "failed" );
+	
+	private static volatile int defaultFlushThreshold = 64;
+	
+	// Why the peer leg is not reading, see pauseRead()
+	private static final int PAUSE_BACKPRESSURE = 1;
+	private static final int PAUSE_CACHE = 2;
+	
+	private HeartbeatPolicy heartbeat = HeartbeatPolicy.getDefault();
+	private volatile ScheduledFuture<?> pinger = null;
+	private volatile long lastActivity = System.nanoTime();
+	private int flushThreshold = defaultFlushThreshold;
+	private boolean batching = false;
+	private int pendingFrames = 0;
+	private long pausedAt = 0;
+	private int pauseReasons = 0;
+	private volatile CommandIndex commands = CommandIndex.EMPTY;
+	private volatile MessageReceiver[] receivers = new MessageReceiver[0];
 	protected MessageStream stream = null;
-	private boolean connected = false;
+	private final AtomicReference<State> state = new AtomicReference<State>( State.CONNECTING );
 	
-	private List<Packet> cachedPackets = Lists.newLinkedList();
-	private List<ByteBuf> cachedData = Lists.newLinkedList();
+	private PreConnectQueue cached = new PreConnectQueue();
 	
 	public MessageBus()
 	{
-		register( new MessageReceiver()
+		register( "ping", new MessageReceiver()
 		{
 			@Override
 			public boolean handle( MessageStream stream, Packet packet )
 			{
-				if ( "ping".equals( packet.command() ) )
-				{
-					stream.write( PONG_PACKET.encode() );
-					return true;
-				}
-				else if ( "pong".equals( packet.command() ) )
-				{
-					System.out.println( "PONG!" );
-					return true;
-				}
-				
-				return false;
+				stream.write( PONG_PACKET.duplicate() );
+				stream.flush();
+				return true;
+			}
+		} );
+		
+		register( "pong", new MessageReceiver()
+		{
+			@Override
+			public boolean handle( MessageStream stream, Packet packet )
+			{
+				System.out.println( "PONG!" );
+				return true;
 			}
 		} );
 		
-		register( new MessageReceiver()
+		register( new byte[] {0x65}, new MessageReceiver()
 		{
 			@Override
 			public boolean handle( MessageStream stream, Packet packet )
 			{
-				if ( packet.command().getBytes()[0] == 0x65 )
-					if ( packet.hasPayload() )
+				if ( packet.hasPayload() )
+				{
+					PayloadValue payload = packet.getPayload();
+					
+					String result = null;
+					if ( payload.isString() )
+						result = payload.getString();
+					else if ( payload.isPayload() )
+						result = ( ( PacketPayload ) payload ).getString( "*0" );
+					
+					if ( "badCommand".equals( result ) )
 					{
-						PayloadValue payload = packet.getPayload();
-						
-						String result = null;
-						if ( payload.isString() )
-							result = payload.getString();
-						else if ( payload.isPayload() )
-							result = ( ( PacketPayload ) payload ).getValue( "*0" ).getString();
-						
-						if ( "badCommand".equals( result ) )
-						{
-							badCommand( packet.packetId() );
-							System.err.println( "Bad Command" );
-							return true;
-						}
-						else if ( "failed".equals( result ) )
-						{
-							failedCommand( packet.packetId() );
-							System.err.println( "Failed Command" );
-							return true;
-						}
+						badCommand( packet.packetId() );
+						System.err.println( "Bad Command" );
+						return true;
 					}
+					else if ( "failed".equals( result ) )
+					{
+						failedCommand( packet.packetId() );
+						System.err.println( "Failed Command" );
+						return true;
+					}
+				}
 				
 				return false;
 			}
@@ -98,51 +218,248 @@ public abstract class MessageBus
 		this.stream = stream;
 	}
 	
+	private static PacketTemplate newResponseTemplate( String result )
+	{
+		Map<String, Object> data = Maps.newHashMap();
+		data.put( "*0", result );
+		return new PacketTemplate( new Packet( new byte[] {0x65}, new byte[8] ).setPayload( data ) );
+	}
+	
 	protected abstract void badCommand( byte[] packetId );
 	
 	protected abstract void failedCommand( byte[] packetId );
 	
+	/**
+	 * Dispatches the packets to the receivers, ownership of each packet is taken over by the bus.
+	 * Packets consumed by a receiver are released here, others are handed to {@link #packetReceived(Packet...)}.
+	 */
 	public void handle( final Packet... packets ) throws DecoderException
 	{
+		markActivity();
 		for ( Packet packet : packets )
-			for ( MessageReceiver receiver : receivers )
-				if ( receiver.handle( stream, packet ) )
-					return;
+			handle0( packet );
+	}
+	
+	private void handle0( final Packet packet )
+	{
+		for ( MessageReceiver receiver : commands.get( packet ) )
+			if ( receiver.handle( stream, packet ) )
+			{
+				packet.release();
+				return;
+			}
 		
-		if ( packetReceived( packets ) )
+		for ( MessageReceiver receiver : receivers )
+			if ( receiver.handle( stream, packet ) )
+			{
+				packet.release();
+				return;
+			}
+		
+		if ( packetReceived( packet ) )
 			return;
 		
+		packet.release();
 		System.out.println( "WARNING: The last packet was not understood" );
 	}
 	
+	/**
+	 * Called by the handler when its channel starts a read batch, writes to the peer leg are flushed once the batch is done
+	 */
+	public void beginRead()
+	{
+		MessageBus peer = peer();
+		
+		if ( peer != null && peer.flushThreshold > 1 )
+			peer.batching = true;
+	}
+	
+	/**
+	 * Called by the handler from channelReadComplete, flushes what the read batch wrote to the peer leg
+	 */
+	public void endRead()
+	{
+		MessageBus peer = peer();
+		
+		if ( peer != null )
+		{
+			peer.batching = false;
+			peer.flushPending();
+		}
+	}
+	
+	/**
+	 * Applies the {@link PreConnectQueue.Overflow} policy once the cache is over its limit
+	 */
+	private void cacheOverflowed()
+	{
+		MessageBus peer = peer();
+		
+		switch ( cached.overflow() )
+		{
+			case CLOSE:
+				System.err.println( "The pre-connect cache went over " + cached.maxBytes() + " bytes, closing the session" );
+				discardCached();
+				if ( peer != null && peer.stream != null )
+					peer.stream.close();
+				break;
+			case PAUSE_READ:
+				pauseRead( PAUSE_CACHE );
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Moves the bus to {@link State#CLOSED}, stops the pinger and releases what was cached. Anything sent afterwards is released.
+	 */
+	public void close()
+	{
+		if ( state.getAndSet( State.CLOSED ) == State.CLOSED )
+			return;
+		
+		stopPinger();
+		discardCached();
+	}
+	
+	/**
+	 * Releases the packets and data cached while waiting for the stream, used when the stream is never going to start
+	 */
+	public void discardCached()
+	{
+		cached.clear();
+	}
+	
+	/**
+	 * Writes what was cached while the bus was not open
+	 */
+	private void drainCached()
+	{
+		if ( cached.isEmpty() )
+			return;
+		
+		cached.drainTo( stream );
+		stream.flush();
+	}
+	
+	/**
+	 * Drains for a sender that cached just as the bus opened, on the event loop as {@link #start0()} drains there too
+	 */
+	private void drainCachedLate()
+	{
+		EventExecutor executor = stream.executor();
+		
+		if ( executor.inEventLoop() )
+			drainCached();
+		else
+			executor.execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					drainCached();
+				}
+			} );
+	}
+	
+	/**
+	 * Moves the bus from {@link State#CONNECTING} to {@link State#HANDSHAKING}, called once the TLS handshake of the stream
+	 * begins, by the DVR leg when its SSL handler is added and by the upstream leg once its preamble is answered
+	 * 
+	 * @return false if the bus was not connecting
+	 */
+	public boolean handshaking()
+	{
+		return state.compareAndSet( State.CONNECTING, State.HANDSHAKING );
+	}
+	
+	/**
+	 * @return The policy deciding when pings are sent
+	 */
+	public HeartbeatPolicy heartbeatPolicy()
+	{
+		return heartbeat;
+	}
+	
 	public abstract void incoming( final ByteBuf buf );
 	
 	protected abstract boolean packetReceived( final Packet... packets );
 	
-	public void register( MessageReceiver receiver )
+	/**
+	 * @return The bus of the other leg of this session, null if there is none
+	 */
+	protected abstract MessageBus peer();
+	
+	/**
+	 * Notes that the session carried traffic, used by an adaptive {@link HeartbeatPolicy} to skip pings
+	 */
+	public void markActivity()
+	{
+		lastActivity = System.nanoTime();
+	}
+	
+	public boolean isOpen()
+	{
+		return state.get() == State.OPEN;
+	}
+	
+	/**
+	 * Registers a catch-all receiver, these are asked after the receivers registered for the command
+	 */
+	public synchronized void register( MessageReceiver receiver )
+	{
+		MessageReceiver[] newReceivers = Arrays.copyOf( receivers, receivers.length + 1 );
+		newReceivers[receivers.length] = receiver;
+		receivers = newReceivers;
+	}
+	
+	/**
+	 * Registers a receiver only asked for packets with this exact command, looked up without parsing the packet
+	 */
+	public synchronized void register( byte[] command, MessageReceiver receiver )
+	{
+		commands = commands.with( command, receiver );
+	}
+	
+	public void register( String command, MessageReceiver receiver )
 	{
-		receivers.add( receiver );
+		register( command.getBytes(), receiver );
 	}
 	
 	public void sendPacket( final Packet... packets )
 	{
-		if ( connected )
+		markActivity();
+		
+		switch ( state.get() )
 		{
-			for ( Packet packet : packets )
-				stream.write( packet.encode() );
-			stream.flush();
+			case OPEN:
+				for ( Packet packet : packets )
+					stream.write( packet );
+				written( packets.length );
+				break;
+			case CLOSED:
+				for ( Packet packet : packets )
+					packet.release();
+				break;
+			default:
+				for ( Packet packet : packets )
+					if ( !cached.add( packet ) )
+						cacheOverflowed();
+				
+				// start0() might have drained the cache before we added to it
+				if ( state.get() == State.OPEN )
+					drainCachedLate();
 		}
-		else
-			cachedPackets.addAll( Arrays.asList( packets ) );
 	}
 	
 	private void sendPing()
 	{
-		if ( stream == null || !connected )
+		if ( stream == null || state.get() != State.OPEN )
 			return;
 		
-		stream.write( PING_PACKET.encode() );
-		stream.flush();
+		stream.write( PING_PACKET.duplicate() );
+		written( 1 );
 	}
 	
 	public void setStream( final MessageStream stream )
@@ -152,47 +469,109 @@ public abstract class MessageBus
 	
 	protected abstract void start();
 	
-	public void start0()
+	/**
+	 * Schedules the pings on the event loop of the stream as decided by the {@link HeartbeatPolicy}, no thread is created per connection
+	 */
+	public void startPinger()
 	{
-		connected = true;
+		stopPinger();
+		schedulePing( heartbeat.initialDelay() );
+	}
+	
+	public void stopPinger()
+	{
+		ScheduledFuture<?> pinger = this.pinger;
+		this.pinger = null;
 		
-		synchronized ( cachedPackets )
+		if ( pinger != null )
+			pinger.cancel( false );
+	}
+	
+	/**
+	 * @return The current lifecycle state
+	 */
+	public State state()
+	{
+		return state.get();
+	}
+	
+	/**
+	 * Moves the bus to {@link State#OPEN}, writes what was cached and calls {@link #start()}. Does nothing if the bus is
+	 * already open or closed.
+	 */
+	public void start0()
+	{
+		State current;
+		do
 		{
-			for ( Packet packet : cachedPackets )
-				stream.write( packet.encode() );
-			
-			stream.flush();
-			cachedPackets.clear();
+			current = state.get();
+			if ( current == State.OPEN || current == State.CLOSED )
+				return;
 		}
+		while ( !state.compareAndSet( current, State.OPEN ) );
 		
-		synchronized ( cachedData )
-		{
-			for ( ByteBuf buf : cachedData )
-				stream.write( buf );
-			
-			stream.flush();
-			cachedData.clear();
-		}
+		drainCached();
+		
+		// The drain may have filled our outbound buffer, then the peer leg keeps waiting for it to empty
+		if ( stream != null && !stream.isWritable() )
+			writabilityChanged( false );
+		resumeRead( PAUSE_CACHE );
 		
 		start();
 	}
 	
-	public void startPinger()
+	private void schedulePing( long delay )
 	{
-		TimerTask task = new TimerTask()
+		pinger = stream.executor().schedule( new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				sendPing();
+				if ( pinger == null )
+					return;
+				
+				if ( !heartbeat.skip( System.nanoTime() - lastActivity ) )
+					sendPing();
+				
+				// The bus may have been closed or the pinger stopped while we ran
+				if ( pinger == null || state.get() == State.CLOSED )
+					return;
+				
+				schedulePing( heartbeat.nextDelay() );
 			}
-		};
-		timer.scheduleAtFixedRate( task, 23000l, 30000l );
+		}, delay, TimeUnit.NANOSECONDS );
 	}
 	
-	public void stopPinger()
+	/**
+	 * Sets the most frames written during a read batch of the peer leg before we flush anyway.
+	 * 1 flushes every write, as done before consolidation.
+	 */
+	public void setFlushThreshold( int flushThreshold )
+	{
+		Validate.isTrue( flushThreshold > 0, "The flush threshold must be positive" );
+		this.flushThreshold = flushThreshold;
+	}
+	
+	public static void setDefaultFlushThreshold( int flushThreshold )
+	{
+		Validate.isTrue( flushThreshold > 0, "The flush threshold must be positive" );
+		defaultFlushThreshold = flushThreshold;
+	}
+	
+	/**
+	 * Replaces the cache used until the stream is started, anything already cached is released
+	 */
+	public void setPreConnectQueue( PreConnectQueue cached )
+	{
+		Validate.notNull( cached );
+		this.cached.clear();
+		this.cached = cached;
+	}
+	
+	public void setHeartbeatPolicy( HeartbeatPolicy heartbeat )
 	{
-		timer.cancel();
+		Validate.notNull( heartbeat );
+		this.heartbeat = heartbeat;
 	}
 	
 	public MessageStream stream()
@@ -200,15 +579,102 @@ public abstract class MessageBus
 		return stream;
 	}
 	
+	private void flushPending()
+	{
+		if ( pendingFrames == 0 )
+			return;
+		
+		stream.flush();
+		NetMetrics.flushed( pendingFrames );
+		pendingFrames = 0;
+	}
+	
+	/**
+	 * Flushes the frames just written, unless the peer leg is in a read batch and we are below the threshold
+	 */
+	private void written( int frames )
+	{
+		pendingFrames += frames;
+		
+		if ( !batching || pendingFrames >= flushThreshold )
+			flushPending();
+	}
+	
+	/**
+	 * Called by the handler when the writability of our channel changes. While we are not writable the peer leg stops
+	 * reading, so a slow leg can't make the outbound buffer grow without bound.
+	 */
+	public void writabilityChanged( boolean writable )
+	{
+		if ( !writable && pausedAt == 0 )
+		{
+			if ( pauseRead( PAUSE_BACKPRESSURE ) )
+			{
+				pausedAt = System.nanoTime();
+				NetMetrics.readPaused();
+			}
+		}
+		else if ( writable && pausedAt != 0 )
+		{
+			resumeRead( PAUSE_BACKPRESSURE );
+			NetMetrics.readResumed( System.nanoTime() - pausedAt );
+			pausedAt = 0;
+		}
+	}
+	
+	/**
+	 * Stops the peer leg from reading for the reason, it reads again once every reason is gone
+	 * 
+	 * @return false if there is no peer leg to pause
+	 */
+	private boolean pauseRead( int reason )
+	{
+		MessageBus peer = peer();
+		
+		if ( peer == null || peer.stream == null )
+			return false;
+		
+		if ( pauseReasons == 0 )
+			peer.stream.setAutoRead( false );
+		pauseReasons |= reason;
+		return true;
+	}
+	
+	private void resumeRead( int reason )
+	{
+		if ( ( pauseReasons & reason ) == 0 )
+			return;
+		
+		pauseReasons &= ~reason;
+		
+		MessageBus peer = peer();
+		if ( pauseReasons == 0 && peer != null && peer.stream != null )
+			peer.stream.setAutoRead( true );
+	}
+	
 	public void write( final ByteBuf... bufs )
 	{
-		if ( connected )
+		markActivity();
+		
+		switch ( state.get() )
 		{
-			for ( ByteBuf buf : bufs )
-				stream.write( buf );
-			stream.flush();
+			case OPEN:
+				for ( ByteBuf buf : bufs )
+					stream.write( buf );
+				written( bufs.length );
+				break;
+			case CLOSED:
+				for ( ByteBuf buf : bufs )
+					buf.release();
+				break;
+			default:
+				for ( ByteBuf buf : bufs )
+					if ( !cached.add( buf ) )
+						cacheOverflowed();
+				
+				// start0() might have drained the cache before we added to it
+				if ( state.get() == State.OPEN )
+					drainCachedLate();
 		}
-		else
-			cachedData.addAll( Arrays.asList( bufs ) );
 	}
 }
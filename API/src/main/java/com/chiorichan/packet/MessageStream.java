@@ -9,8 +9,10 @@
 package com.chiorichan.packet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
@@ -28,6 +30,40 @@ public class MessageStream
 		this.context = context;
 	}
 	
+	public ByteBufAllocator alloc()
+	{
+		return context.alloc();
+	}
+	
+	/**
+	 * @return true if the channel accepts writes without growing its outbound buffer past the high watermark
+	 */
+	public boolean isWritable()
+	{
+		return context.channel().isWritable();
+	}
+	
+	/**
+	 * Stops or resumes reading from the channel
+	 */
+	public void setAutoRead( boolean autoRead )
+	{
+		context.channel().config().setAutoRead( autoRead );
+	}
+	
+	public void close()
+	{
+		context.close();
+	}
+	
+	/**
+	 * @return The event loop of the channel, used to schedule work without extra threads
+	 */
+	public EventExecutor executor()
+	{
+		return context.executor();
+	}
+	
 	public void flush()
 	{
 		context.flush();
@@ -49,6 +85,15 @@ public class MessageStream
 		context.write( msg );
 	}
 	
+	/**
+	 * Writes the packet to the pipeline, where it gets encoded by the {@link PacketEncoder}.
+	 * Ownership of the packet is passed along with it.
+	 */
+	public void write( Packet msg )
+	{
+		context.write( msg );
+	}
+	
 	public void write( String msg )
 	{
 		context.write( msg );
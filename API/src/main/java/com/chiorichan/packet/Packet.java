@@ -7,12 +7,14 @@
 package com.chiorichan.packet;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ReferenceCounted;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.Validate;
@@ -25,7 +27,7 @@ import com.google.common.collect.Lists;
  * @author Chiori Greene
  * @email chiorigreene@gmail.com
  */
-public class Packet
+public class Packet implements ReferenceCounted
 {
 	public class PacketCommand
 	{
@@ -46,22 +48,34 @@ public class Packet
 			return new String( cmd );
 		}
 		
-		protected ByteBuf encode()
+		protected void encode( ByteBuf buf )
 		{
-			ByteBuf buf = Unpooled.buffer();
 			buf.writeByte( ( byte ) 0x06 );
 			buf.writeByte( ( byte ) cmd.length );
 			buf.writeBytes( cmd );
-			return buf;
+		}
+		
+		protected int encodedLength()
+		{
+			return 2 + cmd.length;
 		}
 	}
 	
 	private PacketCommand cmd = null;
 	private byte[] packetId = null;
-	private String hash = null;
+	private PacketFingerprint fingerprint = null;
 	
 	private PayloadValue payload;
 	
+	/**
+	 * Retained slice of the frame this packet was lazily decoded from, see {@link #decodeLazy(ByteBuf)}
+	 */
+	private ByteBuf frame = null;
+	private int bodyIndex = -1;
+	private int bodySections = 0;
+	private boolean bodyParsed = true;
+	private boolean dirty = false;
+	
 	public Packet( byte[] cmd )
 	{
 		this( cmd, null );
@@ -73,6 +87,11 @@ public class Packet
 		this.packetId = packetId;
 	}
 	
+	private Packet( PacketCommand cmd )
+	{
+		this.cmd = cmd;
+	}
+	
 	public Packet( String cmd )
 	{
 		this( cmd, null );
@@ -117,11 +136,9 @@ public class Packet
 						// Still not sure what these three bits are used for, but they are always 0x00.
 						System.out.println( "NOTICE: z1, z2, or z3 was not 0x00, don't know why... " + Hex.encodeHexString( new byte[] {( byte ) z1, ( byte ) z2, ( byte ) z3} ) );
 					
-					byte[] b = new byte[ ( data.readerIndex() + packetLength2 ) - start];
-					data.getBytes( start, b );
+					PacketFingerprint fingerprint = PacketFingerprint.compute( data, start, ( data.readerIndex() + packetLength2 ) - start );
 					
-					// Use MD5 Hash
-					packets.add( decode0( data.readBytes( packetLength2 ) ).setHash( Base64.encodeBase64String( b ) ) );
+					packets.add( decode0( data.readBytes( packetLength2 ) ).setFingerprint( fingerprint ) );
 				}
 				else
 				{
@@ -148,6 +165,43 @@ public class Packet
 		}
 	}
 	
+	/**
+	 * Wraps a single frame without parsing it. The command, packetId and payload are parsed from the frame on first access,
+	 * so relaying a packet that nobody inspects allocates next to nothing.
+	 * <p>
+	 * The returned packet holds a retained slice of the frame, release it with {@link #release()} once done. The frame is
+	 * validated here, in one pass that allocates nothing, so the accessors never find it malformed later.
+	 * 
+	 * @param data
+	 *            The buffer positioned at the start of a frame, the readerIndex is moved past the frame
+	 * @return The lazily parsed packet
+	 * @throws PacketException
+	 *             thrown if the buffer does not hold a whole, well formed frame
+	 */
+	public static Packet decodeLazy( ByteBuf data ) throws PacketException
+	{
+		Validate.notNull( data );
+		
+		if ( !PacketFrameDecoder.isFrame( data ) )
+			throw new PacketException( "Data stream does not start with a frame header.", data );
+		
+		int frameLength = PacketFrameDecoder.HEADER_LENGTH + data.getUnsignedShort( data.readerIndex() + 3 );
+		
+		if ( data.readableBytes() < frameLength )
+			throw new PacketException( "Data stream ended before the end of the frame.", data );
+		
+		validate( data, data.readerIndex(), data.readerIndex() + frameLength );
+		
+		Packet packet = new Packet( ( PacketCommand ) null );
+		packet.frame = data.slice( data.readerIndex(), frameLength ).retain();
+		packet.fingerprint = PacketFingerprint.compute( data, data.readerIndex(), frameLength );
+		packet.bodyParsed = false;
+		
+		data.skipBytes( frameLength );
+		
+		return packet;
+	}
+	
 	private static Packet decode0( ByteBuf data ) throws PacketException
 	{
 		int dataType = data.readByte();
@@ -179,6 +233,18 @@ public class Packet
 		return inital;
 	}
 	
+	/**
+	 * @return The index past the bytes
+	 * @throws PacketException
+	 *             thrown if the bytes don't fit before the end
+	 */
+	private static int checkAvailable( ByteBuf data, int index, int length, int end ) throws PacketException
+	{
+		if ( length < 0 || index + length > end )
+			throw new PacketException( "The frame ended unexpectedly at index " + index + ".", data );
+		return index + length;
+	}
+	
 	public static String md5( byte[] bytes )
 	{
 		return DigestUtils.md5Hex( bytes );
@@ -241,17 +307,21 @@ public class Packet
 				{
 					int payloadLength = data.readByte();
 					
-					byte[] value = new byte[payloadLength];
-					data.readBytes( value );
-					
 					// if ( new String( value ).startsWith( "*" ) )
 					// if ( "*end".equals( new String( value ) ) )
 					// return true;
 					
 					if ( keyMode )
-						payload.putKey( new String( value ) );
+					{
+						payload.putKey( PayloadSymbols.toString( data, data.readerIndex(), payloadLength ) );
+						data.skipBytes( payloadLength );
+					}
 					else
+					{
+						byte[] value = new byte[payloadLength];
+						data.readBytes( value );
 						payload.putValue( new PayloadValue( value ) );
+					}
 					
 					keyMode = false;
 					break;
@@ -265,21 +335,18 @@ public class Packet
 				{
 					int payloadLength = data.readByte();
 					
-					byte[] value = new byte[payloadLength];
-					data.readBytes( value );
-					
-					switch ( new String( value ) )
+					if ( !PayloadSymbols.isAssocArray( data, data.readerIndex(), payloadLength ) )
 					{
-						case "AssocArray":
-						{
-							PacketPayload subload = payload.putSubload( PayloadType.ASSOC_ARRAY );
-							readMultipartPayload( data, subload, 9999 ); // No Max Available ATM
-							break;
-						}
-						default:
-							throw new PacketException( "Special data 0x09 encountered but it was not reconized: " + value );
+						byte[] value = new byte[payloadLength];
+						data.readBytes( value );
+						throw new PacketException( "Special data 0x09 encountered but it was not reconized: " + PacketUtils.hex2Readable( value ) );
 					}
 					
+					data.skipBytes( payloadLength );
+					
+					PacketPayload subload = payload.putSubload( PayloadType.ASSOC_ARRAY );
+					readMultipartPayload( data, subload, 9999 ); // No Max Available ATM
+					
 					break;
 				}
 				default:
@@ -289,6 +356,102 @@ public class Packet
 		}
 	}
 	
+	/**
+	 * Walks a frame the way {@link #decode0(ByteBuf)} reads it, without building anything
+	 * 
+	 * @throws PacketException
+	 *             thrown if the frame would fail to parse
+	 */
+	private static void validate( ByteBuf data, int start, int end ) throws PacketException
+	{
+		int index = checkAvailable( data, start + PacketFrameDecoder.HEADER_LENGTH, 4, end );
+		
+		if ( data.getByte( index - 4 ) != 0x0b )
+			throw new PacketException( "The first byte in the data stream did not start with 0x0b.", data );
+		
+		int dataLength = data.getByte( index - 3 );
+		
+		if ( dataLength > 3 )
+			throw new PacketException( "Data over 3 sections is not supported ATM.", data );
+		
+		if ( data.getByte( index - 2 ) != 0x06 )
+			throw new PacketException( "Expected the 'command' section.", data );
+		
+		index = checkAvailable( data, index, data.getUnsignedByte( index - 1 ), end );
+		
+		for ( int i = 1; i < dataLength; i++ )
+		{
+			checkAvailable( data, index, 1, end );
+			
+			switch ( data.getByte( index ) )
+			{
+				case 0x03: // PacketId
+					index = checkAvailable( data, index + 1, 8, end );
+					break;
+				case 0x0b: // Multipart Payload
+					checkAvailable( data, index, 2, end );
+					index = validateMultipartPayload( data, index + 2, end, data.getByte( index + 1 ) );
+					break;
+				case 0x06: // String Payload
+					checkAvailable( data, index, 2, end );
+					index = checkAvailable( data, index + 2, data.getByte( index + 1 ), end );
+					break;
+				default:
+					throw new PacketException( "SEVERE: The next data section was not started properly. It started with 0x" + Hex.encodeHexString( new byte[] {data.getByte( index )} ) + ".", data );
+			}
+		}
+	}
+	
+	/**
+	 * Walks a multipart payload the way {@link #readMultipartPayload(ByteBuf, PacketPayload, int)} reads it
+	 * 
+	 * @return The index past the payload
+	 */
+	private static int validateMultipartPayload( ByteBuf data, int index, int end, int maxPayloads ) throws PacketException
+	{
+		if ( index >= end )
+			return index;
+		
+		for ( int i = 0; i < maxPayloads; i++ )
+		{
+			index = checkAvailable( data, index, 1, end );
+			int payloadStart = data.getByte( index - 1 );
+			
+			switch ( payloadStart )
+			{
+				case 0x0a: // End of AssocArray
+					return index;
+				case 0x01: // Unknown Key
+				case 0x02: // Make Last Key Empty
+				case 0x08: // Boolean Value
+					break;
+				case 0x03: // 64-bit Float/Long
+					index = checkAvailable( data, index, 8, end );
+					break;
+				case 0x06: // Normal String
+					checkAvailable( data, index, 1, end );
+					index = checkAvailable( data, index + 1, data.getByte( index ), end );
+					break;
+				case 0x09: // AssocArray
+				{
+					checkAvailable( data, index, 1, end );
+					int payloadLength = data.getByte( index );
+					index = checkAvailable( data, index + 1, payloadLength, end );
+					
+					if ( !PayloadSymbols.isAssocArray( data, index - payloadLength, payloadLength ) )
+						throw new PacketException( "Special data 0x09 encountered but it was not reconized.", data );
+					
+					index = validateMultipartPayload( data, index, end, 9999 );
+					break;
+				}
+				default:
+					throw new PacketException( "Payload section was not started with the expected byte, payload start was: " + PacketUtils.hex2Readable( payloadStart ) + " at index " + ( index - 1 ), data );
+			}
+		}
+		
+		return index;
+	}
+	
 	private static void readSection( ByteBuf data, Packet packet ) throws PacketException
 	{
 		if ( !data.isReadable() )
@@ -332,20 +495,165 @@ public class Packet
 		}
 	}
 	
+	/**
+	 * Parses the command and packetId sections of a lazily decoded frame, which {@link #decodeLazy(ByteBuf)} validated
+	 */
+	private void parseHeader()
+	{
+		if ( cmd != null || frame == null )
+			return;
+		
+		ByteBuf data = frame.duplicate();
+		data.skipBytes( PacketFrameDecoder.HEADER_LENGTH );
+		
+		try
+		{
+			if ( data.readByte() != 0x0b )
+				throw new PacketException( "The first byte in the data stream did not start with 0x0b.", data );
+			
+			int dataLength = data.readByte();
+			
+			if ( dataLength > 3 )
+				throw new PacketException( "Data over 3 sections is not supported ATM.", data );
+			
+			if ( data.readByte() != 0x06 )
+				throw new PacketException( "Expected the 'command' section.", data );
+			
+			byte[] cmd = new byte[data.readUnsignedByte()];
+			data.readBytes( cmd );
+			
+			int sections = dataLength - 1;
+			
+			if ( sections > 0 && data.getByte( data.readerIndex() ) == 0x03 )
+			{
+				data.skipBytes( 1 );
+				packetId = new byte[8];
+				data.readBytes( packetId );
+				sections--;
+			}
+			
+			bodyIndex = data.readerIndex();
+			bodySections = sections;
+			this.cmd = new PacketCommand( cmd );
+		}
+		catch ( PacketException e )
+		{
+			// Can't happen for a frame decodeLazy() accepted
+			System.out.println( e.hexDump() );
+			throw new IllegalStateException( "Failed to lazily decode packet", e );
+		}
+	}
+	
+	/**
+	 * Parses the remaining payload sections of a lazily decoded frame, which {@link #decodeLazy(ByteBuf)} validated
+	 */
+	private void parseBody()
+	{
+		if ( bodyParsed )
+			return;
+		
+		parseHeader();
+		bodyParsed = true;
+		
+		ByteBuf data = frame.duplicate();
+		data.readerIndex( bodyIndex );
+		
+		try
+		{
+			for ( int i = 0; i < bodySections; i++ )
+			{
+				FlatPacketPayload flat = FlatPacketPayload.decode( data );
+				
+				if ( flat == null )
+					readSection( data, this );
+				else
+					payload = flat;
+			}
+			
+			// Building the payload is not a modification
+			if ( payload instanceof PacketPayload )
+				( ( PacketPayload ) payload ).modified = false;
+		}
+		catch ( PacketException e )
+		{
+			// Can't happen for a frame decodeLazy() accepted
+			System.out.println( e.hexDump() );
+			throw new IllegalStateException( "Failed to lazily decode packet", e );
+		}
+	}
+	
 	public Packet addPacketId()
 	{
+		parseHeader();
+		dirty = true;
 		packetId = PacketUtils.generatePacketId();
 		return this;
 	}
 	
 	public Packet addPacketId( byte[] packetId )
 	{
+		parseHeader();
+		dirty = true;
 		this.packetId = packetId;
 		return this;
 	}
 	
+	/**
+	 * Checks the raw command bytes, for lazily decoded packets they are compared in the frame without parsing the header
+	 */
+	public boolean commandEquals( byte[] command )
+	{
+		int index = commandIndex();
+		
+		if ( index < 0 )
+			return Arrays.equals( cmd.cmd, command );
+		
+		if ( frame.getUnsignedByte( index - 1 ) != command.length )
+			return false;
+		
+		for ( int i = 0; i < command.length; i++ )
+			if ( frame.getByte( index + i ) != command[i] )
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * @return The hash of the raw command bytes, same as {@link Arrays#hashCode(byte[])}, computed without building the command
+	 */
+	public int commandHash()
+	{
+		int index = commandIndex();
+		
+		if ( index < 0 )
+			return Arrays.hashCode( cmd.cmd );
+		
+		int hash = 1;
+		int length = frame.getUnsignedByte( index - 1 );
+		
+		for ( int i = 0; i < length; i++ )
+			hash = 31 * hash + frame.getByte( index + i );
+		
+		return hash;
+	}
+	
+	/**
+	 * @return The index of the command bytes in the unparsed frame, -1 once the header was parsed or if the frame is malformed
+	 */
+	private int commandIndex()
+	{
+		int index = PacketFrameDecoder.HEADER_LENGTH + 4;
+		
+		if ( cmd == null && frame != null && frame.capacity() >= index && frame.getByte( index - 4 ) == 0x0b && frame.getByte( index - 2 ) == 0x06 && frame.capacity() >= index + frame.getUnsignedByte( index - 1 ) )
+			return index;
+		
+		parseHeader();
+		return -1;
+	}
+	
 	public String command()
 	{
+		parseHeader();
 		return ( cmd == null ) ? null : cmd.command();
 	}
 	
@@ -365,105 +673,224 @@ public class Packet
 		return ( byte ) p;
 	}
 	
+	/**
+	 * Encodes this packet into a pooled buffer sized to fit exactly
+	 */
 	public ByteBuf encode()
 	{
-		ByteBuf packet = Unpooled.buffer();
+		return encode( PooledByteBufAllocator.DEFAULT );
+	}
+	
+	/**
+	 * Encodes this packet into a buffer from the provided allocator sized to fit exactly
+	 */
+	public ByteBuf encode( ByteBufAllocator alloc )
+	{
+		int length = encodedLength();
+		ByteBuf buf = alloc.buffer( length, length );
+		encode( buf );
+		return buf;
+	}
+	
+	/**
+	 * Writes the whole frame; header, command, packetId and payload; to the buffer in a single pass
+	 */
+	public void encode( ByteBuf buf )
+	{
+		parseBody();
 		
-		packet.writeByte( 0x0b );
+		int start = buf.writerIndex();
+		int length = encodedLength() - PacketFrameDecoder.HEADER_LENGTH;
 		
-		packet.writeByte( countParts() );
+		buf.writeByte( 0x01 );
 		
-		packet.writeBytes( cmd.encode() );
+		buf.writeShort( ( short ) ( length + 4 ) ); // Length + 4
+		buf.writeShort( ( short ) length ); // Length
+		
+		buf.writeMedium( 0 ); // 00 00 00
+		
+		buf.writeByte( 0x0b );
+		
+		buf.writeByte( countParts() );
+		
+		cmd.encode( buf );
 		
 		if ( hasPacketId() )
 		{
-			packet.writeByte( 0x03 );
-			packet.writeBytes( packetId );
+			buf.writeByte( 0x03 );
+			buf.writeBytes( packetId );
 		}
 		
 		if ( hasPayload() )
-			packet.writeBytes( payload.encode() );
+			payload.encode( buf );
 		
-		ByteBuf newPacket = Unpooled.buffer();
-		
-		newPacket.writeByte( 0x01 );
-		
-		newPacket.writeShort( ( short ) ( packet.writerIndex() + 4 ) ); // Length + 4
-		newPacket.writeShort( ( short ) ( packet.writerIndex() ) ); // Length
+		if ( hasFingerprint() )
+			fingerprint.matches( buf, start, buf.writerIndex() - start );
+	}
+	
+	/**
+	 * @return The exact number of bytes {@link #encode(ByteBuf)} will write, including the frame header
+	 */
+	public int encodedLength()
+	{
+		parseBody();
 		
-		newPacket.writeBytes( new byte[] {0x00, 0x00, 0x00} );
+		int length = PacketFrameDecoder.HEADER_LENGTH + 2 + cmd.encodedLength();
 		
-		newPacket.writeBytes( packet );
+		if ( hasPacketId() )
+			length += 1 + packetId.length;
 		
-		if ( hasHash() )
-		{
-			byte[] b = new byte[newPacket.writerIndex()];
-			newPacket.getBytes( 0, b );
-			
-			// if ( !md5( b ).equals( hash() ) )
-			
-			if ( !Base64.encodeBase64String( b ).equals( hash() ) )
-			{
-				System.out.println( "Packet Hash Mismatch!" );
-				
-				byte[] orig = Base64.decodeBase64( hash() );
-				
-				System.out.println( "Mismatch Length: " + b.length + " <--> " + orig.length );
-				System.out.println( "Mismatch Diff: " );
-				
-				for ( int i = 0; i < Math.min( b.length, orig.length ); i++ )
-					if ( b[i] != orig[i] )
-						System.out.println( "Index " + i + " mismatched: " + PacketUtils.hex2Readable( b[i] ) + " <--> " + PacketUtils.hex2Readable( orig[i] ) );
-			}
-		}
+		if ( hasPayload() )
+			length += payload.encodedLength();
 		
-		return newPacket;
+		return length;
 	}
 	
 	public PayloadValue getPayload()
 	{
+		parseBody();
 		return payload;
 	}
 	
-	public String hash()
+	public PacketFingerprint fingerprint()
 	{
-		return hash;
+		return fingerprint;
 	}
 	
-	public boolean hasHash()
+	public boolean hasFingerprint()
 	{
-		return hash != null;
+		return fingerprint != null;
 	}
 	
 	public boolean hasPacketId()
 	{
+		parseHeader();
 		return packetId != null;
 	}
 	
 	public boolean hasPayload()
 	{
+		parseBody();
 		return payload != null;
 	}
 	
+	/**
+	 * @return true if this packet was modified since it was decoded, so the source frame no longer represents it
+	 */
+	public boolean isDirty()
+	{
+		return dirty || payload instanceof PacketPayload && ( ( PacketPayload ) payload ).modified;
+	}
+	
+	/**
+	 * @return true if this packet was lazily decoded and still holds its source frame
+	 */
+	public boolean isLazy()
+	{
+		return frame != null;
+	}
+	
+	/**
+	 * @return true if the source frame can be relayed as-is instead of re-encoding this packet
+	 */
+	public boolean isRelayable()
+	{
+		return frame != null && !isDirty();
+	}
+	
+	/**
+	 * Marks this packet as modified, so it gets re-encoded instead of relaying the source frame.
+	 * Only needed when a {@link MessageReceiver} changes a {@link PayloadValue} in a way the payload can't track.
+	 */
+	public Packet markDirty()
+	{
+		dirty = true;
+		return this;
+	}
+	
+	/**
+	 * @return A retained duplicate of the source frame, which must be released by the caller
+	 */
+	ByteBuf retainedFrame()
+	{
+		return frame.duplicate().retain();
+	}
+	
+	/**
+	 * @return The index of the 8-byte packetId within the encoded frame, -1 if there is none
+	 */
+	int packetIdIndex()
+	{
+		return hasPacketId() ? PacketFrameDecoder.HEADER_LENGTH + 2 + cmd.encodedLength() + 1 : -1;
+	}
+	
 	public byte[] packetId()
 	{
+		parseHeader();
 		return packetId;
 	}
 	
-	private Packet setHash( String hash )
+	@Override
+	public int refCnt()
+	{
+		return frame == null ? 1 : frame.refCnt();
+	}
+	
+	@Override
+	public boolean release()
+	{
+		return release( 1 );
+	}
+	
+	@Override
+	public boolean release( int decrement )
+	{
+		if ( frame == null )
+			return false;
+		
+		// A parsed payload may be held on to after the packet, so it must not point into a frame that is about to be freed
+		if ( payload instanceof FlatPacketPayload && frame.refCnt() == decrement )
+			( ( FlatPacketPayload ) payload ).detach();
+		
+		return frame.release( decrement );
+	}
+	
+	@Override
+	public Packet retain()
+	{
+		if ( frame != null )
+			frame.retain();
+		return this;
+	}
+	
+	@Override
+	public Packet retain( int increment )
+	{
+		if ( frame != null )
+			frame.retain( increment );
+		return this;
+	}
+	
+	private Packet setFingerprint( PacketFingerprint fingerprint )
 	{
-		this.hash = hash;
+		this.fingerprint = fingerprint;
 		return this;
 	}
 	
 	public Packet setPayload( Map<String, Object> payload )
 	{
+		parseHeader();
+		bodyParsed = true;
+		dirty = true;
 		this.payload = new PacketPayload( payload );
 		return this;
 	}
 	
 	public Packet setPayload( String payload )
 	{
+		parseHeader();
+		bodyParsed = true;
+		dirty = true;
 		this.payload = new PayloadValue( payload );
 		return this;
 	}
@@ -471,6 +898,22 @@ public class Packet
 	@Override
 	public String toString()
 	{
-		return "Packet{cmd=" + command() + ",packetId=" + PacketUtils.hex2Readable( packetId ) + ",payload=" + payload + "}";
+		return "Packet{cmd=" + command() + ",packetId=" + PacketUtils.hex2Readable( packetId() ) + ",payload=" + getPayload() + "}";
+	}
+	
+	@Override
+	public Packet touch()
+	{
+		if ( frame != null )
+			frame.touch();
+		return this;
+	}
+	
+	@Override
+	public Packet touch( Object hint )
+	{
+		if ( frame != null )
+			frame.touch( hint );
+		return this;
 	}
 }
@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Encodes outbound {@link Packet}s on the event loop using the channel allocator.
+ * <p>
+ * Each packet is sized up front and written once into a buffer of exactly that size, the packet is released afterwards.
+ * Should sit between the {@link io.netty.handler.logging.LoggingHandler} and the handler, so lazily decoded packets are not
+ * parsed just to be logged.
+ * <p>
+ * In relay mode, the default, a lazily decoded packet that was not modified is written as its original frame bytes
+ * and never re-encoded.
+ */
+public class PacketEncoder extends MessageToMessageEncoder<Packet>
+{
+	private final boolean relay;
+	
+	public PacketEncoder()
+	{
+		this( true );
+	}
+	
+	/**
+	 * @param relay
+	 *            Pass unmodified frames through instead of re-encoding them
+	 */
+	public PacketEncoder( boolean relay )
+	{
+		this.relay = relay;
+	}
+	
+	@Override
+	protected void encode( ChannelHandlerContext ctx, Packet msg, List<Object> out ) throws Exception
+	{
+		if ( relay && msg.isRelayable() )
+			out.add( msg.retainedFrame() );
+		else
+			out.add( msg.encode( ctx.alloc() ) );
+	}
+	
+	public boolean isRelay()
+	{
+		return relay;
+	}
+}
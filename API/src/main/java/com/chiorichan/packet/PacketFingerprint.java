@@ -0,0 +1,179 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+
+import org.apache.commons.lang3.Validate;
+
+import com.chiorichan.util.PacketUtils;
+
+/**
+ * Fingerprint of a decoded frame, checked against the re-encoded packet to catch round-trip mismatches.
+ * <p>
+ * Fingerprinting is off by default. {@link #HASH64} hashes the frame in place with 64-bit FNV-1a, while {@link #VERIFY}
+ * keeps a full copy of the frame so mismatches can be diffed byte by byte, only use it when diagnosing the codec.
+ */
+public abstract class PacketFingerprint
+{
+	public interface Strategy
+	{
+		/**
+		 * @return The fingerprint of the frame, or null if nothing is fingerprinted
+		 */
+		PacketFingerprint compute( ByteBuf buf, int index, int length );
+	}
+	
+	private static class Fnv1a implements ByteBufProcessor
+	{
+		long hash = 0xcbf29ce484222325L;
+		
+		@Override
+		public boolean process( byte value ) throws Exception
+		{
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+			return true;
+		}
+	}
+	
+	private static class Hash64 extends PacketFingerprint
+	{
+		private final long hash;
+		private final int length;
+		
+		Hash64( long hash, int length )
+		{
+			this.hash = hash;
+			this.length = length;
+		}
+		
+		@Override
+		public boolean matches( ByteBuf buf, int index, int length )
+		{
+			if ( this.length == length && hash == hash( buf, index, length ) )
+				return true;
+			
+			System.out.println( "Packet Hash Mismatch!" );
+			System.out.println( "Mismatch Length: " + length + " <--> " + this.length );
+			return false;
+		}
+	}
+	
+	private static class Copy extends PacketFingerprint
+	{
+		private final byte[] orig;
+		
+		Copy( byte[] orig )
+		{
+			this.orig = orig;
+		}
+		
+		@Override
+		public boolean matches( ByteBuf buf, int index, int length )
+		{
+			byte[] b = new byte[length];
+			buf.getBytes( index, b );
+			
+			boolean match = true;
+			
+			if ( b.length != orig.length )
+			{
+				System.out.println( "Packet Hash Mismatch!" );
+				System.out.println( "Mismatch Length: " + b.length + " <--> " + orig.length );
+				match = false;
+			}
+			
+			for ( int i = 0; i < Math.min( b.length, orig.length ); i++ )
+				if ( b[i] != orig[i] )
+				{
+					if ( match )
+					{
+						System.out.println( "Packet Hash Mismatch!" );
+						System.out.println( "Mismatch Diff: " );
+						match = false;
+					}
+					System.out.println( "Index " + i + " mismatched: " + PacketUtils.hex2Readable( b[i] ) + " <--> " + PacketUtils.hex2Readable( orig[i] ) );
+				}
+			
+			return match;
+		}
+	}
+	
+	/**
+	 * Does not fingerprint, this is the default
+	 */
+	public static final Strategy NONE = new Strategy()
+	{
+		@Override
+		public PacketFingerprint compute( ByteBuf buf, int index, int length )
+		{
+			return null;
+		}
+	};
+	
+	/**
+	 * 64-bit FNV-1a hash computed directly over the buffer, no copy is made
+	 */
+	public static final Strategy HASH64 = new Strategy()
+	{
+		@Override
+		public PacketFingerprint compute( ByteBuf buf, int index, int length )
+		{
+			return new Hash64( hash( buf, index, length ), length );
+		}
+	};
+	
+	/**
+	 * Full copy of the frame, reports each mismatched byte
+	 */
+	public static final Strategy VERIFY = new Strategy()
+	{
+		@Override
+		public PacketFingerprint compute( ByteBuf buf, int index, int length )
+		{
+			byte[] b = new byte[length];
+			buf.getBytes( index, b );
+			return new Copy( b );
+		}
+	};
+	
+	private static volatile Strategy strategy = NONE;
+	
+	static PacketFingerprint compute( ByteBuf buf, int index, int length )
+	{
+		return strategy.compute( buf, index, length );
+	}
+	
+	public static Strategy getStrategy()
+	{
+		return strategy;
+	}
+	
+	static long hash( ByteBuf buf, int index, int length )
+	{
+		Fnv1a fnv = new Fnv1a();
+		buf.forEachByte( index, length, fnv );
+		return fnv.hash;
+	}
+	
+	public static void setStrategy( Strategy strategy )
+	{
+		Validate.notNull( strategy );
+		PacketFingerprint.strategy = strategy;
+	}
+	
+	/**
+	 * Checks the encoded frame against this fingerprint, mismatches are reported to the console
+	 *
+	 * @return true if the frame matches
+	 */
+	public abstract boolean matches( ByteBuf buf, int index, int length );
+}
@@ -0,0 +1,112 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMessage;
+
+import java.util.List;
+
+/**
+ * Reassembles March frames that were split or coalesced by the transport.
+ * <p>
+ * A frame is laid out as {@code 01 [len + 4] [len] 00 00 00} followed by {@code len} bytes of body. Each complete frame is
+ * emitted as a retained slice of the cumulation buffer, so no bytes are copied. Anything between frames that does not start
+ * with {@code 0x01} is emitted as-is so it can still be relayed as raw data. The header is checked as it arrives, a
+ * {@code 0x01} not followed by a matching length pair and the three zero bytes is raw data too, so a stray one never
+ * holds back the stream while we wait for a frame that won't come.
+ * <p>
+ * Both the DVR and ESM legs hand us the stream wrapped in {@link HttpContent} once the HTTP preamble is done, so those are
+ * unwrapped here before being cumulated.
+ */
+public class PacketFrameDecoder extends ByteToMessageDecoder
+{
+	public static final byte FRAME_START = 0x01;
+	public static final int HEADER_LENGTH = 8;
+	
+	/**
+	 * Checks if the buffer starts with a whole March frame header. Does not change the readerIndex.
+	 */
+	public static boolean isFrame( ByteBuf buf )
+	{
+		return buf.readableBytes() >= HEADER_LENGTH && isHeader( buf, buf.readerIndex(), HEADER_LENGTH );
+	}
+	
+	/**
+	 * Checks the first bytes of a header, {@code 01 [len + 4] [len] 00 00 00}
+	 * 
+	 * @param length
+	 *            The number of header bytes at hand, at most {@link #HEADER_LENGTH}
+	 * @return false if those bytes can't be the start of a frame
+	 */
+	static boolean isHeader( ByteBuf buf, int start, int length )
+	{
+		if ( buf.getByte( start ) != FRAME_START )
+			return false;
+		
+		if ( length >= 3 && buf.getUnsignedShort( start + 1 ) < 4 )
+			return false;
+		
+		if ( length >= 5 && buf.getUnsignedShort( start + 1 ) != buf.getUnsignedShort( start + 3 ) + 4 )
+			return false;
+		
+		for ( int i = 5; i < length; i++ )
+			if ( buf.getByte( start + i ) != 0 )
+				return false;
+		
+		return true;
+	}
+	
+	@Override
+	public void channelRead( ChannelHandlerContext ctx, Object msg ) throws Exception
+	{
+		if ( msg instanceof HttpContent && ! ( msg instanceof HttpMessage ) )
+		{
+			HttpContent content = ( HttpContent ) msg;
+			ByteBuf buf = content.content().retain();
+			content.release();
+			super.channelRead( ctx, buf );
+		}
+		else
+			super.channelRead( ctx, msg );
+	}
+	
+	@Override
+	protected void decode( ChannelHandlerContext ctx, ByteBuf in, List<Object> out ) throws Exception
+	{
+		while ( in.isReadable() )
+		{
+			int start = in.readerIndex();
+			
+			int readable = in.readableBytes();
+			
+			if ( !isHeader( in, start, Math.min( readable, HEADER_LENGTH ) ) )
+			{
+				// Not a frame, pass along everything up to the next possible frame start
+				int length = readable > 1 ? in.bytesBefore( start + 1, readable - 1, FRAME_START ) : -1;
+				length = length < 0 ? readable : length + 1;
+				out.add( in.readSlice( length ).retain() );
+				continue;
+			}
+			
+			if ( readable < HEADER_LENGTH )
+				return;
+			
+			int frameLength = HEADER_LENGTH + in.getUnsignedShort( start + 3 );
+			
+			if ( readable < frameLength )
+				return;
+			
+			out.add( in.readSlice( frameLength ).retain() );
+		}
+	}
+}
@@ -7,7 +7,6 @@
 package com.chiorichan.packet;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 
 import java.util.Map;
 import java.util.Map.Entry;
@@ -25,14 +24,29 @@ public class PacketPayload extends PayloadValue
 		ROOT(), ASSOC_ARRAY();
 	}
 	
-	Map<String, PayloadValue> payload = Maps.newLinkedHashMap();
+	Map<String, PayloadValue> payload;
 	PayloadType type = PayloadType.ROOT;
 	int keyCounter = 0;
 	String previousKey = null;
 	
+	/**
+	 * Set on every change and propagated up to the root payload, see {@link Packet#isDirty()}
+	 */
+	boolean modified = false;
+	PacketPayload parent = null;
+	
 	protected PacketPayload()
 	{
-		
+		payload = Maps.newLinkedHashMap();
+	}
+	
+	/**
+	 * Used by {@link FlatPacketPayload}, which passes a null map and builds it on first change
+	 */
+	PacketPayload( Map<String, PayloadValue> payload, PayloadType type )
+	{
+		this.payload = payload;
+		this.type = type;
 	}
 	
 	public PacketPayload( Map<String, Object> payload )
@@ -66,29 +80,45 @@ public class PacketPayload extends PayloadValue
 	public void drop( String key )
 	{
 		payload.remove( key );
+		markModified();
 	}
 	
 	@Override
-	protected ByteBuf encode()
+	protected void encode( ByteBuf buf )
 	{
-		ByteBuf buf = Unpooled.buffer();
-		int sections = 0;
+		buf.writeByte( 0x0b );
+		buf.writeByte( payload.size() );
 		
 		for ( Entry<String, PayloadValue> e : payload.entrySet() )
 		{
-			sections++;
 			if ( !e.getKey().startsWith( "*" ) )
-				buf.writeBytes( new PayloadValue( e.getKey() ).encode() );
-			buf.writeBytes( e.getValue().encode() ); // TODO Encode keys
+				encode( buf, e.getKey().getBytes() );
+			e.getValue().encode( buf ); // TODO Encode keys
 		}
+	}
+	
+	@Override
+	protected int encodedLength()
+	{
+		int length = 2;
 		
-		ByteBuf fin = Unpooled.buffer();
-		
-		fin.writeByte( 0x0b );
-		fin.writeByte( sections );
-		fin.writeBytes( buf );
+		for ( Entry<String, PayloadValue> e : payload.entrySet() )
+		{
+			if ( !e.getKey().startsWith( "*" ) )
+				length += encodedLength( e.getKey().getBytes() );
+			length += e.getValue().encodedLength();
+		}
 		
-		return fin;
+		return length;
+	}
+	
+	/**
+	 * @return The bytes of the value under key, null if there is no such key
+	 */
+	public byte[] getBytes( String key )
+	{
+		PayloadValue val = getValue( key );
+		return val == null ? null : val.getBytes();
 	}
 	
 	public String getPreviousKey()
@@ -96,6 +126,15 @@ public class PacketPayload extends PayloadValue
 		return previousKey;
 	}
 	
+	/**
+	 * @return The value under key as a String, null if there is no such key
+	 */
+	public String getString( String key )
+	{
+		PayloadValue val = getValue( key );
+		return val == null ? null : val.getString();
+	}
+	
 	public PayloadValue getValue( String key )
 	{
 		return payload.get( key );
@@ -106,12 +145,20 @@ public class PacketPayload extends PayloadValue
 		return type == PayloadType.ASSOC_ARRAY;
 	}
 	
+	void markModified()
+	{
+		modified = true;
+		if ( parent != null )
+			parent.markModified();
+	}
+	
 	private void put( String key, PayloadValue val )
 	{
 		previousKey = key;
 		if ( val == null )
 			val = new PayloadValue();
 		payload.put( key, val );
+		markModified();
 	}
 	
 	public void putKey( String data )
@@ -122,6 +169,7 @@ public class PacketPayload extends PayloadValue
 	public PacketPayload putSubload( PayloadType type )
 	{
 		PacketPayload subload = new PacketPayloadChild( type );
+		subload.parent = this;
 		putValue( subload );
 		return subload;
 	}
@@ -134,6 +182,7 @@ public class PacketPayload extends PayloadValue
 	public PacketPayload putSubload( String key, PayloadType type )
 	{
 		PacketPayload subload = new PacketPayloadChild( type );
+		subload.parent = this;
 		put( key, subload );
 		return subload;
 	}
@@ -162,7 +211,7 @@ public class PacketPayload extends PayloadValue
 	
 	private void putValue0( PayloadValue data )
 	{
-		put( "*" + Integer.toString( keyCounter ), data );
+		put( PayloadSymbols.synthetic( keyCounter ), data );
 		keyCounter++;
 	}
 	
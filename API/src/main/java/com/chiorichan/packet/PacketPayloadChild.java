@@ -10,7 +10,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+
+import org.apache.commons.lang3.ArrayUtils;
 
 /**
  * 
@@ -19,6 +20,10 @@ import io.netty.buffer.Unpooled;
  */
 public class PacketPayloadChild extends PacketPayload
 {
+	static final byte[] ASSOC_ARRAY = "AssocArray".getBytes();
+	static final byte[] KEY_DEFAULT = "*default".getBytes();
+	static final byte[] KEY_END = "*end".getBytes();
+	
 	public PacketPayloadChild( Map<String, Object> payload )
 	{
 		super( payload );
@@ -30,38 +35,63 @@ public class PacketPayloadChild extends PacketPayload
 		this.type = type;
 	}
 	
-	@Override
-	protected ByteBuf encode()
+	/**
+	 * Writes the payload as an AssocArray, shared with {@link FlatPacketPayload} children
+	 */
+	static void encodeAssoc( PacketPayload payload, ByteBuf buf )
 	{
-		ByteBuf buf = Unpooled.buffer();
-		
-		String s = "";
-		if ( type == PayloadType.ASSOC_ARRAY )
-			s = "AssocArray";
+		byte[] s = payload.type == PayloadType.ASSOC_ARRAY ? ASSOC_ARRAY : ArrayUtils.EMPTY_BYTE_ARRAY;
 		
 		buf.writeByte( 0x09 );
-		buf.writeByte( s.length() );
-		buf.writeBytes( s.getBytes() );
+		buf.writeByte( s.length );
+		buf.writeBytes( s );
 		
-		buf.writeBytes( new PayloadValue( "*default" ).encode() );
+		encode( buf, KEY_DEFAULT );
 		
-		if ( getValue( "*default" ) == null )
+		if ( payload.getValue( "*default" ) == null )
 			buf.writeByte( 0x02 );
 		else
-			buf.writeBytes( getValue( "*default" ).encode() );
+			payload.getValue( "*default" ).encode( buf );
 		
-		for ( Entry<String, PayloadValue> e : payload.entrySet() )
+		for ( Entry<String, PayloadValue> e : payload.payload.entrySet() )
 			if ( !e.getKey().startsWith( "*" ) )
 			{
-				buf.writeBytes( new PayloadValue( e.getKey() ).encode() );
-				buf.writeBytes( e.getValue().encode() );
+				encode( buf, e.getKey().getBytes() );
+				e.getValue().encode( buf );
 			}
 		
 		buf.writeByte( 0x06 );
-		buf.writeByte( 0x04 );
-		buf.writeBytes( "*end".getBytes() );
+		buf.writeByte( KEY_END.length );
+		buf.writeBytes( KEY_END );
 		buf.writeByte( 0x0a );
+	}
+	
+	/**
+	 * Computes the length of {@link #encodeAssoc(PacketPayload, ByteBuf)}
+	 */
+	static int encodedAssocLength( PacketPayload payload )
+	{
+		int length = 2 + ( payload.type == PayloadType.ASSOC_ARRAY ? ASSOC_ARRAY.length : 0 );
+		
+		length += encodedLength( KEY_DEFAULT );
+		length += payload.getValue( "*default" ) == null ? 1 : payload.getValue( "*default" ).encodedLength();
+		
+		for ( Entry<String, PayloadValue> e : payload.payload.entrySet() )
+			if ( !e.getKey().startsWith( "*" ) )
+				length += encodedLength( e.getKey().getBytes() ) + e.getValue().encodedLength();
 		
-		return buf;
+		return length + 2 + KEY_END.length + 1;
+	}
+	
+	@Override
+	protected void encode( ByteBuf buf )
+	{
+		encodeAssoc( this, buf );
+	}
+	
+	@Override
+	protected int encodedLength()
+	{
+		return encodedAssocLength( this );
 	}
 }
@@ -0,0 +1,91 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Holds a constant packet encoded once into a read-only direct buffer.
+ * <p>
+ * Used for the control packets we send over and over again, like ping, pong and the 0x65 error responses.
+ * The shared buffer is unreleasable, so every send gets a cheap duplicate instead of a fresh encode.
+ */
+public class PacketTemplate
+{
+	private final ByteBuf encoded;
+	private final ByteBuf encodedWithoutId;
+	private final int packetIdIndex;
+	
+	/**
+	 * @param packet
+	 *            The packet to encode, if it has a packetId that id is only a placeholder patched by {@link #newInstance(byte[])}
+	 */
+	public PacketTemplate( Packet packet )
+	{
+		int length = packet.encodedLength();
+		ByteBuf buf = Unpooled.directBuffer( length, length );
+		packet.encode( buf );
+		
+		packetIdIndex = packet.packetIdIndex();
+		encoded = Unpooled.unreleasableBuffer( Unpooled.unmodifiableBuffer( buf ) );
+		
+		if ( packetIdIndex < 0 )
+			encodedWithoutId = encoded;
+		else
+		{
+			// Same frame with the 0x03 section cut out, used when the packet we respond to had no id
+			ByteBuf idless = Unpooled.directBuffer( length - 9, length - 9 );
+			idless.writeBytes( buf, 0, packetIdIndex - 1 );
+			idless.writeBytes( buf, packetIdIndex + 8, length - packetIdIndex - 8 );
+			idless.setShort( 1, idless.getShort( 1 ) - 9 );
+			idless.setShort( 3, idless.getShort( 3 ) - 9 );
+			idless.setByte( PacketFrameDecoder.HEADER_LENGTH + 1, idless.getByte( PacketFrameDecoder.HEADER_LENGTH + 1 ) - 1 );
+			encodedWithoutId = Unpooled.unreleasableBuffer( Unpooled.unmodifiableBuffer( idless ) );
+		}
+	}
+	
+	/**
+	 * Returns a duplicate sharing the encoded bytes, nothing is copied and it needs no release.
+	 */
+	public ByteBuf duplicate()
+	{
+		return encoded.duplicate();
+	}
+	
+	/**
+	 * Copies the template into a pooled direct buffer and patches the 8-byte packetId in place.
+	 *
+	 * @param packetId
+	 *            The packetId to put in place of the placeholder, when null a shared duplicate without the section is returned
+	 */
+	public ByteBuf newInstance( byte[] packetId )
+	{
+		if ( packetId == null )
+			return encodedWithoutId.duplicate();
+		
+		Validate.isTrue( packetIdIndex >= 0, "This template has no packetId to patch" );
+		Validate.isTrue( packetId.length == 8, "The packetId must be 8 bytes long" );
+		
+		ByteBuf buf = copy( encoded );
+		buf.setBytes( packetIdIndex, packetId );
+		return buf;
+	}
+	
+	private static ByteBuf copy( ByteBuf src )
+	{
+		int length = src.readableBytes();
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer( length, length );
+		buf.writeBytes( src, src.readerIndex(), length );
+		return buf;
+	}
+}
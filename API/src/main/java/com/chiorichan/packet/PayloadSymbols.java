@@ -0,0 +1,131 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.Charset;
+
+/**
+ * Canonical Strings for the payload keys and markers we see in nearly every frame.
+ * <p>
+ * Lookups hash the raw bytes in place into a small open addressed table, so known keys like {@code *default} or
+ * {@code loginParams} never get an intermediate byte array or String. The synthetic {@code *N} keys are cached as well.
+ */
+public final class PayloadSymbols
+{
+	private static final String[] SYMBOLS = new String[] {"*default", "*end", "AssocArray", "loginParams", "defaultAuthenticationMethod", "warnInactive", "login", "true", "false", "badCommand", "failed", "ping", "pong"};
+	private static final int MASK = 63;
+	
+	private static final String[] table = new String[MASK + 1];
+	private static final byte[][] tableBytes = new byte[MASK + 1][];
+	private static final String[] synthetic = new String[64];
+	
+	private static final int ASSOC_ARRAY;
+	
+	static
+	{
+		int assocArray = -1;
+		
+		for ( String symbol : SYMBOLS )
+		{
+			byte[] bytes = symbol.getBytes();
+			int slot = hash( bytes.length, bytes[0], bytes[bytes.length - 1] );
+			
+			while ( table[slot] != null )
+				slot = ( slot + 1 ) & MASK;
+			
+			table[slot] = symbol;
+			tableBytes[slot] = bytes;
+			
+			if ( "AssocArray".equals( symbol ) )
+				assocArray = slot;
+		}
+		
+		for ( int i = 0; i < synthetic.length; i++ )
+			synthetic[i] = "*" + Integer.toString( i );
+		
+		ASSOC_ARRAY = assocArray;
+	}
+	
+	private static int hash( int length, byte first, byte last )
+	{
+		return ( length * 31 + first * 7 + last ) & MASK;
+	}
+	
+	/**
+	 * Checks if the bytes spell the AssocArray marker that follows a 0x09
+	 */
+	public static boolean isAssocArray( ByteBuf buf, int index, int length )
+	{
+		return lookup0( buf, index, length ) == ASSOC_ARRAY;
+	}
+	
+	/**
+	 * @return The canonical String for the bytes, null if they are not a known symbol
+	 */
+	public static String lookup( ByteBuf buf, int index, int length )
+	{
+		int slot = lookup0( buf, index, length );
+		return slot < 0 ? null : table[slot];
+	}
+	
+	private static int lookup0( ByteBuf buf, int index, int length )
+	{
+		if ( length <= 0 )
+			return -1;
+		
+		int slot = hash( length, buf.getByte( index ), buf.getByte( index + length - 1 ) );
+		
+		for ( ; table[slot] != null; slot = ( slot + 1 ) & MASK )
+		{
+			byte[] bytes = tableBytes[slot];
+			
+			if ( bytes.length != length )
+				continue;
+			
+			int i = 0;
+			while ( i < length && buf.getByte( index + i ) == bytes[i] )
+				i++;
+			
+			if ( i == length )
+				return slot;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @return The synthetic key for the counter, as in {@code "*" + counter}
+	 */
+	public static String synthetic( int counter )
+	{
+		return counter < synthetic.length ? synthetic[counter] : "*" + Integer.toString( counter );
+	}
+	
+	/**
+	 * Same as {@code new String( bytes )}, but returns the canonical instance for known symbols
+	 */
+	public static String toString( ByteBuf buf, int index, int length )
+	{
+		String symbol = lookup( buf, index, length );
+		if ( symbol != null )
+			return symbol;
+		
+		// ByteBuf#toString() goes through a CharsetDecoder and a CharBuffer, this is a lot cheaper for short strings
+		byte[] bytes = new byte[length];
+		buf.getBytes( index, bytes );
+		return new String( bytes, Charset.defaultCharset() );
+	}
+	
+	private PayloadSymbols()
+	{
+		
+	}
+}
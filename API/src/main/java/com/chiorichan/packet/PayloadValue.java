@@ -37,6 +37,11 @@ public class PayloadValue
 	
 	Object value = null;
 	
+	/**
+	 * Caches the bytes of a STRING value, so sizing and encoding only convert once
+	 */
+	private byte[] stringBytes = null;
+	
 	public PayloadValue()
 	{
 		if ( this instanceof PacketPayload )
@@ -65,9 +70,45 @@ public class PayloadValue
 		return ( PacketPayload ) this;
 	}
 	
-	protected ByteBuf encode()
+	/**
+	 * Writes a single value section, used for both values and keys
+	 */
+	static void encode( ByteBuf buf, byte[] value )
 	{
-		ByteBuf buf = Unpooled.buffer();
+		if ( value.length == 0 )
+			buf.writeByte( 0x02 ); // empty
+		else if ( value.length == 1 && value[0] == 0x0a )
+			buf.writeByte( 0x0a );
+		else
+		{
+			buf.writeByte( 0x06 );
+			buf.writeByte( ( byte ) value.length );
+			buf.writeBytes( value );
+		}
+	}
+	
+	/**
+	 * Computes the length of {@link #encode(ByteBuf, byte[])}
+	 */
+	static int encodedLength( byte[] value )
+	{
+		if ( value.length == 0 || value.length == 1 && value[0] == 0x0a )
+			return 1;
+		return 2 + value.length;
+	}
+	
+	/**
+	 * Writes this value to the buffer, the number of bytes written always equals {@link #encodedLength()}
+	 */
+	protected void encode( ByteBuf buf )
+	{
+		if ( type == ValueType.LONG )
+		{
+			buf.writeByte( 0x03 );
+			buf.writeLong( ( Long ) value );
+			return;
+		}
+		
 		byte[] value = getBytes();
 		
 		if ( value == null )
@@ -79,24 +120,27 @@ public class PayloadValue
 				case FALSE:
 					buf.writeByte( 0x07 ); // false???
 					break;
+				default:
+					break;
 			}
-		else if ( value.length == 0 )
-			buf.writeByte( 0x02 ); // empty
-		else if ( value.length == 1 && value[0] == 0x0a )
-			buf.writeByte( 0x0a );
-		else if ( type == ValueType.LONG )
-		{
-			buf.writeByte( 0x03 );
-			buf.writeBytes( value );
-		}
 		else
-		{
-			buf.writeByte( 0x06 );
-			buf.writeByte( ( byte ) value.length );
-			buf.writeBytes( value );
-		}
+			encode( buf, value );
+	}
+	
+	/**
+	 * @return The exact number of bytes {@link #encode(ByteBuf)} will write
+	 */
+	protected int encodedLength()
+	{
+		if ( type == ValueType.LONG )
+			return 9;
 		
-		return buf;
+		byte[] value = getBytes();
+		
+		if ( value == null )
+			return type == ValueType.TRUE || type == ValueType.FALSE ? 1 : 0;
+		
+		return encodedLength( value );
 	}
 	
 	public boolean getBoolean()
@@ -110,12 +154,16 @@ public class PayloadValue
 			return ( byte[] ) value;
 		if ( type == ValueType.LONG )
 		{
-			ByteBuf buf = Unpooled.directBuffer( 8 );
+			ByteBuf buf = Unpooled.buffer( 8 );
 			buf.writeLong( ( Long ) value );
 			return buf.array();
 		}
 		if ( type == ValueType.STRING )
-			return ( ( String ) value ).getBytes();
+		{
+			if ( stringBytes == null )
+				stringBytes = ( ( String ) value ).getBytes();
+			return stringBytes;
+		}
 		return null;
 	}
 	
@@ -191,6 +239,7 @@ public class PayloadValue
 			return;
 		
 		value = val;
+		stringBytes = null;
 	}
 	
 	@Override
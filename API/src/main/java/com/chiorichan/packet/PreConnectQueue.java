@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Holds what a {@link MessageBus} is asked to send before its stream is started.
+ * <p>
+ * Packets and raw data share one queue so their order is kept. Everything is copied into exact-size pooled direct buffers,
+ * packets are encoded right away, so the queue never pins the cumulation buffers of the reading leg. The retained bytes are
+ * counted, and once they pass the limit the {@link Overflow} policy decides what happens.
+ */
+public class PreConnectQueue
+{
+	public enum Overflow
+	{
+		/**
+		 * Close the session
+		 */
+		CLOSE,
+		/**
+		 * Drop the oldest entries until we are within the limit again
+		 */
+		DROP_OLDEST,
+		/**
+		 * Stop reading from the peer leg until the queue is drained
+		 */
+		PAUSE_READ;
+	}
+	
+	private static volatile int defaultMaxBytes = 256 * 1024;
+	private static volatile Overflow defaultOverflow = Overflow.PAUSE_READ;
+	
+	private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+	private final Deque<ByteBuf> queue = new ArrayDeque<ByteBuf>();
+	private final int maxBytes;
+	private final Overflow overflow;
+	private int bytes = 0;
+	
+	public PreConnectQueue()
+	{
+		this( defaultMaxBytes, defaultOverflow );
+	}
+	
+	public PreConnectQueue( int maxBytes, Overflow overflow )
+	{
+		Validate.isTrue( maxBytes > 0, "The limit must be positive" );
+		Validate.notNull( overflow );
+		
+		this.maxBytes = maxBytes;
+		this.overflow = overflow;
+	}
+	
+	public static void setDefaults( int maxBytes, Overflow overflow )
+	{
+		Validate.isTrue( maxBytes > 0, "The limit must be positive" );
+		Validate.notNull( overflow );
+		
+		defaultMaxBytes = maxBytes;
+		defaultOverflow = overflow;
+	}
+	
+	/**
+	 * Copies the data to a pooled direct buffer, ownership of the data is passed to the queue
+	 *
+	 * @return false if the queue is over its limit and the {@link Overflow} policy has to be applied by the caller
+	 */
+	public synchronized boolean add( ByteBuf data )
+	{
+		ByteBuf buf = alloc.directBuffer( data.readableBytes(), data.readableBytes() );
+		buf.writeBytes( data, data.readerIndex(), data.readableBytes() );
+		data.release();
+		return add0( buf );
+	}
+	
+	/**
+	 * Encodes the packet to a pooled direct buffer, ownership of the packet is passed to the queue
+	 *
+	 * @return false if the queue is over its limit and the {@link Overflow} policy has to be applied by the caller
+	 */
+	public synchronized boolean add( Packet packet )
+	{
+		ByteBuf buf;
+		
+		if ( packet.isRelayable() )
+		{
+			ByteBuf frame = packet.retainedFrame();
+			buf = alloc.directBuffer( frame.readableBytes(), frame.readableBytes() );
+			buf.writeBytes( frame );
+			frame.release();
+		}
+		else
+		{
+			int length = packet.encodedLength();
+			buf = alloc.directBuffer( length, length );
+			packet.encode( buf );
+		}
+		
+		packet.release();
+		return add0( buf );
+	}
+	
+	private boolean add0( ByteBuf buf )
+	{
+		queue.add( buf );
+		bytes += buf.readableBytes();
+		
+		if ( bytes <= maxBytes )
+			return true;
+		
+		if ( overflow != Overflow.DROP_OLDEST )
+			return false;
+		
+		while ( bytes > maxBytes && queue.size() > 1 )
+		{
+			ByteBuf oldest = queue.poll();
+			bytes -= oldest.readableBytes();
+			oldest.release();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return The number of bytes retained by the queue
+	 */
+	public synchronized int bytes()
+	{
+		return bytes;
+	}
+	
+	/**
+	 * Releases everything in the queue
+	 */
+	public synchronized void clear()
+	{
+		for ( ByteBuf buf : queue )
+			buf.release();
+		queue.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * Writes everything in the queue to the stream in order and empties it, the caller flushes
+	 */
+	public synchronized void drainTo( MessageStream stream )
+	{
+		for ( ByteBuf buf : queue )
+			stream.write( buf );
+		queue.clear();
+		bytes = 0;
+	}
+	
+	public synchronized boolean isEmpty()
+	{
+		return queue.isEmpty();
+	}
+	
+	public int maxBytes()
+	{
+		return maxBytes;
+	}
+	
+	public Overflow overflow()
+	{
+		return overflow;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Runs the delegated tasks of {@link javax.net.ssl.SSLEngine} handshakes off the event loops.
+ * <p>
+ * The tasks hold the expensive RSA private key operations, run inline they stall every session on the loop. Here they run
+ * on a fixed number of daemon threads. At most {@code maxHandshakes} handshakes are admitted at a time, the others wait in
+ * order until one finishes, so a reconnect storm can't take all the CPU from the sessions already established.
+ */
+public class HandshakeExecutor implements Executor
+{
+	private final ThreadPoolExecutor executor;
+	private final int maxHandshakes;
+	private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+	private int admitted = 0;
+	
+	/**
+	 * @param threads
+	 *            The threads running delegated tasks
+	 * @param maxHandshakes
+	 *            The most handshakes admitted at a time
+	 */
+	public HandshakeExecutor( int threads, int maxHandshakes )
+	{
+		Validate.isTrue( threads > 0, "There must be at least one thread" );
+		Validate.isTrue( maxHandshakes > 0, "There must be room for at least one handshake" );
+		
+		this.maxHandshakes = maxHandshakes;
+		
+		executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread( Runnable r )
+			{
+				Thread thread = new Thread( r, "Handshake Executor #" + count.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		executor.allowCoreThreadTimeOut( true );
+	}
+	
+	/**
+	 * Admits a handshake, the callback runs right away if there is room or once an admitted handshake is released. Every
+	 * admitted handshake must be released exactly once.
+	 * <p>
+	 * The callback runs on whichever thread calls this or {@link #release()}, which may be the event loop of another
+	 * channel or a handshake thread. It must not block and should only hand the work on to its own event loop.
+	 */
+	public void admit( Runnable onAdmitted )
+	{
+		synchronized ( waiting )
+		{
+			if ( admitted >= maxHandshakes )
+			{
+				waiting.add( onAdmitted );
+				return;
+			}
+			admitted++;
+		}
+		
+		onAdmitted.run();
+	}
+	
+	@Override
+	public void execute( Runnable task )
+	{
+		executor.execute( task );
+	}
+	
+	/**
+	 * @return The number of handshakes admitted right now
+	 */
+	public int getAdmitted()
+	{
+		synchronized ( waiting )
+		{
+			return admitted;
+		}
+	}
+	
+	public int getMaxHandshakes()
+	{
+		return maxHandshakes;
+	}
+	
+	/**
+	 * @return The number of handshakes waiting to be admitted
+	 */
+	public int getWaiting()
+	{
+		synchronized ( waiting )
+		{
+			return waiting.size();
+		}
+	}
+	
+	/**
+	 * Releases an admitted handshake, its room is passed to the longest waiting one whose callback runs on this thread
+	 * before this returns
+	 */
+	public void release()
+	{
+		Runnable next;
+		
+		synchronized ( waiting )
+		{
+			next = waiting.poll();
+			if ( next == null )
+				admitted--;
+		}
+		
+		if ( next != null )
+			next.run();
+	}
+}
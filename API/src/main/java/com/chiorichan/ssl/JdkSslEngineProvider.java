@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import io.netty.buffer.ByteBufAllocator;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Creates engines from a JDK {@link SSLContext}, the default provider of both legs
+ */
+public class JdkSslEngineProvider implements SslEngineProvider
+{
+	private final SSLContext context;
+	private final boolean client;
+	private final TlsProfile profile;
+	
+	public JdkSslEngineProvider( SSLContext context, boolean client, TlsProfile profile )
+	{
+		Validate.notNull( context );
+		Validate.notNull( profile );
+		
+		this.context = context;
+		this.client = client;
+		this.profile = profile;
+	}
+	
+	@Override
+	public SSLEngine newEngine( ByteBufAllocator alloc, String peerHost, int peerPort )
+	{
+		SSLEngine engine = peerHost == null ? context.createSSLEngine() : context.createSSLEngine( peerHost, peerPort );
+		engine.setUseClientMode( client );
+		profile.apply( engine );
+		
+		if ( !client )
+		{
+			// Pick the suite in the order of the profile rather than the DVR's, so AES-GCM wins over RC4
+			SSLParameters params = engine.getSSLParameters();
+			params.setUseCipherSuitesOrder( true );
+			engine.setSSLParameters( params );
+		}
+		
+		return engine;
+	}
+	
+	@Override
+	public TlsProfile profile()
+	{
+		return profile;
+	}
+}
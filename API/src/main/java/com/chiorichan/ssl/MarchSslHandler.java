@@ -21,7 +21,6 @@ import io.netty.channel.PendingWriteQueue;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.ssl.NotSslRecordException;
 import io.netty.handler.ssl.OpenSslEngine;
-import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.EventExecutor;
@@ -39,6 +38,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -50,26 +50,46 @@ import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
 
-public class TestSslHandler extends ByteToMessageDecoder
+import com.chiorichan.util.NetMetrics;
+
+/**
+ * The TLS handler of both legs, derived from Netty's SslHandler.
+ * <p>
+ * Besides the handshake and close_notify timeouts it takes the outbound buffer sizing and the cumulator, which are
+ * otherwise picked for the engine. Every setting has a default for the handlers created from now on, set once at startup.
+ */
+public class MarchSslHandler extends ByteToMessageDecoder
 {
+	private final class LazyChannelPromise extends DefaultPromise<Channel>
+	{
+		
+		@Override
+		protected EventExecutor executor()
+		{
+			if ( ctx == null )
+				throw new IllegalStateException();
+			return ctx.executor();
+		}
+	}
 	private static final int MAX_PLAINTEXT_LENGTH = 16 * 1024; // 2^14
 	private static final int MAX_COMPRESSED_LENGTH = MAX_PLAINTEXT_LENGTH + 1024;
 	private static final int MAX_CIPHERTEXT_LENGTH = MAX_COMPRESSED_LENGTH + 1024;
 	static final int MAX_ENCRYPTED_PACKET_LENGTH = MAX_CIPHERTEXT_LENGTH + 5 + 20 + 256;
-	static final int MAX_ENCRYPTION_OVERHEAD_LENGTH = MAX_ENCRYPTED_PACKET_LENGTH - MAX_PLAINTEXT_LENGTH;
 	
 	
-	private static final InternalLogger logger = InternalLoggerFactory.getInstance( SslHandler.class );
+	static final int MAX_ENCRYPTION_OVERHEAD_LENGTH = MAX_ENCRYPTED_PACKET_LENGTH - MAX_PLAINTEXT_LENGTH;
 	
+	private static final InternalLogger logger = InternalLoggerFactory.getInstance( MarchSslHandler.class );
 	private static final Pattern IGNORABLE_CLASS_IN_STACK = Pattern.compile( "^.*(?:Socket|Datagram|Sctp|Udt)Channel.*$" );
-	private static final Pattern IGNORABLE_ERROR_MESSAGE = Pattern.compile( "^.*(?:connection.*(?:reset|closed|abort|broken)|broken.*pipe).*$", Pattern.CASE_INSENSITIVE );
 	
+	private static final Pattern IGNORABLE_ERROR_MESSAGE = Pattern.compile( "^.*(?:connection.*(?:reset|closed|abort|broken)|broken.*pipe).*$", Pattern.CASE_INSENSITIVE );
 	/**
 	 * Used in {@link #unwrapNonAppData(ChannelHandlerContext)} as input for {@link #unwrap(ChannelHandlerContext, ByteBuf, int, int)}. Using this static instance reduce object
 	 * creation as {@link Unpooled#EMPTY_BUFFER#nioBuffer()} creates a new {@link ByteBuffer} everytime.
 	 */
 	private static final SSLException SSLENGINE_CLOSED = new SSLException( "SSLEngine closed already" );
 	private static final SSLException HANDSHAKE_TIMED_OUT = new SSLException( "handshake timed out" );
+	
 	private static final ClosedChannelException CHANNEL_CLOSED = new ClosedChannelException();
 	
 	static
@@ -78,19 +98,18 @@ public class TestSslHandler extends ByteToMessageDecoder
 		HANDSHAKE_TIMED_OUT.setStackTrace( EmptyArrays.EMPTY_STACK_TRACE );
 		CHANNEL_CLOSED.setStackTrace( EmptyArrays.EMPTY_STACK_TRACE );
 	}
-	
 	private volatile ChannelHandlerContext ctx;
 	private final SSLEngine engine;
+	
 	private final int maxPacketBufferSize;
 	
+	// BEGIN Platform-dependent flags
+	
 	/**
 	 * Used if {@link SSLEngine#wrap(ByteBuffer[], ByteBuffer)} and {@link SSLEngine#unwrap(ByteBuffer, ByteBuffer[])} should be called with a {@link ByteBuf} that is only backed by one {@link ByteBuffer} to reduce the object
 	 * creation.
 	 */
 	private final ByteBuffer[] singleBuffer = new ByteBuffer[1];
-	
-	// BEGIN Platform-dependent flags
-	
 	/**
 	 * {@code true} if and only if {@link SSLEngine} expects a direct buffer.
 	 */
@@ -102,23 +121,64 @@ public class TestSslHandler extends ByteToMessageDecoder
 	 * If this flag is {@code false}, we allocate a smaller output buffer.
 	 * </p>
 	 */
-	private final boolean wantsLargeOutboundNetworkBuffer;
+	private boolean wantsLargeOutboundNetworkBuffer;
+	
+	// END Platform-dependent flags
+	
 	/**
 	 * {@code true} if and only if {@link SSLEngine#unwrap(ByteBuffer, ByteBuffer)} expects a heap buffer rather than
 	 * a direct buffer. For an unknown reason, JDK8 SSLEngine causes JVM to crash when its cipher suite uses Galois
 	 * Counter Mode (GCM).
 	 */
 	private boolean wantsInboundHeapBuffer;
-	
-	// END Platform-dependent flags
-	
 	private final boolean startTls;
 	private boolean sentFirstMessage;
 	private boolean flushedBeforeHandshake;
 	private boolean readDuringHandshake;
+	
+	private static final int ADMISSION_NONE = 0;
+	private static final int ADMISSION_WAITING = 1;
+	private static final int ADMISSION_GRANTED = 2;
+	
+	private static volatile HandshakeExecutor defaultHandshakeExecutor = null;
+	private HandshakeExecutor handshakeExecutor = defaultHandshakeExecutor;
+	private int admission = ADMISSION_NONE;
+	
+	/**
+	 * Set while the delegated tasks run on the {@link #handshakeExecutor}, decoding waits until they are done.
+	 */
+	private boolean processTask;
+	
 	private PendingWriteQueue pendingUnencryptedWrites;
 	
+	private static volatile long defaultCoalesceDelayMillis = 0;
+	private static volatile long defaultHandshakeTimeoutMillis = 10000;
+	private static volatile long defaultCloseNotifyTimeoutMillis = 3000;
+	private static volatile Boolean defaultLargeOutboundBuffers = null;
+	private static volatile Cumulator defaultCumulator = null;
+	
+	private long coalesceDelayMillis = defaultCoalesceDelayMillis;
+	
+	/**
+	 * Small writes taken off {@link #pendingUnencryptedWrites} and copied together, so they go out as one TLS record
+	 */
+	private ByteBuf coalesced;
+	private ChannelPromise coalescedPromise;
+	
+	/**
+	 * Plaintext bytes queued or coalesced that the engine has not consumed yet, used to decide if a flush can wait for the
+	 * coalesce deadline
+	 */
+	private int pendingBytes;
+	private ScheduledFuture<?> coalesceDeadline;
+	
+	/**
+	 * Set once the close_notify is queued, flushes then go out right away. {@link SSLEngine#isOutboundDone()} is no use
+	 * for this, it only turns true after the close_notify was wrapped.
+	 */
+	private boolean outboundClosed;
 	private Promise<Channel> handshakePromise = new LazyChannelPromise();
+	
 	private final LazyChannelPromise sslCloseFuture = new LazyChannelPromise();
 	
 	/**
@@ -127,9 +187,9 @@ public class TestSslHandler extends ByteToMessageDecoder
 	private boolean needsFlush;
 	
 	private int packetLength;
+	private volatile long handshakeTimeoutMillis = defaultHandshakeTimeoutMillis;
 	
-	private volatile long handshakeTimeoutMillis = 10000;
-	private volatile long closeNotifyTimeoutMillis = 3000;
+	private volatile long closeNotifyTimeoutMillis = defaultCloseNotifyTimeoutMillis;
 	
 	/**
 	 * Creates a new instance.
@@ -137,7 +197,7 @@ public class TestSslHandler extends ByteToMessageDecoder
 	 * @param engine
 	 *            the {@link SSLEngine} this handler will use
 	 */
-	public TestSslHandler( SSLEngine engine )
+	public MarchSslHandler( SSLEngine engine )
 	{
 		this( engine, false );
 	}
@@ -151,19 +211,19 @@ public class TestSslHandler extends ByteToMessageDecoder
 	 *            {@code true} if the first write request shouldn't be
 	 *            encrypted by the {@link SSLEngine}
 	 */
-	public TestSslHandler( SSLEngine engine, boolean startTls )
+	public MarchSslHandler( SSLEngine engine, boolean startTls )
 	{
 		if ( engine == null )
-		{
 			throw new NullPointerException( "engine" );
-		}
 		this.engine = engine;
 		this.startTls = startTls;
 		maxPacketBufferSize = engine.getSession().getPacketBufferSize();
 		
 		boolean opensslEngine = engine instanceof OpenSslEngine;
 		wantsDirectBuffer = opensslEngine;
-		wantsLargeOutboundNetworkBuffer = !opensslEngine;
+		
+		Boolean largeOutboundBuffers = defaultLargeOutboundBuffers;
+		wantsLargeOutboundNetworkBuffer = largeOutboundBuffers == null ? !opensslEngine : largeOutboundBuffers;
 		
 		/**
 		 * When using JDK {@link SSLEngine}, we use {@link #MERGE_CUMULATOR} because it works only with
@@ -172,74 +232,226 @@ public class TestSslHandler extends ByteToMessageDecoder
 		 * When using {@link OpenSslEngine}, we can use {@link #COMPOSITE_CUMULATOR} because it has {@link OpenSslEngine#unwrap(ByteBuffer[], ByteBuffer[])} which works with multiple {@link ByteBuffer}s
 		 * and which does not need to do extra memory copies.
 		 */
-		setCumulator( opensslEngine ? COMPOSITE_CUMULATOR : MERGE_CUMULATOR );
-	}
-	
-	public long getHandshakeTimeoutMillis()
-	{
-		return handshakeTimeoutMillis;
+		Cumulator cumulator = defaultCumulator;
+		if ( cumulator == null )
+			cumulator = opensslEngine ? COMPOSITE_CUMULATOR : MERGE_CUMULATOR;
+		setCumulator( cumulator );
 	}
 	
-	public void setHandshakeTimeout( long handshakeTimeout, TimeUnit unit )
+	/**
+	 * Return how much bytes can be read out of the encrypted data. Be aware that this method will not increase
+	 * the readerIndex of the given {@link ByteBuf}.
+	 *
+	 * @param buffer
+	 *            The {@link ByteBuf} to read from. Be aware that it must have at least 5 bytes to read,
+	 *            otherwise it will throw an {@link IllegalArgumentException}.
+	 * @return length
+	 *         The length of the encrypted packet that is included in the buffer. This will
+	 *         return {@code -1} if the given {@link ByteBuf} is not encrypted at all.
+	 * @throws IllegalArgumentException
+	 *             Is thrown if the given {@link ByteBuf} has not at least 5 bytes to read.
+	 */
+	private static int getEncryptedPacketLength( ByteBuf buffer, int offset )
 	{
-		if ( unit == null )
+		int packetLength = 0;
+		
+		// SSLv3 or TLS - Check ContentType
+		boolean tls;
+		switch ( buffer.getUnsignedByte( offset ) )
 		{
-			throw new NullPointerException( "unit" );
+			case 20: // change_cipher_spec
+			case 21: // alert
+			case 22: // handshake
+			case 23: // application_data
+				tls = true;
+				break;
+			default:
+				// SSLv2 or bad data
+				tls = false;
 		}
 		
-		setHandshakeTimeoutMillis( unit.toMillis( handshakeTimeout ) );
+		if ( tls )
+		{
+			// SSLv3 or TLS - Check ProtocolVersion
+			int majorVersion = buffer.getUnsignedByte( offset + 1 );
+			if ( majorVersion == 3 )
+			{
+				// SSLv3 or TLS
+				packetLength = buffer.getUnsignedShort( offset + 3 ) + 5;
+				if ( packetLength <= 5 )
+					// Neither SSLv3 or TLSv1 (i.e. SSLv2 or bad data)
+					tls = false;
+			}
+			else
+				// Neither SSLv3 or TLSv1 (i.e. SSLv2 or bad data)
+				tls = false;
+		}
+		
+		if ( !tls )
+		{
+			// SSLv2 or bad data - Check the version
+			boolean sslv2 = true;
+			int headerLength = ( buffer.getUnsignedByte( offset ) & 0x80 ) != 0 ? 2 : 3;
+			int majorVersion = buffer.getUnsignedByte( offset + headerLength + 1 );
+			if ( majorVersion == 2 || majorVersion == 3 )
+			{
+				// SSLv2
+				if ( headerLength == 2 )
+					packetLength = ( buffer.getShort( offset ) & 0x7FFF ) + 2;
+				else
+					packetLength = ( buffer.getShort( offset ) & 0x3FFF ) + 3;
+				if ( packetLength <= headerLength )
+					sslv2 = false;
+			}
+			else
+				sslv2 = false;
+			
+			if ( !sslv2 )
+				return -1;
+		}
+		return packetLength;
 	}
 	
-	public void setHandshakeTimeoutMillis( long handshakeTimeoutMillis )
+	/**
+	 * Returns {@code true} if the given {@link ByteBuf} is encrypted. Be aware that this method
+	 * will not increase the readerIndex of the given {@link ByteBuf}.
+	 *
+	 * @param buffer
+	 *            The {@link ByteBuf} to read from. Be aware that it must have at least 5 bytes to read,
+	 *            otherwise it will throw an {@link IllegalArgumentException}.
+	 * @return encrypted {@code true} if the {@link ByteBuf} is encrypted, {@code false} otherwise.
+	 * @throws IllegalArgumentException
+	 *             Is thrown if the given {@link ByteBuf} has not at least 5 bytes to read.
+	 */
+	public static boolean isEncrypted( ByteBuf buffer )
 	{
-		if ( handshakeTimeoutMillis < 0 )
-		{
-			throw new IllegalArgumentException( "handshakeTimeoutMillis: " + handshakeTimeoutMillis + " (expected: >= 0)" );
-		}
-		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+		if ( buffer.readableBytes() < 5 )
+			throw new IllegalArgumentException( "buffer must have at least 5 readable bytes" );
+		return getEncryptedPacketLength( buffer, buffer.readerIndex() ) != -1;
 	}
 	
-	public long getCloseNotifyTimeoutMillis()
+	/**
+	 * Always prefer a direct buffer when it's pooled, so that we reduce the number of memory copies
+	 * in {@link OpenSslEngine}.
+	 */
+	private ByteBuf allocate( ChannelHandlerContext ctx, int capacity )
 	{
-		return closeNotifyTimeoutMillis;
+		ByteBufAllocator alloc = ctx.alloc();
+		if ( wantsDirectBuffer )
+			return alloc.directBuffer( capacity );
+		else
+			return alloc.buffer( capacity );
 	}
 	
-	public void setCloseNotifyTimeout( long closeNotifyTimeout, TimeUnit unit )
+	/**
+	 * Allocates an outbound network buffer for {@link SSLEngine#wrap(ByteBuffer, ByteBuffer)} which can encrypt
+	 * the specified amount of pending bytes. Always direct, so the transport writes it without another copy.
+	 */
+	private ByteBuf allocateOutNetBuf( ChannelHandlerContext ctx, int pendingBytes )
 	{
-		if ( unit == null )
+		if ( wantsLargeOutboundNetworkBuffer )
+			return ctx.alloc().directBuffer( maxPacketBufferSize );
+		else
+			return ctx.alloc().directBuffer( Math.min( pendingBytes + MAX_ENCRYPTION_OVERHEAD_LENGTH, maxPacketBufferSize ) );
+	}
+	
+	/**
+	 * Copies the small writes at the head of the queue into one pooled direct buffer holding at most one TLS record of
+	 * plaintext, so they are wrapped into a single record instead of one record, MAC and header each.
+	 */
+	private void coalesce( ChannelHandlerContext ctx )
+	{
+		ByteBuf merged = ctx.alloc().directBuffer( MAX_PLAINTEXT_LENGTH );
+		final List<ChannelPromise> promises = new ArrayList<ChannelPromise>();
+		
+		for ( ;; )
 		{
-			throw new NullPointerException( "unit" );
+			Object msg = pendingUnencryptedWrites.current();
+			if ( ! ( msg instanceof ByteBuf ) )
+				break;
+			
+			ByteBuf buf = ( ByteBuf ) msg;
+			if ( buf.readableBytes() > merged.writableBytes() )
+				break;
+			
+			merged.writeBytes( buf, buf.readerIndex(), buf.readableBytes() );
+			promises.add( pendingUnencryptedWrites.remove() );
 		}
 		
-		setCloseNotifyTimeoutMillis( unit.toMillis( closeNotifyTimeout ) );
+		coalesced = merged;
+		
+		if ( promises.size() == 1 )
+			coalescedPromise = promises.get( 0 );
+		else
+		{
+			coalescedPromise = ctx.newPromise();
+			coalescedPromise.addListener( new ChannelFutureListener()
+			{
+				@Override
+				public void operationComplete( ChannelFuture future )
+				{
+					for ( ChannelPromise promise : promises )
+						if ( future.isSuccess() )
+							promise.trySuccess();
+						else
+							promise.tryFailure( future.cause() );
+				}
+			} );
+		}
 	}
 	
-	public void setCloseNotifyTimeoutMillis( long closeNotifyTimeoutMillis )
+	/**
+	 * Fails the pending writes, including those already coalesced
+	 */
+	private void failPendingWrites( Throwable cause )
 	{
-		if ( closeNotifyTimeoutMillis < 0 )
+		if ( coalesced != null )
 		{
-			throw new IllegalArgumentException( "closeNotifyTimeoutMillis: " + closeNotifyTimeoutMillis + " (expected: >= 0)" );
+			coalesced.release();
+			coalesced = null;
+			coalescedPromise.tryFailure( cause );
+			coalescedPromise = null;
 		}
-		this.closeNotifyTimeoutMillis = closeNotifyTimeoutMillis;
+		
+		pendingUnencryptedWrites.removeAndFailAll( cause );
+		pendingBytes = 0;
 	}
 	
 	/**
-	 * Returns the {@link SSLEngine} which is used by this handler.
+	 * Issues an initial TLS handshake once connected when used in client-mode
 	 */
-	public SSLEngine engine()
+	@Override
+	public void channelActive( final ChannelHandlerContext ctx ) throws Exception
 	{
-		return engine;
+		if ( !startTls && engine.getUseClientMode() )
+			// Begin the initial handshake
+			handshake( null );
+		ctx.fireChannelActive();
 	}
 	
-	/**
-	 * Returns a {@link Future} that will get notified once the current TLS handshake completes.
-	 *
-	 * @return the {@link Future} for the iniital TLS handshake if {@link #renegotiate()} was not invoked.
-	 *         The {@link Future} for the most recent {@linkplain #renegotiate() TLS renegotiation} otherwise.
-	 */
-	public Future<Channel> handshakeFuture()
+	@Override
+	public void channelInactive( ChannelHandlerContext ctx ) throws Exception
 	{
-		return handshakePromise;
+		// Make sure to release SSLEngine,
+		// and notify the handshake future if the connection has been closed during handshake.
+		setHandshakeFailure( ctx, CHANNEL_CLOSED );
+		super.channelInactive( ctx );
+	}
+	
+	@Override
+	public void channelReadComplete( ChannelHandlerContext ctx ) throws Exception
+	{
+		if ( needsFlush )
+		{
+			needsFlush = false;
+			ctx.flush();
+		}
+		
+		// If handshake is not finished yet, we need more data.
+		if ( !handshakePromise.isDone() && !ctx.channel().config().isAutoRead() )
+			ctx.read();
+		
+		ctx.fireChannelReadComplete();
 	}
 	
 	/**
@@ -251,6 +463,12 @@ public class TestSslHandler extends ByteToMessageDecoder
 		return close( ctx.newPromise() );
 	}
 	
+	@Override
+	public void close( final ChannelHandlerContext ctx, final ChannelPromise promise ) throws Exception
+	{
+		closeOutboundAndChannel( ctx, promise, false );
+	}
+	
 	/**
 	 * See {@link #close()}
 	 */
@@ -263,6 +481,7 @@ public class TestSslHandler extends ByteToMessageDecoder
 			public void run()
 			{
 				engine.closeOutbound();
+				outboundClosed = true;
 				try
 				{
 					write( ctx, Unpooled.EMPTY_BUFFER, future );
@@ -271,9 +490,7 @@ public class TestSslHandler extends ByteToMessageDecoder
 				catch ( Exception e )
 				{
 					if ( !future.tryFailure( e ) )
-					{
 						logger.warn( "{} flush() raised a masked exception.", ctx.channel(), e );
-					}
 				}
 			}
 		} );
@@ -281,25 +498,129 @@ public class TestSslHandler extends ByteToMessageDecoder
 		return future;
 	}
 	
-	/**
-	 * Return the {@link Future} that will get notified if the inbound of the {@link SSLEngine} is closed.
-	 *
-	 * This method will return the same {@link Future} all the time.
-	 *
-	 * @see SSLEngine
-	 */
-	public Future<Channel> sslCloseFuture()
+	private void closeOutboundAndChannel( final ChannelHandlerContext ctx, final ChannelPromise promise, boolean disconnect ) throws Exception
 	{
-		return sslCloseFuture;
+		if ( !ctx.channel().isActive() )
+		{
+			if ( disconnect )
+				ctx.disconnect( promise );
+			else
+				ctx.close( promise );
+			return;
+		}
+		
+		engine.closeOutbound();
+		outboundClosed = true;
+		
+		ChannelPromise closeNotifyFuture = ctx.newPromise();
+		write( ctx, Unpooled.EMPTY_BUFFER, closeNotifyFuture );
+		flush( ctx );
+		safeClose( ctx, closeNotifyFuture, promise );
 	}
 	
 	@Override
-	public void handlerRemoved0( ChannelHandlerContext ctx ) throws Exception
+	protected void decode( ChannelHandlerContext ctx, ByteBuf in, List<Object> out ) throws SSLException
 	{
-		if ( !pendingUnencryptedWrites.isEmpty() )
+		// The cumulation keeps what we receive while the delegated tasks run
+		if ( processTask )
+			return;
+		
+		final int startOffset = in.readerIndex();
+		final int endOffset = in.writerIndex();
+		int offset = startOffset;
+		int totalLength = 0;
+		
+		// If we calculated the length of the current SSL record before, use that information.
+		if ( packetLength > 0 )
+			if ( endOffset - startOffset < packetLength )
+				return;
+			else
+			{
+				offset += packetLength;
+				totalLength = packetLength;
+				packetLength = 0;
+			}
+		
+		boolean nonSslRecord = false;
+		
+		while ( totalLength < MAX_ENCRYPTED_PACKET_LENGTH )
 		{
-			// Check if queue is not empty first because create a new ChannelException is expensive
-			pendingUnencryptedWrites.removeAndFailAll( new ChannelException( "Pending write on removal of SslHandler" ) );
+			final int readableBytes = endOffset - offset;
+			if ( readableBytes < 5 )
+				break;
+			
+			final int packetLength = getEncryptedPacketLength( in, offset );
+			if ( packetLength == -1 )
+			{
+				nonSslRecord = true;
+				break;
+			}
+			
+			assert packetLength > 0;
+			
+			if ( packetLength > readableBytes )
+			{
+				// wait until the whole packet can be read
+				this.packetLength = packetLength;
+				break;
+			}
+			
+			int newTotalLength = totalLength + packetLength;
+			if ( newTotalLength > MAX_ENCRYPTED_PACKET_LENGTH )
+				// Don't read too much.
+				break;
+			
+			// We have a whole packet.
+			// Increment the offset to handle the next packet.
+			offset += packetLength;
+			totalLength = newTotalLength;
+		}
+		
+		if ( totalLength > 0 )
+		{
+			// The buffer contains one or more full SSL records.
+			// Slice out the whole packet so unwrap will only be called with complete packets.
+			// Also directly reset the packetLength. This is needed as unwrap(..) may trigger
+			// decode(...) again via:
+			// 1) unwrap(..) is called
+			// 2) wrap(...) is called from within unwrap(...)
+			// 3) wrap(...) calls unwrapLater(...)
+			// 4) unwrapLater(...) calls decode(...)
+			//
+			// See https://github.com/netty/netty/issues/1534
+			
+			in.skipBytes( totalLength );
+			int remaining;
+			
+			// If SSLEngine expects a heap buffer for unwrapping, do the conversion.
+			if ( in.isDirect() && wantsInboundHeapBuffer )
+			{
+				ByteBuf copy = ctx.alloc().heapBuffer( totalLength );
+				try
+				{
+					copy.writeBytes( in, startOffset, totalLength );
+					remaining = unwrap( ctx, copy, 0, totalLength );
+				}
+				finally
+				{
+					copy.release();
+				}
+			}
+			else
+				remaining = unwrap( ctx, in, startOffset, totalLength );
+			
+			// Hand the records not unwrapped yet back to the cumulation, they are decoded once the delegated tasks are done
+			if ( remaining > 0 )
+				in.readerIndex( in.readerIndex() - remaining );
+		}
+		
+		if ( nonSslRecord )
+		{
+			// Not an SSL/TLS packet
+			NotSslRecordException e = new NotSslRecordException( "not an SSL/TLS record: " + ByteBufUtil.hexDump( in ) );
+			in.skipBytes( in.readableBytes() );
+			ctx.fireExceptionCaught( e );
+			setHandshakeFailure( ctx, e );
 		}
 	}
 	
@@ -309,27 +630,50 @@ public class TestSslHandler extends ByteToMessageDecoder
 		closeOutboundAndChannel( ctx, promise, true );
 	}
 	
-	@Override
-	public void close( final ChannelHandlerContext ctx, final ChannelPromise promise ) throws Exception
+	/**
+	 * Returns the {@link SSLEngine} which is used by this handler.
+	 */
+	public SSLEngine engine()
 	{
-		closeOutboundAndChannel( ctx, promise, false );
+		return engine;
 	}
 	
 	@Override
-	public void read( ChannelHandlerContext ctx ) throws Exception
+	public void exceptionCaught( ChannelHandlerContext ctx, Throwable cause ) throws Exception
 	{
-		if ( !handshakePromise.isDone() )
+		if ( ignoreException( cause ) )
 		{
-			readDuringHandshake = true;
+			// It is safe to ignore the 'connection reset by peer' or
+			// 'broken pipe' error after sending close_notify.
+			if ( logger.isDebugEnabled() )
+				logger.debug( "{} Swallowing a harmless 'connection reset by peer / broken pipe' error that occurred " + "while writing close_notify in response to the peer's close_notify", ctx.channel(), cause );
+			
+			// Close the connection explicitly just in case the transport
+			// did not close the connection automatically.
+			if ( ctx.channel().isActive() )
+				ctx.close();
 		}
-		
-		ctx.read();
+		else
+			ctx.fireExceptionCaught( cause );
 	}
 	
-	@Override
-	public void write( final ChannelHandlerContext ctx, Object msg, ChannelPromise promise ) throws Exception
+	private void finishWrap( ChannelHandlerContext ctx, ByteBuf out, ChannelPromise promise, boolean inUnwrap )
 	{
-		pendingUnencryptedWrites.add( msg, promise );
+		if ( out == null )
+			out = Unpooled.EMPTY_BUFFER;
+		else if ( !out.isReadable() )
+		{
+			out.release();
+			out = Unpooled.EMPTY_BUFFER;
+		}
+		
+		if ( promise != null )
+			ctx.write( out, promise );
+		else
+			ctx.write( out );
+		
+		if ( inUnwrap )
+			needsFlush = true;
 	}
 	
 	@Override
@@ -341,318 +685,190 @@ public class TestSslHandler extends ByteToMessageDecoder
 		{
 			sentFirstMessage = true;
 			pendingUnencryptedWrites.removeAndWriteAll();
+			pendingBytes = 0;
 			ctx.flush();
 			return;
 		}
 		if ( pendingUnencryptedWrites.isEmpty() )
-		{
 			// It's important to NOT use a voidPromise here as the user
 			// may want to add a ChannelFutureListener to the ChannelPromise later.
 			//
 			// See https://github.com/netty/netty/issues/3364
 			pendingUnencryptedWrites.add( Unpooled.EMPTY_BUFFER, ctx.newPromise() );
-		}
 		if ( !handshakePromise.isDone() )
-		{
 			flushedBeforeHandshake = true;
+		else if ( coalesceDelayMillis > 0 && pendingBytes < MAX_PLAINTEXT_LENGTH && !outboundClosed )
+		{
+			// Not a full record yet, give more writes until the deadline to join it
+			scheduleCoalesceDeadline( ctx );
+			return;
+		}
+		
+		// Going out now, the close_notify included, so the deadline has nothing left to do
+		if ( coalesceDeadline != null )
+		{
+			coalesceDeadline.cancel( false );
+			coalesceDeadline = null;
 		}
+		
 		wrap( ctx, false );
 		ctx.flush();
 	}
 	
-	private void wrap( ChannelHandlerContext ctx, boolean inUnwrap ) throws SSLException
+	private void scheduleCoalesceDeadline( final ChannelHandlerContext ctx )
 	{
-		ByteBuf out = null;
-		ChannelPromise promise = null;
-		ByteBufAllocator alloc = ctx.alloc();
-		try
+		if ( coalesceDeadline != null )
+			return;
+		
+		coalesceDeadline = ctx.executor().schedule( new Runnable()
 		{
-			for ( ;; )
+			@Override
+			public void run()
 			{
-				Object msg = pendingUnencryptedWrites.current();
-				if ( msg == null )
-				{
-					break;
-				}
-				
-				if ( ! ( msg instanceof ByteBuf ) )
-				{
-					pendingUnencryptedWrites.removeAndWrite();
-					continue;
-				}
-				
-				ByteBuf buf = ( ByteBuf ) msg;
-				if ( out == null )
-				{
-					out = allocateOutNetBuf( ctx, buf.readableBytes() );
-				}
-				
-				SSLEngineResult result = wrap( alloc, engine, buf, out );
-				if ( !buf.isReadable() )
-				{
-					promise = pendingUnencryptedWrites.remove();
-				}
-				else
-				{
-					promise = null;
-				}
+				coalesceDeadline = null;
 				
-				System.out.println( "Consumed: " + result.bytesConsumed() + " / " + result.bytesProduced() );
-				
-				if ( result.getStatus() == Status.CLOSED )
+				try
 				{
-					// SSLEngine has been closed already.
-					// Any further write attempts should be denied.
-					pendingUnencryptedWrites.removeAndFailAll( SSLENGINE_CLOSED );
-					return;
+					wrap( ctx, false );
+					ctx.flush();
 				}
-				else
+				catch ( SSLException e )
 				{
-					switch ( result.getHandshakeStatus() )
-					{
-						case NEED_TASK:
-							runDelegatedTasks();
-							break;
-						case FINISHED:
-							setHandshakeSuccess();
-							// deliberate fall-through
-						case NOT_HANDSHAKING:
-							setHandshakeSuccessIfStillHandshaking();
-							// deliberate fall-through
-						case NEED_WRAP:
-							finishWrap( ctx, out, promise, inUnwrap );
-							promise = null;
-							out = null;
-							break;
-						case NEED_UNWRAP:
-							return;
-						default:
-							throw new IllegalStateException( "Unknown handshake status: " + result.getHandshakeStatus() );
-					}
+					ctx.fireExceptionCaught( e );
 				}
 			}
-		}
-		catch ( SSLException e )
-		{
-			setHandshakeFailure( ctx, e );
-			throw e;
-		}
-		finally
-		{
-			finishWrap( ctx, out, promise, inUnwrap );
-		}
+		}, coalesceDelayMillis, TimeUnit.MILLISECONDS );
 	}
 	
-	private void finishWrap( ChannelHandlerContext ctx, ByteBuf out, ChannelPromise promise, boolean inUnwrap )
+	public long getCloseNotifyTimeoutMillis()
 	{
-		if ( out == null )
-		{
-			out = Unpooled.EMPTY_BUFFER;
-		}
-		else if ( !out.isReadable() )
-		{
-			out.release();
-			out = Unpooled.EMPTY_BUFFER;
-		}
-		
-		System.out.print( "Out data (" + out.readableBytes() + "): " );
-		while ( out.readableBytes() > 0 )
-		{
-			System.out.print( String.format( "%02X ", out.readByte() ) );
-		}
-		System.out.println( "" );
-		
-		out.setIndex( 0, 0 );
-		
-		if ( promise != null )
-		{
-			ctx.write( out, promise );
-		}
-		else
-		{
-			ctx.write( out );
-		}
+		return closeNotifyTimeoutMillis;
+	}
+	
+	public long getHandshakeTimeoutMillis()
+	{
+		return handshakeTimeoutMillis;
+	}
+	
+	@Override
+	public void handlerAdded( final ChannelHandlerContext ctx ) throws Exception
+	{
+		this.ctx = ctx;
+		pendingUnencryptedWrites = new PendingWriteQueue( ctx );
 		
-		if ( inUnwrap )
+		if ( ctx.channel().isActive() && engine.getUseClientMode() )
+			// Begin the initial handshake.
+			// channelActive() event has been fired already, which means this.channelActive() will
+			// not be invoked. We have to initialize here instead.
+			handshake( null );
+		else
 		{
-			needsFlush = true;
+			// channelActive() event has not been fired yet. this.channelOpen() will be invoked
+			// and initialization will occur there.
 		}
 	}
 	
-	private void wrapNonAppData( ChannelHandlerContext ctx, boolean inUnwrap ) throws SSLException
+	@Override
+	public void handlerRemoved0( ChannelHandlerContext ctx ) throws Exception
 	{
-		ByteBuf out = null;
-		ByteBufAllocator alloc = ctx.alloc();
-		try
+		if ( !pendingUnencryptedWrites.isEmpty() || coalesced != null )
+			// Check if queue is not empty first because create a new ChannelException is expensive
+			failPendingWrites( new ChannelException( "Pending write on removal of SslHandler" ) );
+		
+		if ( coalesceDeadline != null )
+			coalesceDeadline.cancel( false );
+	}
+	
+	/**
+	 * Performs TLS (re)negotiation.
+	 *
+	 * @param newHandshakePromise
+	 *            if {@code null}, use the existing {@link #handshakePromise},
+	 *            assuming that the current negotiation has not been finished.
+	 *            Currently, {@code null} is expected only for the initial handshake.
+	 */
+	private void handshake( final Promise<Channel> newHandshakePromise )
+	{
+		final Promise<Channel> p;
+		if ( newHandshakePromise != null )
 		{
-			for ( ;; )
+			final Promise<Channel> oldHandshakePromise = handshakePromise;
+			if ( !oldHandshakePromise.isDone() )
 			{
-				if ( out == null )
-				{
-					out = allocateOutNetBuf( ctx, 0 );
-				}
-				SSLEngineResult result = wrap( alloc, engine, Unpooled.EMPTY_BUFFER, out );
-				
-				if ( result.bytesProduced() > 0 )
+				// There's no need to handshake because handshake is in progress already.
+				// Merge the new promise into the old one.
+				oldHandshakePromise.addListener( new FutureListener<Channel>()
 				{
-					ctx.write( out );
-					if ( inUnwrap )
+					@Override
+					public void operationComplete( Future<Channel> future ) throws Exception
 					{
-						needsFlush = true;
+						if ( future.isSuccess() )
+							newHandshakePromise.setSuccess( future.getNow() );
+						else
+							newHandshakePromise.setFailure( future.cause() );
 					}
-					out = null;
-				}
-				
-				switch ( result.getHandshakeStatus() )
-				{
-					case FINISHED:
-						setHandshakeSuccess();
-						break;
-					case NEED_TASK:
-						runDelegatedTasks();
-						break;
-					case NEED_UNWRAP:
-						if ( !inUnwrap )
-						{
-							unwrapNonAppData( ctx );
-						}
-						break;
-					case NEED_WRAP:
-						break;
-					case NOT_HANDSHAKING:
-						setHandshakeSuccessIfStillHandshaking();
-						// Workaround for TLS False Start problem reported at:
-						// https://github.com/netty/netty/issues/1108#issuecomment-14266970
-						if ( !inUnwrap )
-						{
-							unwrapNonAppData( ctx );
-						}
-						break;
-					default:
-						throw new IllegalStateException( "Unknown handshake status: " + result.getHandshakeStatus() );
-				}
-				
-				if ( result.bytesProduced() == 0 )
-				{
-					break;
-				}
+				} );
+				return;
 			}
+			
+			handshakePromise = p = newHandshakePromise;
 		}
-		catch ( SSLException e )
+		else
 		{
-			setHandshakeFailure( ctx, e );
-			throw e;
+			// Forced to reuse the old handshake.
+			p = handshakePromise;
+			assert !p.isDone();
 		}
-		finally
+		
+		// Begin handshake.
+		final ChannelHandlerContext ctx = this.ctx;
+		try
 		{
-			if ( out != null )
-			{
-				out.release();
-			}
+			engine.beginHandshake();
+			wrapNonAppData( ctx, false );
+			ctx.flush();
 		}
-	}
-	
-	private SSLEngineResult wrap( ByteBufAllocator alloc, SSLEngine engine, ByteBuf in, ByteBuf out ) throws SSLException
-	{
-		ByteBuf newDirectIn = null;
-		try
+		catch ( Exception e )
 		{
-			int readerIndex = in.readerIndex();
-			int readableBytes = in.readableBytes();
-			
-			// We will call SslEngine.wrap(ByteBuffer[], ByteBuffer) to allow efficient handling of
-			// CompositeByteBuf without force an extra memory copy when CompositeByteBuffer.nioBuffer() is called.
-			final ByteBuffer[] in0;
-			if ( in.isDirect() || !wantsDirectBuffer )
-			{
-				// As CompositeByteBuf.nioBufferCount() can be expensive (as it needs to check all composed ByteBuf
-				// to calculate the count) we will just assume a CompositeByteBuf contains more then 1 ByteBuf.
-				// The worst that can happen is that we allocate an extra ByteBuffer[] in CompositeByteBuf.nioBuffers()
-				// which is better then walking the composed ByteBuf in most cases.
-				if ( ! ( in instanceof CompositeByteBuf ) && in.nioBufferCount() == 1 )
-				{
-					in0 = singleBuffer;
-					// We know its only backed by 1 ByteBuffer so use internalNioBuffer to keep object allocation
-					// to a minimum.
-					in0[0] = in.internalNioBuffer( readerIndex, readableBytes );
-				}
-				else
-				{
-					in0 = in.nioBuffers();
-				}
-			}
-			else
-			{
-				// We could even go further here and check if its a CompositeByteBuf and if so try to decompose it and
-				// only replace the ByteBuffer that are not direct. At the moment we just will replace the whole
-				// CompositeByteBuf to keep the complexity to a minimum
-				newDirectIn = alloc.directBuffer( readableBytes );
-				newDirectIn.writeBytes( in, readerIndex, readableBytes );
-				in0 = singleBuffer;
-				in0[0] = newDirectIn.internalNioBuffer( 0, readableBytes );
-			}
-			
-			for ( ;; )
+			notifyHandshakeFailure( e );
+		}
+		
+		// Set timeout if necessary.
+		final long handshakeTimeoutMillis = this.handshakeTimeoutMillis;
+		if ( handshakeTimeoutMillis <= 0 || p.isDone() )
+			return;
+		
+		final ScheduledFuture<?> timeoutFuture = ctx.executor().schedule( new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				ByteBuffer out0 = out.nioBuffer( out.writerIndex(), out.writableBytes() );
-				SSLEngineResult result = engine.wrap( in0, out0 );
-				in.skipBytes( result.bytesConsumed() );
-				out.writerIndex( out.writerIndex() + result.bytesProduced() );
-				
-				switch ( result.getStatus() )
-				{
-					case BUFFER_OVERFLOW:
-						out.ensureWritable( maxPacketBufferSize );
-						break;
-					default:
-						return result;
-				}
+				if ( p.isDone() )
+					return;
+				notifyHandshakeFailure( HANDSHAKE_TIMED_OUT );
 			}
-		}
-		finally
+		}, handshakeTimeoutMillis, TimeUnit.MILLISECONDS );
+		
+		// Cancel the handshake timeout when handshake is finished.
+		p.addListener( new FutureListener<Channel>()
 		{
-			// Null out to allow GC of ByteBuffer
-			singleBuffer[0] = null;
-			
-			if ( newDirectIn != null )
+			@Override
+			public void operationComplete( Future<Channel> f ) throws Exception
 			{
-				newDirectIn.release();
+				timeoutFuture.cancel( false );
 			}
-		}
-	}
-	
-	@Override
-	public void channelInactive( ChannelHandlerContext ctx ) throws Exception
-	{
-		// Make sure to release SSLEngine,
-		// and notify the handshake future if the connection has been closed during handshake.
-		setHandshakeFailure( ctx, CHANNEL_CLOSED );
-		super.channelInactive( ctx );
+		} );
 	}
 	
-	@Override
-	public void exceptionCaught( ChannelHandlerContext ctx, Throwable cause ) throws Exception
+	/**
+	 * Returns a {@link Future} that will get notified once the current TLS handshake completes.
+	 *
+	 * @return the {@link Future} for the iniital TLS handshake if {@link #renegotiate()} was not invoked.
+	 *         The {@link Future} for the most recent {@linkplain #renegotiate() TLS renegotiation} otherwise.
+	 */
+	public Future<Channel> handshakeFuture()
 	{
-		if ( ignoreException( cause ) )
-		{
-			// It is safe to ignore the 'connection reset by peer' or
-			// 'broken pipe' error after sending close_notify.
-			if ( logger.isDebugEnabled() )
-			{
-				logger.debug( "{} Swallowing a harmless 'connection reset by peer / broken pipe' error that occurred " + "while writing close_notify in response to the peer's close_notify", ctx.channel(), cause );
-			}
-			
-			// Close the connection explicitly just in case the transport
-			// did not close the connection automatically.
-			if ( ctx.channel().isActive() )
-			{
-				ctx.close();
-			}
-		}
-		else
-		{
-			ctx.fireExceptionCaught( cause );
-		}
+		return handshakePromise;
 	}
 	
 	/**
@@ -673,9 +889,7 @@ public class TestSslHandler extends ByteToMessageDecoder
 			// first try to match connection reset / broke peer based on the regex. This is the fastest way
 			// but may fail on different jdk impls or OS's
 			if ( IGNORABLE_ERROR_MESSAGE.matcher( message ).matches() )
-			{
 				return true;
-			}
 			
 			// Inspect the StackTraceElements to see if it was a connection reset / broken pipe or not
 			StackTraceElement[] elements = t.getStackTrace();
@@ -686,22 +900,16 @@ public class TestSslHandler extends ByteToMessageDecoder
 				
 				// skip all classes that belong to the io.netty package
 				if ( classname.startsWith( "io.netty." ) )
-				{
 					continue;
-				}
 				
 				// check if the method name is read if not skip it
 				if ( !"read".equals( methodname ) )
-				{
 					continue;
-				}
 				
 				// This will also match against SocketInputStream which is used by openjdk 7 and maybe
 				// also others
 				if ( IGNORABLE_CLASS_IN_STACK.matcher( classname ).matches() )
-				{
 					return true;
-				}
 				
 				try
 				{
@@ -711,15 +919,11 @@ public class TestSslHandler extends ByteToMessageDecoder
 					Class<?> clazz = PlatformDependent.getClassLoader( getClass() ).loadClass( classname );
 					
 					if ( SocketChannel.class.isAssignableFrom( clazz ) || DatagramChannel.class.isAssignableFrom( clazz ) )
-					{
 						return true;
-					}
 					
 					// also match against SctpChannel via String matching as it may not present.
 					if ( PlatformDependent.javaVersion() >= 7 && "com.sun.nio.sctp.SctpChannel".equals( clazz.getSuperclass().getName() ) )
-					{
 						return true;
-					}
 				}
 				catch ( ClassNotFoundException e )
 				{
@@ -731,251 +935,466 @@ public class TestSslHandler extends ByteToMessageDecoder
 		return false;
 	}
 	
+	private void notifyHandshakeFailure( Throwable cause )
+	{
+		if ( handshakePromise.tryFailure( cause ) )
+		{
+			ctx.fireUserEventTriggered( new SslHandshakeCompletionEvent( cause ) );
+			ctx.close();
+		}
+	}
+	
+	@Override
+	public void read( ChannelHandlerContext ctx ) throws Exception
+	{
+		if ( !handshakePromise.isDone() )
+			readDuringHandshake = true;
+		
+		ctx.read();
+	}
+	
 	/**
-	 * Returns {@code true} if the given {@link ByteBuf} is encrypted. Be aware that this method
-	 * will not increase the readerIndex of the given {@link ByteBuf}.
-	 *
-	 * @param buffer
-	 *            The {@link ByteBuf} to read from. Be aware that it must have at least 5 bytes to read,
-	 *            otherwise it will throw an {@link IllegalArgumentException}.
-	 * @return encrypted {@code true} if the {@link ByteBuf} is encrypted, {@code false} otherwise.
-	 * @throws IllegalArgumentException
-	 *             Is thrown if the given {@link ByteBuf} has not at least 5 bytes to read.
+	 * Performs TLS renegotiation.
 	 */
-	public static boolean isEncrypted( ByteBuf buffer )
+	public Future<Channel> renegotiate()
 	{
-		if ( buffer.readableBytes() < 5 )
+		ChannelHandlerContext ctx = this.ctx;
+		if ( ctx == null )
+			throw new IllegalStateException();
+		
+		return renegotiate( ctx.executor().<Channel> newPromise() );
+	}
+	
+	/**
+	 * Performs TLS renegotiation.
+	 */
+	public Future<Channel> renegotiate( final Promise<Channel> promise )
+	{
+		if ( promise == null )
+			throw new NullPointerException( "promise" );
+		
+		ChannelHandlerContext ctx = this.ctx;
+		if ( ctx == null )
+			throw new IllegalStateException();
+		
+		EventExecutor executor = ctx.executor();
+		if ( !executor.inEventLoop() )
 		{
-			throw new IllegalArgumentException( "buffer must have at least 5 readable bytes" );
+			executor.execute( new OneTimeTask()
+			{
+				@Override
+				public void run()
+				{
+					handshake( promise );
+				}
+			} );
+			return promise;
 		}
-		return getEncryptedPacketLength( buffer, buffer.readerIndex() ) != -1;
+		
+		handshake( promise );
+		return promise;
 	}
 	
 	/**
-	 * Return how much bytes can be read out of the encrypted data. Be aware that this method will not increase
-	 * the readerIndex of the given {@link ByteBuf}.
+	 * Fetches all delegated tasks from the {@link SSLEngine} and runs them by invoking them directly, or hands them to the
+	 * {@link HandshakeExecutor} if one is set. Every batch of tasks is admitted on its own and releases its room once it
+	 * ran, so a handshake only holds room while it needs the CPU and not while it waits on the peer.
 	 *
-	 * @param buffer
-	 *            The {@link ByteBuf} to read from. Be aware that it must have at least 5 bytes to read,
-	 *            otherwise it will throw an {@link IllegalArgumentException}.
-	 * @return length
-	 *         The length of the encrypted packet that is included in the buffer. This will
-	 *         return {@code -1} if the given {@link ByteBuf} is not encrypted at all.
-	 * @throws IllegalArgumentException
-	 *             Is thrown if the given {@link ByteBuf} has not at least 5 bytes to read.
+	 * @return {@code true} if the tasks ran, {@code false} if they run on the handshake executor and
+	 *         {@link #resumeAfterTasks(Throwable)} picks up once they are done
 	 */
-	private static int getEncryptedPacketLength( ByteBuf buffer, int offset )
+	private boolean runDelegatedTasks()
 	{
-		int packetLength = 0;
-		
-		// SSLv3 or TLS - Check ContentType
-		boolean tls;
-		switch ( buffer.getUnsignedByte( offset ) )
+		if ( handshakeExecutor == null )
 		{
-			case 20: // change_cipher_spec
-			case 21: // alert
-			case 22: // handshake
-			case 23: // application_data
-				tls = true;
-				break;
-			default:
-				// SSLv2 or bad data
-				tls = false;
+			for ( ;; )
+			{
+				Runnable task = engine.getDelegatedTask();
+				if ( task == null )
+					break;
+				
+				task.run();
+			}
+			return true;
 		}
 		
-		if ( tls )
+		if ( processTask )
+			return false;
+		processTask = true;
+		admission = ADMISSION_WAITING;
+		
+		final HandshakeExecutor executor = handshakeExecutor;
+		executor.admit( new Runnable()
 		{
-			// SSLv3 or TLS - Check ProtocolVersion
-			int majorVersion = buffer.getUnsignedByte( offset + 1 );
-			if ( majorVersion == 3 )
+			@Override
+			public void run()
 			{
-				// SSLv3 or TLS
-				packetLength = buffer.getUnsignedShort( offset + 3 ) + 5;
-				if ( packetLength <= 5 )
+				ctx.executor().execute( new Runnable()
 				{
-					// Neither SSLv3 or TLSv1 (i.e. SSLv2 or bad data)
-					tls = false;
-				}
-			}
-			else
-			{
-				// Neither SSLv3 or TLSv1 (i.e. SSLv2 or bad data)
-				tls = false;
+					@Override
+					public void run()
+					{
+						// The handshake ended or the channel closed while it was waiting, pass the room on
+						if ( admission != ADMISSION_WAITING || !ctx.channel().isActive() )
+						{
+							if ( admission == ADMISSION_WAITING )
+							{
+								admission = ADMISSION_NONE;
+								processTask = false;
+							}
+							executor.release();
+							return;
+						}
+						
+						admission = ADMISSION_GRANTED;
+						submitDelegatedTasks();
+					}
+				} );
 			}
-		}
+		} );
 		
-		if ( !tls )
+		return false;
+	}
+	
+	private void submitDelegatedTasks()
+	{
+		handshakeExecutor.execute( new Runnable()
 		{
-			// SSLv2 or bad data - Check the version
-			boolean sslv2 = true;
-			int headerLength = ( buffer.getUnsignedByte( offset ) & 0x80 ) != 0 ? 2 : 3;
-			int majorVersion = buffer.getUnsignedByte( offset + headerLength + 1 );
-			if ( majorVersion == 2 || majorVersion == 3 )
+			@Override
+			public void run()
 			{
-				// SSLv2
-				if ( headerLength == 2 )
+				Throwable failure = null;
+				try
 				{
-					packetLength = ( buffer.getShort( offset ) & 0x7FFF ) + 2;
+					for ( ;; )
+					{
+						Runnable task = engine.getDelegatedTask();
+						if ( task == null )
+							break;
+						
+						task.run();
+					}
 				}
-				else
+				catch ( Throwable t )
 				{
-					packetLength = ( buffer.getShort( offset ) & 0x3FFF ) + 3;
+					failure = t;
 				}
-				if ( packetLength <= headerLength )
+				
+				final Throwable cause = failure;
+				ctx.executor().execute( new Runnable()
 				{
-					sslv2 = false;
-				}
-			}
-			else
-			{
-				sslv2 = false;
-			}
-			
-			if ( !sslv2 )
-			{
-				return -1;
+					@Override
+					public void run()
+					{
+						resumeAfterTasks( cause );
+					}
+				} );
 			}
-		}
-		return packetLength;
+		} );
 	}
 	
-	@Override
-	protected void decode( ChannelHandlerContext ctx, ByteBuf in, List<Object> out ) throws SSLException
+	/**
+	 * Continues the handshake on the event loop once the delegated tasks are done, then decodes what arrived meanwhile
+	 */
+	private void resumeAfterTasks( Throwable failure )
 	{
-		final int startOffset = in.readerIndex();
-		final int endOffset = in.writerIndex();
-		int offset = startOffset;
-		int totalLength = 0;
-		
-		// If we calculated the length of the current SSL record before, use that information.
-		if ( packetLength > 0 )
-		{
-			if ( endOffset - startOffset < packetLength )
-			{
-				return;
-			}
-			else
-			{
-				offset += packetLength;
-				totalLength = packetLength;
-				packetLength = 0;
-			}
-		}
+		processTask = false;
+		releaseAdmission();
 		
-		boolean nonSslRecord = false;
+		if ( !ctx.channel().isActive() )
+			return;
 		
-		while ( totalLength < MAX_ENCRYPTED_PACKET_LENGTH )
+		try
 		{
-			final int readableBytes = endOffset - offset;
-			if ( readableBytes < 5 )
-			{
-				break;
-			}
-			
-			final int packetLength = getEncryptedPacketLength( in, offset );
-			if ( packetLength == -1 )
+			if ( failure != null )
 			{
-				nonSslRecord = true;
-				break;
+				setHandshakeFailure( ctx, failure );
+				ctx.close();
+				return;
 			}
 			
-			assert packetLength > 0;
-			
-			if ( packetLength > readableBytes )
+			switch ( engine.getHandshakeStatus() )
 			{
-				// wait until the whole packet can be read
-				this.packetLength = packetLength;
-				break;
+				case NEED_TASK:
+					runDelegatedTasks();
+					return;
+				case NEED_WRAP:
+					wrapNonAppData( ctx, true );
+					break;
+				case NEED_UNWRAP:
+					break;
+				default:
+					setHandshakeSuccessIfStillHandshaking();
 			}
 			
-			int newTotalLength = totalLength + packetLength;
-			if ( newTotalLength > MAX_ENCRYPTED_PACKET_LENGTH )
+			// Write what was flushed while the handshake was going on
+			if ( handshakePromise.isDone() && flushedBeforeHandshake )
 			{
-				// Don't read too much.
-				break;
+				flushedBeforeHandshake = false;
+				wrap( ctx, true );
 			}
 			
-			// We have a whole packet.
-			// Increment the offset to handle the next packet.
-			offset += packetLength;
-			totalLength = newTotalLength;
+			channelRead( ctx, Unpooled.EMPTY_BUFFER );
+			channelReadComplete( ctx );
 		}
-		
-		if ( totalLength > 0 )
+		catch ( Throwable cause )
 		{
-			// The buffer contains one or more full SSL records.
-			// Slice out the whole packet so unwrap will only be called with complete packets.
-			// Also directly reset the packetLength. This is needed as unwrap(..) may trigger
-			// decode(...) again via:
-			// 1) unwrap(..) is called
-			// 2) wrap(...) is called from within unwrap(...)
-			// 3) wrap(...) calls unwrapLater(...)
-			// 4) unwrapLater(...) calls decode(...)
-			//
-			// See https://github.com/netty/netty/issues/1534
-			
-			in.skipBytes( totalLength );
-			
-			// If SSLEngine expects a heap buffer for unwrapping, do the conversion.
-			if ( in.isDirect() && wantsInboundHeapBuffer )
-			{
-				ByteBuf copy = ctx.alloc().heapBuffer( totalLength );
-				try
-				{
-					copy.writeBytes( in, startOffset, totalLength );
-					unwrap( ctx, copy, 0, totalLength );
-				}
-				finally
+			setHandshakeFailure( ctx, cause );
+			ctx.close();
+		}
+	}
+	
+	/**
+	 * Drops the claim of a batch still waiting for room, its callback passes the room on. A batch that runs keeps its room
+	 * until {@link #resumeAfterTasks(Throwable)}, as it uses the CPU until then.
+	 */
+	private void abandonAdmission()
+	{
+		if ( admission == ADMISSION_WAITING )
+			admission = ADMISSION_NONE;
+	}
+	
+	private void releaseAdmission()
+	{
+		if ( admission == ADMISSION_GRANTED )
+			handshakeExecutor.release();
+		admission = ADMISSION_NONE;
+	}
+	
+	private void safeClose( final ChannelHandlerContext ctx, ChannelFuture flushFuture, final ChannelPromise promise )
+	{
+		if ( !ctx.channel().isActive() )
+		{
+			ctx.close( promise );
+			return;
+		}
+		
+		final ScheduledFuture<?> timeoutFuture;
+		if ( closeNotifyTimeoutMillis > 0 )
+			// Force-close the connection if close_notify is not fully sent in time.
+			timeoutFuture = ctx.executor().schedule( new Runnable()
+			{
+				@Override
+				public void run()
 				{
-					copy.release();
+					logger.warn( "{} Last write attempt timed out; force-closing the connection.", ctx.channel() );
+					ctx.close( promise );
 				}
-			}
-			else
+			}, closeNotifyTimeoutMillis, TimeUnit.MILLISECONDS );
+		else
+			timeoutFuture = null;
+		
+		// Close the connection if close_notify is sent in time.
+		flushFuture.addListener( new ChannelFutureListener()
+		{
+			@Override
+			public void operationComplete( ChannelFuture f ) throws Exception
 			{
-				unwrap( ctx, in, startOffset, totalLength );
+				if ( timeoutFuture != null )
+					timeoutFuture.cancel( false );
+				// Trigger the close in all cases to make sure the promise is notified
+				// See https://github.com/netty/netty/issues/2358
+				ctx.close( promise );
 			}
-		}
+		} );
+	}
+	
+	public void setCloseNotifyTimeout( long closeNotifyTimeout, TimeUnit unit )
+	{
+		if ( unit == null )
+			throw new NullPointerException( "unit" );
 		
-		if ( nonSslRecord )
-		{
-			// Not an SSL/TLS packet
-			NotSslRecordException e = new NotSslRecordException( "not an SSL/TLS record: " + ByteBufUtil.hexDump( in ) );
-			in.skipBytes( in.readableBytes() );
-			ctx.fireExceptionCaught( e );
-			setHandshakeFailure( ctx, e );
-		}
+		setCloseNotifyTimeoutMillis( unit.toMillis( closeNotifyTimeout ) );
 	}
 	
-	@Override
-	public void channelReadComplete( ChannelHandlerContext ctx ) throws Exception
+	public void setCloseNotifyTimeoutMillis( long closeNotifyTimeoutMillis )
 	{
-		if ( needsFlush )
+		if ( closeNotifyTimeoutMillis < 0 )
+			throw new IllegalArgumentException( "closeNotifyTimeoutMillis: " + closeNotifyTimeoutMillis + " (expected: >= 0)" );
+		this.closeNotifyTimeoutMillis = closeNotifyTimeoutMillis;
+	}
+	
+	/**
+	 * Notify all the handshake futures about the failure during the handshake.
+	 */
+	private void setHandshakeFailure( ChannelHandlerContext ctx, Throwable cause )
+	{
+		// Release all resources such as internal buffers that SSLEngine
+		// is managing.
+		engine.closeOutbound();
+		
+		try
 		{
-			needsFlush = false;
-			ctx.flush();
+			engine.closeInbound();
+		}
+		catch ( SSLException e )
+		{
+			// only log in debug mode as it most likely harmless and latest chrome still trigger
+			// this all the time.
+			//
+			// See https://github.com/netty/netty/issues/1340
+			String msg = e.getMessage();
+			if ( msg == null || !msg.contains( "possible truncation attack" ) )
+				logger.debug( "{} SSLEngine.closeInbound() raised an exception.", ctx.channel(), e );
 		}
+		abandonAdmission();
+		notifyHandshakeFailure( cause );
+		failPendingWrites( cause );
+	}
+	
+	/**
+	 * Notify all the handshake futures about the successfully handshake
+	 */
+	private void setHandshakeSuccess()
+	{
+		// Work around the JVM crash which occurs when a cipher suite with GCM enabled.
+		final String cipherSuite = String.valueOf( engine.getSession().getCipherSuite() );
+		if ( !wantsDirectBuffer && ( cipherSuite.contains( "_GCM_" ) || cipherSuite.contains( "-GCM-" ) ) )
+			wantsInboundHeapBuffer = true;
 		
-		// If handshake is not finished yet, we need more data.
-		if ( !handshakePromise.isDone() && !ctx.channel().config().isAutoRead() )
+		abandonAdmission();
+		handshakePromise.trySuccess( ctx.channel() );
+		
+		if ( logger.isDebugEnabled() )
+			logger.debug( "{} HANDSHAKEN: {}", ctx.channel(), engine.getSession().getCipherSuite() );
+		ctx.fireUserEventTriggered( SslHandshakeCompletionEvent.SUCCESS );
+		
+		if ( readDuringHandshake && !ctx.channel().config().isAutoRead() )
 		{
+			readDuringHandshake = false;
 			ctx.read();
 		}
+	}
+	
+	/**
+	 * Works around some Android {@link SSLEngine} implementations that skip {@link HandshakeStatus#FINISHED} and
+	 * go straight into {@link HandshakeStatus#NOT_HANDSHAKING} when handshake is finished.
+	 *
+	 * @return {@code true} if and only if the workaround has been applied and thus {@link #handshakeFuture} has been
+	 *         marked as success by this method
+	 */
+	private boolean setHandshakeSuccessIfStillHandshaking()
+	{
+		if ( !handshakePromise.isDone() )
+		{
+			setHandshakeSuccess();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Sets the executor delegated tasks of this handler run on, {@code null} runs them on the event loop
+	 */
+	public void setHandshakeExecutor( HandshakeExecutor handshakeExecutor )
+	{
+		this.handshakeExecutor = handshakeExecutor;
+	}
+	
+	/**
+	 * Sets the executor delegated tasks run on for handlers created from now on, {@code null} runs them on the event loop
+	 */
+	public static void setDefaultHandshakeExecutor( HandshakeExecutor handshakeExecutor )
+	{
+		defaultHandshakeExecutor = handshakeExecutor;
+	}
+	
+	/**
+	 * Sets how long a flush may wait for more writes to fill its TLS record, 0 wraps on every flush. Writes pending at a
+	 * flush are coalesced either way.
+	 */
+	public void setCoalesceDelay( long coalesceDelay, TimeUnit unit )
+	{
+		if ( coalesceDelay < 0 )
+			throw new IllegalArgumentException( "coalesceDelay: " + coalesceDelay + " (expected: >= 0)" );
+		coalesceDelayMillis = unit.toMillis( coalesceDelay );
+	}
+	
+	/**
+	 * Sets the coalesce delay of handlers created from now on
+	 */
+	public static void setDefaultCoalesceDelay( long coalesceDelay, TimeUnit unit )
+	{
+		if ( coalesceDelay < 0 )
+			throw new IllegalArgumentException( "coalesceDelay: " + coalesceDelay + " (expected: >= 0)" );
+		defaultCoalesceDelayMillis = unit.toMillis( coalesceDelay );
+	}
+	
+	/**
+	 * Sets the timeouts of handlers created from now on, 0 disables a timeout
+	 */
+	public static void setDefaultTimeouts( long handshakeTimeout, long closeNotifyTimeout, TimeUnit unit )
+	{
+		if ( handshakeTimeout < 0 )
+			throw new IllegalArgumentException( "handshakeTimeout: " + handshakeTimeout + " (expected: >= 0)" );
+		if ( closeNotifyTimeout < 0 )
+			throw new IllegalArgumentException( "closeNotifyTimeout: " + closeNotifyTimeout + " (expected: >= 0)" );
 		
-		ctx.fireChannelReadComplete();
+		defaultHandshakeTimeoutMillis = unit.toMillis( handshakeTimeout );
+		defaultCloseNotifyTimeoutMillis = unit.toMillis( closeNotifyTimeout );
 	}
 	
 	/**
-	 * Calls {@link SSLEngine#unwrap(ByteBuffer, ByteBuffer)} with an empty buffer to handle handshakes, etc.
+	 * Sets the cumulator of handlers created from now on, {@code null} picks {@link #COMPOSITE_CUMULATOR} for OpenSSL
+	 * and {@link #MERGE_CUMULATOR} for the JDK engine. The composite one avoids copying what we receive, but the JDK
+	 * engine unwraps one {@link ByteBuffer} at a time so it has to merge a record split over reads anyway.
 	 */
-	private void unwrapNonAppData( ChannelHandlerContext ctx ) throws SSLException
+	public static void setDefaultCumulator( Cumulator cumulator )
 	{
-		unwrap( ctx, Unpooled.EMPTY_BUFFER, 0, 0 );
+		defaultCumulator = cumulator;
+	}
+	
+	/**
+	 * Sets the outbound buffer sizing of handlers created from now on, {@code null} picks it for the engine
+	 * 
+	 * @see #setLargeOutboundBuffers(boolean)
+	 */
+	public static void setDefaultLargeOutboundBuffers( Boolean largeOutboundBuffers )
+	{
+		defaultLargeOutboundBuffers = largeOutboundBuffers;
+	}
+	
+	/**
+	 * Sets how the pooled direct buffers we wrap into are sized. Large buffers always take the packet size of the engine,
+	 * about 16KB, so a wrap never overflows. Otherwise they take the pending plaintext plus the record overhead, which keeps
+	 * small March frames in a smaller pool size class and is grown when a wrap overflows.
+	 */
+	public void setLargeOutboundBuffers( boolean largeOutboundBuffers )
+	{
+		wantsLargeOutboundNetworkBuffer = largeOutboundBuffers;
+	}
+	
+	public void setHandshakeTimeout( long handshakeTimeout, TimeUnit unit )
+	{
+		if ( unit == null )
+			throw new NullPointerException( "unit" );
+		
+		setHandshakeTimeoutMillis( unit.toMillis( handshakeTimeout ) );
+	}
+	
+	public void setHandshakeTimeoutMillis( long handshakeTimeoutMillis )
+	{
+		if ( handshakeTimeoutMillis < 0 )
+			throw new IllegalArgumentException( "handshakeTimeoutMillis: " + handshakeTimeoutMillis + " (expected: >= 0)" );
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+	
+	/**
+	 * Return the {@link Future} that will get notified if the inbound of the {@link SSLEngine} is closed.
+	 *
+	 * This method will return the same {@link Future} all the time.
+	 *
+	 * @see SSLEngine
+	 */
+	public Future<Channel> sslCloseFuture()
+	{
+		return sslCloseFuture;
 	}
 	
 	/**
 	 * Unwraps inbound SSL records.
 	 */
-	private void unwrap( ChannelHandlerContext ctx, ByteBuf packet, int offset, int length ) throws SSLException
+	private int unwrap( ChannelHandlerContext ctx, ByteBuf packet, int offset, int length ) throws SSLException
 	{
 		
 		boolean wrapLater = false;
@@ -983,7 +1402,7 @@ public class TestSslHandler extends ByteToMessageDecoder
 		ByteBuf decodeOut = allocate( ctx, length );
 		try
 		{
-			for ( ;; )
+			unwrapLoop: for ( ;; )
 			{
 				final SSLEngineResult result = unwrap( engine, packet, offset, length, decodeOut );
 				final Status status = result.getStatus();
@@ -996,10 +1415,8 @@ public class TestSslHandler extends ByteToMessageDecoder
 				length -= consumed;
 				
 				if ( status == Status.CLOSED )
-				{
 					// notify about the CLOSED state of the SSLEngine. See #137
 					notifyClosure = true;
-				}
 				
 				switch ( handshakeStatus )
 				{
@@ -1009,7 +1426,11 @@ public class TestSslHandler extends ByteToMessageDecoder
 						wrapNonAppData( ctx, true );
 						break;
 					case NEED_TASK:
-						runDelegatedTasks();
+						if ( !runDelegatedTasks() )
+						{
+							wrapLater = false;
+							break unwrapLoop;
+						}
 						break;
 					case FINISHED:
 						setHandshakeSuccess();
@@ -1036,20 +1457,14 @@ public class TestSslHandler extends ByteToMessageDecoder
 				}
 				
 				if ( status == Status.BUFFER_UNDERFLOW || consumed == 0 && produced == 0 )
-				{
 					break;
-				}
 			}
 			
 			if ( wrapLater )
-			{
 				wrap( ctx, true );
-			}
 			
 			if ( notifyClosure )
-			{
 				sslCloseFuture.trySuccess( ctx.channel() );
-			}
 		}
 		catch ( SSLException e )
 		{
@@ -1059,14 +1474,12 @@ public class TestSslHandler extends ByteToMessageDecoder
 		finally
 		{
 			if ( decodeOut.isReadable() )
-			{
 				ctx.fireChannelRead( decodeOut );
-			}
 			else
-			{
 				decodeOut.release();
-			}
 		}
+		
+		return processTask ? length : 0;
 	}
 	
 	private SSLEngineResult unwrap( SSLEngine engine, ByteBuf in, int readerIndex, int len, ByteBuf out ) throws SSLException
@@ -1090,13 +1503,9 @@ public class TestSslHandler extends ByteToMessageDecoder
 					int writableBytes = out.writableBytes();
 					ByteBuffer out0;
 					if ( out.nioBufferCount() == 1 )
-					{
 						out0 = out.internalNioBuffer( writerIndex, writableBytes );
-					}
 					else
-					{
 						out0 = out.nioBuffer( writerIndex, writableBytes );
-					}
 					singleBuffer[0] = out0;
 					SSLEngineResult result = opensslEngine.unwrap( in0, singleBuffer );
 					out.writerIndex( out.writerIndex() + result.bytesProduced() );
@@ -1128,29 +1537,21 @@ public class TestSslHandler extends ByteToMessageDecoder
 			int overflows = 0;
 			ByteBuffer in0;
 			if ( nioBufferCount == 1 )
-			{
 				// Use internalNioBuffer to reduce object creation.
 				in0 = in.internalNioBuffer( readerIndex, len );
-			}
 			else
-			{
 				// This should never be true as this is only the case when OpenSslEngine is used, anyway lets
 				// guard against it.
 				in0 = in.nioBuffer( readerIndex, len );
-			}
 			for ( ;; )
 			{
 				int writerIndex = out.writerIndex();
 				int writableBytes = out.writableBytes();
 				ByteBuffer out0;
 				if ( out.nioBufferCount() == 1 )
-				{
 					out0 = out.internalNioBuffer( writerIndex, writableBytes );
-				}
 				else
-				{
 					out0 = out.nioBuffer( writerIndex, writableBytes );
-				}
 				SSLEngineResult result = engine.unwrap( in0, out0 );
 				out.writerIndex( out.writerIndex() + result.bytesProduced() );
 				switch ( result.getStatus() )
@@ -1174,386 +1575,243 @@ public class TestSslHandler extends ByteToMessageDecoder
 	}
 	
 	/**
-	 * Fetches all delegated tasks from the {@link SSLEngine} and runs them by invoking them directly.
+	 * Calls {@link SSLEngine#unwrap(ByteBuffer, ByteBuffer)} with an empty buffer to handle handshakes, etc.
 	 */
-	private void runDelegatedTasks()
+	private void unwrapNonAppData( ChannelHandlerContext ctx ) throws SSLException
 	{
-		for ( ;; )
-		{
-			Runnable task = engine.getDelegatedTask();
-			if ( task == null )
-			{
-				break;
-			}
-			
-			task.run();
-		}
+		unwrap( ctx, Unpooled.EMPTY_BUFFER, 0, 0 );
 	}
 	
-	/**
-	 * Works around some Android {@link SSLEngine} implementations that skip {@link HandshakeStatus#FINISHED} and
-	 * go straight into {@link HandshakeStatus#NOT_HANDSHAKING} when handshake is finished.
-	 *
-	 * @return {@code true} if and only if the workaround has been applied and thus {@link #handshakeFuture} has been
-	 *         marked as success by this method
-	 */
-	private boolean setHandshakeSuccessIfStillHandshaking()
+	private SSLEngineResult wrap( ByteBufAllocator alloc, SSLEngine engine, ByteBuf in, ByteBuf out ) throws SSLException
 	{
-		if ( !handshakePromise.isDone() )
+		ByteBuf newDirectIn = null;
+		try
 		{
-			setHandshakeSuccess();
-			return true;
-		}
-		return false;
-	}
-	
-	/**
-	 * Notify all the handshake futures about the successfully handshake
-	 */
-	private void setHandshakeSuccess()
-	{
-		// Work around the JVM crash which occurs when a cipher suite with GCM enabled.
-		final String cipherSuite = String.valueOf( engine.getSession().getCipherSuite() );
-		if ( !wantsDirectBuffer && ( cipherSuite.contains( "_GCM_" ) || cipherSuite.contains( "-GCM-" ) ) )
-		{
-			wantsInboundHeapBuffer = true;
-		}
-		
-		handshakePromise.trySuccess( ctx.channel() );
-		
-		if ( logger.isDebugEnabled() )
-		{
-			logger.debug( "{} HANDSHAKEN: {}", ctx.channel(), engine.getSession().getCipherSuite() );
-		}
-		ctx.fireUserEventTriggered( SslHandshakeCompletionEvent.SUCCESS );
-		
-		if ( readDuringHandshake && !ctx.channel().config().isAutoRead() )
-		{
-			readDuringHandshake = false;
-			ctx.read();
-		}
-	}
-	
-	/**
-	 * Notify all the handshake futures about the failure during the handshake.
-	 */
-	private void setHandshakeFailure( ChannelHandlerContext ctx, Throwable cause )
-	{
-		// Release all resources such as internal buffers that SSLEngine
-		// is managing.
-		engine.closeOutbound();
-		
-		try
-		{
-			engine.closeInbound();
-		}
-		catch ( SSLException e )
-		{
-			// only log in debug mode as it most likely harmless and latest chrome still trigger
-			// this all the time.
-			//
-			// See https://github.com/netty/netty/issues/1340
-			String msg = e.getMessage();
-			if ( msg == null || !msg.contains( "possible truncation attack" ) )
+			int readerIndex = in.readerIndex();
+			int readableBytes = in.readableBytes();
+			
+			// We will call SslEngine.wrap(ByteBuffer[], ByteBuffer) to allow efficient handling of
+			// CompositeByteBuf without force an extra memory copy when CompositeByteBuffer.nioBuffer() is called.
+			final ByteBuffer[] in0;
+			if ( in.isDirect() || !wantsDirectBuffer )
 			{
-				logger.debug( "{} SSLEngine.closeInbound() raised an exception.", ctx.channel(), e );
+				// As CompositeByteBuf.nioBufferCount() can be expensive (as it needs to check all composed ByteBuf
+				// to calculate the count) we will just assume a CompositeByteBuf contains more then 1 ByteBuf.
+				// The worst that can happen is that we allocate an extra ByteBuffer[] in CompositeByteBuf.nioBuffers()
+				// which is better then walking the composed ByteBuf in most cases.
+				if ( ! ( in instanceof CompositeByteBuf ) && in.nioBufferCount() == 1 )
+				{
+					in0 = singleBuffer;
+					// We know its only backed by 1 ByteBuffer so use internalNioBuffer to keep object allocation to a minimum.
+					in0[0] = in.internalNioBuffer( readerIndex, readableBytes );
+				}
+				else
+					in0 = in.nioBuffers();
 			}
-		}
-		notifyHandshakeFailure( cause );
-		pendingUnencryptedWrites.removeAndFailAll( cause );
-	}
-	
-	private void notifyHandshakeFailure( Throwable cause )
-	{
-		if ( handshakePromise.tryFailure( cause ) )
-		{
-			ctx.fireUserEventTriggered( new SslHandshakeCompletionEvent( cause ) );
-			ctx.close();
-		}
-	}
-	
-	private void closeOutboundAndChannel( final ChannelHandlerContext ctx, final ChannelPromise promise, boolean disconnect ) throws Exception
-	{
-		if ( !ctx.channel().isActive() )
-		{
-			if ( disconnect )
+			else
 			{
-				ctx.disconnect( promise );
+				// We could even go further here and check if its a CompositeByteBuf and if so try to decompose it and
+				// only replace the ByteBuffer that are not direct. At the moment we just will replace the whole
+				// CompositeByteBuf to keep the complexity to a minimum
+				newDirectIn = alloc.directBuffer( readableBytes );
+				newDirectIn.writeBytes( in, readerIndex, readableBytes );
+				in0 = singleBuffer;
+				in0[0] = newDirectIn.internalNioBuffer( 0, readableBytes );
 			}
-			else
+			
+			for ( ;; )
 			{
-				ctx.close( promise );
+				ByteBuffer out0 = out.nioBuffer( out.writerIndex(), out.writableBytes() );
+				SSLEngineResult result = engine.wrap( in0, out0 );
+				in.skipBytes( result.bytesConsumed() );
+				out.writerIndex( out.writerIndex() + result.bytesProduced() );
+				
+				switch ( result.getStatus() )
+				{
+					case BUFFER_OVERFLOW:
+						out.ensureWritable( maxPacketBufferSize );
+						break;
+					default:
+						return result;
+				}
 			}
-			return;
 		}
-		
-		engine.closeOutbound();
-		
-		ChannelPromise closeNotifyFuture = ctx.newPromise();
-		write( ctx, Unpooled.EMPTY_BUFFER, closeNotifyFuture );
-		flush( ctx );
-		safeClose( ctx, closeNotifyFuture, promise );
-	}
-	
-	@Override
-	public void handlerAdded( final ChannelHandlerContext ctx ) throws Exception
-	{
-		this.ctx = ctx;
-		pendingUnencryptedWrites = new PendingWriteQueue( ctx );
-		
-		if ( ctx.channel().isActive() && engine.getUseClientMode() )
-		{
-			// Begin the initial handshake.
-			// channelActive() event has been fired already, which means this.channelActive() will
-			// not be invoked. We have to initialize here instead.
-			handshake( null );
-		}
-		else
-		{
-			// channelActive() event has not been fired yet. this.channelOpen() will be invoked
-			// and initialization will occur there.
-		}
-	}
-	
-	/**
-	 * Performs TLS renegotiation.
-	 */
-	public Future<Channel> renegotiate()
-	{
-		ChannelHandlerContext ctx = this.ctx;
-		if ( ctx == null )
+		finally
 		{
-			throw new IllegalStateException();
+			// Null out to allow GC of ByteBuffer
+			singleBuffer[0] = null;
+			
+			if ( newDirectIn != null )
+				newDirectIn.release();
 		}
-		
-		return renegotiate( ctx.executor().<Channel> newPromise() );
 	}
 	
-	/**
-	 * Performs TLS renegotiation.
-	 */
-	public Future<Channel> renegotiate( final Promise<Channel> promise )
+	private void wrap( ChannelHandlerContext ctx, boolean inUnwrap ) throws SSLException
 	{
-		if ( promise == null )
-		{
-			throw new NullPointerException( "promise" );
-		}
-		
-		ChannelHandlerContext ctx = this.ctx;
-		if ( ctx == null )
-		{
-			throw new IllegalStateException();
-		}
-		
-		EventExecutor executor = ctx.executor();
-		if ( !executor.inEventLoop() )
+		ByteBuf out = null;
+		ChannelPromise promise = null;
+		ByteBufAllocator alloc = ctx.alloc();
+		try
 		{
-			executor.execute( new OneTimeTask()
+			for ( ;; )
 			{
-				@Override
-				public void run()
+				ByteBuf buf = coalesced;
+				
+				if ( buf == null )
 				{
-					handshake( promise );
+					Object msg = pendingUnencryptedWrites.current();
+					if ( msg == null )
+						break;
+					
+					if ( ! ( msg instanceof ByteBuf ) )
+					{
+						pendingUnencryptedWrites.removeAndWrite();
+						continue;
+					}
+					
+					buf = ( ByteBuf ) msg;
+					
+					// Several small writes go out as one record
+					if ( buf.readableBytes() < MAX_PLAINTEXT_LENGTH && pendingUnencryptedWrites.size() > 1 )
+					{
+						coalesce( ctx );
+						buf = coalesced;
+					}
 				}
-			} );
-			return promise;
-		}
-		
-		handshake( promise );
-		return promise;
-	}
-	
-	/**
-	 * Performs TLS (re)negotiation.
-	 *
-	 * @param newHandshakePromise
-	 *            if {@code null}, use the existing {@link #handshakePromise},
-	 *            assuming that the current negotiation has not been finished.
-	 *            Currently, {@code null} is expected only for the initial handshake.
-	 */
-	private void handshake( final Promise<Channel> newHandshakePromise )
-	{
-		final Promise<Channel> p;
-		if ( newHandshakePromise != null )
-		{
-			final Promise<Channel> oldHandshakePromise = handshakePromise;
-			if ( !oldHandshakePromise.isDone() )
-			{
-				// There's no need to handshake because handshake is in progress already.
-				// Merge the new promise into the old one.
-				oldHandshakePromise.addListener( new FutureListener<Channel>()
+				
+				if ( out == null )
+					out = allocateOutNetBuf( ctx, buf.readableBytes() );
+				
+				SSLEngineResult result = wrap( alloc, engine, buf, out );
+				
+				if ( result.bytesConsumed() > 0 )
 				{
-					@Override
-					public void operationComplete( Future<Channel> future ) throws Exception
+					pendingBytes -= result.bytesConsumed();
+					NetMetrics.recordWrapped( result.bytesConsumed() );
+				}
+				
+				if ( buf.isReadable() )
+					promise = null;
+				else if ( buf == coalesced )
+				{
+					promise = coalescedPromise;
+					coalesced.release();
+					coalesced = null;
+					coalescedPromise = null;
+				}
+				else
+					promise = pendingUnencryptedWrites.remove();
+				
+				if ( result.getStatus() == Status.CLOSED )
+				{
+					// SSLEngine has been closed already.
+					// Any further write attempts should be denied.
+					failPendingWrites( SSLENGINE_CLOSED );
+					return;
+				}
+				else
+					switch ( result.getHandshakeStatus() )
 					{
-						if ( future.isSuccess() )
-						{
-							newHandshakePromise.setSuccess( future.getNow() );
-						}
-						else
-						{
-							newHandshakePromise.setFailure( future.cause() );
-						}
+						case NEED_TASK:
+							if ( !runDelegatedTasks() )
+								return;
+							break;
+						case FINISHED:
+							setHandshakeSuccess();
+							// deliberate fall-through
+						case NOT_HANDSHAKING:
+							setHandshakeSuccessIfStillHandshaking();
+							// deliberate fall-through
+						case NEED_WRAP:
+							finishWrap( ctx, out, promise, inUnwrap );
+							promise = null;
+							out = null;
+							break;
+						case NEED_UNWRAP:
+							return;
+						default:
+							throw new IllegalStateException( "Unknown handshake status: " + result.getHandshakeStatus() );
 					}
-				} );
-				return;
 			}
-			
-			handshakePromise = p = newHandshakePromise;
-		}
-		else
-		{
-			// Forced to reuse the old handshake.
-			p = handshakePromise;
-			assert !p.isDone();
 		}
-		
-		// Begin handshake.
-		final ChannelHandlerContext ctx = this.ctx;
-		try
-		{
-			engine.beginHandshake();
-			wrapNonAppData( ctx, false );
-			ctx.flush();
-		}
-		catch ( Exception e )
-		{
-			notifyHandshakeFailure( e );
-		}
-		
-		// Set timeout if necessary.
-		final long handshakeTimeoutMillis = this.handshakeTimeoutMillis;
-		if ( handshakeTimeoutMillis <= 0 || p.isDone() )
+		catch ( SSLException e )
 		{
-			return;
+			setHandshakeFailure( ctx, e );
+			throw e;
 		}
-		
-		final ScheduledFuture<?> timeoutFuture = ctx.executor().schedule( new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				if ( p.isDone() )
-				{
-					return;
-				}
-				notifyHandshakeFailure( HANDSHAKE_TIMED_OUT );
-			}
-		}, handshakeTimeoutMillis, TimeUnit.MILLISECONDS );
-		
-		// Cancel the handshake timeout when handshake is finished.
-		p.addListener( new FutureListener<Channel>()
-		{
-			@Override
-			public void operationComplete( Future<Channel> f ) throws Exception
-			{
-				timeoutFuture.cancel( false );
-			}
-		} );
-	}
-	
-	/**
-	 * Issues an initial TLS handshake once connected when used in client-mode
-	 */
-	@Override
-	public void channelActive( final ChannelHandlerContext ctx ) throws Exception
-	{
-		if ( !startTls && engine.getUseClientMode() )
+		finally
 		{
-			// Begin the initial handshake
-			handshake( null );
+			finishWrap( ctx, out, promise, inUnwrap );
 		}
-		ctx.fireChannelActive();
 	}
 	
-	private void safeClose( final ChannelHandlerContext ctx, ChannelFuture flushFuture, final ChannelPromise promise )
+	private void wrapNonAppData( ChannelHandlerContext ctx, boolean inUnwrap ) throws SSLException
 	{
-		if ( !ctx.channel().isActive() )
-		{
-			ctx.close( promise );
-			return;
-		}
-		
-		final ScheduledFuture<?> timeoutFuture;
-		if ( closeNotifyTimeoutMillis > 0 )
+		ByteBuf out = null;
+		ByteBufAllocator alloc = ctx.alloc();
+		try
 		{
-			// Force-close the connection if close_notify is not fully sent in time.
-			timeoutFuture = ctx.executor().schedule( new Runnable()
+			for ( ;; )
 			{
-				@Override
-				public void run()
+				if ( out == null )
+					out = allocateOutNetBuf( ctx, 0 );
+				SSLEngineResult result = wrap( alloc, engine, Unpooled.EMPTY_BUFFER, out );
+				
+				if ( result.bytesProduced() > 0 )
 				{
-					logger.warn( "{} Last write attempt timed out; force-closing the connection.", ctx.channel() );
-					ctx.close( promise );
+					ctx.write( out );
+					if ( inUnwrap )
+						needsFlush = true;
+					out = null;
 				}
-			}, closeNotifyTimeoutMillis, TimeUnit.MILLISECONDS );
-		}
-		else
-		{
-			timeoutFuture = null;
-		}
-		
-		// Close the connection if close_notify is sent in time.
-		flushFuture.addListener( new ChannelFutureListener()
-		{
-			@Override
-			public void operationComplete( ChannelFuture f ) throws Exception
-			{
-				if ( timeoutFuture != null )
+				
+				switch ( result.getHandshakeStatus() )
 				{
-					timeoutFuture.cancel( false );
+					case FINISHED:
+						setHandshakeSuccess();
+						break;
+					case NEED_TASK:
+						if ( !runDelegatedTasks() )
+							return;
+						break;
+					case NEED_UNWRAP:
+						if ( !inUnwrap )
+							unwrapNonAppData( ctx );
+						break;
+					case NEED_WRAP:
+						break;
+					case NOT_HANDSHAKING:
+						setHandshakeSuccessIfStillHandshaking();
+						// Workaround for TLS False Start problem reported at:
+						// https://github.com/netty/netty/issues/1108#issuecomment-14266970
+						if ( !inUnwrap )
+							unwrapNonAppData( ctx );
+						break;
+					default:
+						throw new IllegalStateException( "Unknown handshake status: " + result.getHandshakeStatus() );
 				}
-				// Trigger the close in all cases to make sure the promise is notified
-				// See https://github.com/netty/netty/issues/2358
-				ctx.close( promise );
+				
+				if ( result.bytesProduced() == 0 )
+					break;
 			}
-		} );
-	}
-	
-	/**
-	 * Always prefer a direct buffer when it's pooled, so that we reduce the number of memory copies
-	 * in {@link OpenSslEngine}.
-	 */
-	private ByteBuf allocate( ChannelHandlerContext ctx, int capacity )
-	{
-		ByteBufAllocator alloc = ctx.alloc();
-		if ( wantsDirectBuffer )
-		{
-			return alloc.directBuffer( capacity );
 		}
-		else
-		{
-			return alloc.buffer( capacity );
-		}
-	}
-	
-	/**
-	 * Allocates an outbound network buffer for {@link SSLEngine#wrap(ByteBuffer, ByteBuffer)} which can encrypt
-	 * the specified amount of pending bytes.
-	 */
-	private ByteBuf allocateOutNetBuf( ChannelHandlerContext ctx, int pendingBytes )
-	{
-		if ( wantsLargeOutboundNetworkBuffer )
+		catch ( SSLException e )
 		{
-			return allocate( ctx, maxPacketBufferSize );
+			setHandshakeFailure( ctx, e );
+			throw e;
 		}
-		else
+		finally
 		{
-			return allocate( ctx, Math.min( pendingBytes + MAX_ENCRYPTION_OVERHEAD_LENGTH, maxPacketBufferSize ) );
+			if ( out != null )
+				out.release();
 		}
 	}
 	
-	private final class LazyChannelPromise extends DefaultPromise<Channel>
+	@Override
+	public void write( final ChannelHandlerContext ctx, Object msg, ChannelPromise promise ) throws Exception
 	{
-		
-		@Override
-		protected EventExecutor executor()
-		{
-			if ( ctx == null )
-			{
-				throw new IllegalStateException();
-			}
-			return ctx.executor();
-		}
+		if ( msg instanceof ByteBuf )
+			pendingBytes += ( ( ByteBuf ) msg ).readableBytes();
+		pendingUnencryptedWrites.add( msg, promise );
 	}
 }
@@ -0,0 +1,69 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslServerContext;
+
+import java.io.File;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Creates server engines backed by OpenSSL through netty-tcnative, which does the RSA and AES work far cheaper than the
+ * JDK. Only usable when {@link #isAvailable()} and the certificate is at hand as PEM files.
+ */
+public class OpenSslEngineProvider implements SslEngineProvider
+{
+	private final OpenSslServerContext context;
+	private final TlsProfile profile;
+	
+	/**
+	 * @param certChainFile
+	 *            The PEM certificate chain
+	 * @param keyFile
+	 *            The PEM PKCS#8 private key
+	 * @param keyPassword
+	 *            The password of the key, null if it is not encrypted
+	 * @param sessionCacheSize
+	 *            The most sessions kept, 0 for the OpenSSL default
+	 * @param sessionTimeout
+	 *            The seconds a session may be resumed for, 0 for the OpenSSL default
+	 */
+	public OpenSslEngineProvider( File certChainFile, File keyFile, String keyPassword, TlsProfile profile, long sessionCacheSize, long sessionTimeout ) throws SSLException
+	{
+		Validate.notNull( profile );
+		Validate.validState( isAvailable(), "OpenSSL is not available: %s", OpenSsl.unavailabilityCause() );
+		
+		// OpenSSL takes the ciphers for the whole context, the protocols are left to its defaults
+		context = new OpenSslServerContext( certChainFile, keyFile, keyPassword, profile.openSslCiphers(), null, sessionCacheSize, sessionTimeout );
+		this.profile = profile;
+	}
+	
+	public static boolean isAvailable()
+	{
+		return OpenSsl.isAvailable();
+	}
+	
+	@Override
+	public SSLEngine newEngine( ByteBufAllocator alloc, String peerHost, int peerPort )
+	{
+		return context.newEngine( alloc );
+	}
+	
+	@Override
+	public TlsProfile profile()
+	{
+		return profile;
+	}
+}
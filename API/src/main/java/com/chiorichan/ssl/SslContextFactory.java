@@ -7,6 +7,9 @@
 package com.chiorichan.ssl;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.commons.lang3.Validate;
 
 /**
  * @author Chiori Greene
@@ -16,6 +19,7 @@ public class SslContextFactory
 {
 	private static final String PROTOCOL = "TLS";
 	private static final SSLContext CLIENT_CONTEXT;
+	private static volatile SslEngineProvider clientProvider;
 	
 	static
 	{
@@ -32,6 +36,12 @@ public class SslContextFactory
 		}
 		
 		CLIENT_CONTEXT = clientContext;
+		
+		// Old ESM servers may not tolerate a TLSv1.2 hello, so the upstream keeps offering what it always did
+		clientProvider = new JdkSslEngineProvider( CLIENT_CONTEXT, true, TlsProfile.LEGACY );
+		
+		// Sessions are cached by peer host and port, so reconnects to the ESM server resume instead of doing a full handshake
+		setSessionCache( 1024, 4 * 60 * 60 );
 	}
 	
 	
@@ -40,6 +50,37 @@ public class SslContextFactory
 		return CLIENT_CONTEXT;
 	}
 	
+	/**
+	 * @return The provider of upstream legs that were not given one
+	 */
+	public static SslEngineProvider getClientProvider()
+	{
+		return clientProvider;
+	}
+	
+	public static void setClientProvider( SslEngineProvider provider )
+	{
+		Validate.notNull( provider );
+		clientProvider = provider;
+	}
+	
+	/**
+	 * Sizes the client-side session cache, only used by engines created with the peer host and port
+	 * 
+	 * @param size
+	 *            The most sessions kept, 0 for no limit
+	 * @param timeout
+	 *            The seconds a session may be resumed for, 0 for no limit
+	 */
+	public static void setSessionCache( int size, int timeout )
+	{
+		Validate.isTrue( size >= 0 && timeout >= 0, "The size and timeout can't be negative" );
+		
+		SSLSessionContext sessions = CLIENT_CONTEXT.getClientSessionContext();
+		sessions.setSessionCacheSize( size );
+		sessions.setSessionTimeout( timeout );
+	}
+	
 	private SslContextFactory()
 	{
 		// Unused
@@ -0,0 +1,32 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import io.netty.buffer.ByteBufAllocator;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Creates the {@link SSLEngine}s of a listener or upstream, already in the right mode and with its {@link TlsProfile}
+ * applied
+ */
+public interface SslEngineProvider
+{
+	/**
+	 * @param alloc
+	 *            The allocator of the channel, used by engines that keep their buffers off heap
+	 * @param peerHost
+	 *            The host of the peer, so client sessions can be resumed. May be null on the server side.
+	 * @param peerPort
+	 *            The port of the peer
+	 */
+	SSLEngine newEngine( ByteBufAllocator alloc, String peerHost, int peerPort );
+	
+	TlsProfile profile();
+}
@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLEngine;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The protocols and cipher suites a leg offers, in order of preference.
+ * <p>
+ * The names are kept in both the JDK and OpenSSL spelling, since an OpenSSL context takes its ciphers when it's created
+ * instead of per engine.
+ */
+public enum TlsProfile
+{
+	/**
+	 * What the DVRs have always been offered, TLSv1 with RC4
+	 */
+	LEGACY( new String[] {"TLSv1"}, new String[] {"SSL_RSA_WITH_RC4_128_SHA", "SSL_RSA_WITH_RC4_128_MD5"}, new String[] {"RC4-SHA", "RC4-MD5"} ),
+	/**
+	 * AES-GCM first, which runs on AES-NI, then AES-CBC. Still ends with the LEGACY suites so peers that only know those
+	 * keep working.
+	 */
+	MODERN( new String[] {"TLSv1.2", "TLSv1.1", "TLSv1"}, new String[] {"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_RSA_WITH_AES_128_GCM_SHA256", "TLS_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA", "TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_RSA_WITH_AES_256_CBC_SHA", "SSL_RSA_WITH_RC4_128_SHA", "SSL_RSA_WITH_RC4_128_MD5"}, new String[] {"ECDHE-RSA-AES128-GCM-SHA256", "ECDHE-RSA-AES256-GCM-SHA384", "AES128-GCM-SHA256", "AES256-GCM-SHA384", "ECDHE-RSA-AES128-SHA", "AES128-SHA", "AES256-SHA", "RC4-SHA", "RC4-MD5"} );
+	
+	private final String[] protocols;
+	private final String[] cipherSuites;
+	private final List<String> openSslCiphers;
+	
+	TlsProfile( String[] protocols, String[] cipherSuites, String[] openSslCiphers )
+	{
+		this.protocols = protocols;
+		this.cipherSuites = cipherSuites;
+		this.openSslCiphers = Collections.unmodifiableList( Arrays.asList( openSslCiphers ) );
+	}
+	
+	private static String[] supported( String[] wanted, String[] supported )
+	{
+		List<String> available = Arrays.asList( supported );
+		List<String> result = Lists.newArrayList();
+		
+		for ( String name : wanted )
+			if ( available.contains( name ) )
+				result.add( name );
+		
+		return result.toArray( new String[result.size()] );
+	}
+	
+	/**
+	 * Enables the protocols and cipher suites of this profile the engine supports, in our order
+	 */
+	public void apply( SSLEngine engine )
+	{
+		String[] protocols = supported( this.protocols, engine.getSupportedProtocols() );
+		String[] cipherSuites = supported( this.cipherSuites, engine.getSupportedCipherSuites() );
+		
+		if ( protocols.length == 0 || cipherSuites.length == 0 )
+			throw new IllegalStateException( "The engine supports none of the " + this + " protocols or cipher suites" );
+		
+		engine.setEnabledProtocols( protocols );
+		engine.setEnabledCipherSuites( cipherSuites );
+	}
+	
+	/**
+	 * @return The cipher suites in OpenSSL spelling
+	 */
+	public List<String> openSslCiphers()
+	{
+		return openSslCiphers;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Process wide counters of the proxy, cheap enough to update from the event loops
+ */
+public class NetMetrics
+{
+	private static final AtomicLong flushes = new AtomicLong();
+	private static final AtomicLong flushedFrames = new AtomicLong();
+	private static final AtomicLong readPauses = new AtomicLong();
+	private static final AtomicLong readPausedNanos = new AtomicLong();
+	private static final AtomicLong sessionHits = new AtomicLong();
+	private static final AtomicLong sessionMisses = new AtomicLong();
+	private static final AtomicLong wrappedRecords = new AtomicLong();
+	private static final AtomicLong wrappedBytes = new AtomicLong();
+	
+	public static void flushed( int frames )
+	{
+		flushes.incrementAndGet();
+		flushedFrames.addAndGet( frames );
+	}
+	
+	/**
+	 * @return The average number of frames written per flush
+	 */
+	public static double getFramesPerFlush()
+	{
+		long flushes = NetMetrics.flushes.get();
+		return flushes == 0 ? 0 : ( double ) flushedFrames.get() / flushes;
+	}
+	
+	/**
+	 * Counts a successful TLS handshake as a session cache hit if the session is older than the engine, so it was resumed
+	 * instead of negotiated with a full handshake.
+	 * 
+	 * @param createdAt
+	 *            When the engine was created, in milliseconds as {@link System#currentTimeMillis()}
+	 */
+	public static void handshakeCompleted( SSLEngine engine, long createdAt )
+	{
+		if ( engine.getSession().getCreationTime() < createdAt )
+			sessionHits.incrementAndGet();
+		else
+			sessionMisses.incrementAndGet();
+	}
+	
+	public static long getFlushes()
+	{
+		return flushes.get();
+	}
+	
+	/**
+	 * @return The average plaintext bytes per TLS record we wrapped
+	 */
+	public static double getPlaintextPerRecord()
+	{
+		long records = wrappedRecords.get();
+		return records == 0 ? 0 : ( double ) wrappedBytes.get() / records;
+	}
+	
+	/**
+	 * @return How many times a leg stopped reading because its peer was not writable
+	 */
+	public static long getReadPauses()
+	{
+		return readPauses.get();
+	}
+	
+	/**
+	 * @return The total time legs spent not reading because their peer was not writable, pauses still going are not counted
+	 */
+	public static long getReadPausedTime( TimeUnit unit )
+	{
+		return unit.convert( readPausedNanos.get(), TimeUnit.NANOSECONDS );
+	}
+	
+	/**
+	 * @return How many TLS handshakes resumed a cached session
+	 */
+	public static long getSessionHits()
+	{
+		return sessionHits.get();
+	}
+	
+	/**
+	 * @return How many TLS handshakes had to negotiate a new session
+	 */
+	public static long getSessionMisses()
+	{
+		return sessionMisses.get();
+	}
+	
+	public static void readPaused()
+	{
+		readPauses.incrementAndGet();
+	}
+	
+	public static void readResumed( long pausedNanos )
+	{
+		readPausedNanos.addAndGet( pausedNanos );
+	}
+	
+	public static void recordWrapped( int plaintext )
+	{
+		wrappedRecords.incrementAndGet();
+		wrappedBytes.addAndGet( plaintext );
+	}
+	
+	public static String summary()
+	{
+		return "flushes=" + getFlushes() + ",framesPerFlush=" + getFramesPerFlush() + ",readPauses=" + getReadPauses() + ",readPausedMillis=" + getReadPausedTime( TimeUnit.MILLISECONDS ) + ",sessionHits=" + getSessionHits() + ",sessionMisses=" + getSessionMisses() + ",plaintextPerRecord=" + getPlaintextPerRecord();
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpstreamPoolTest
+{
+	private EventLoopGroup group;
+	private EventLoop loop;
+	private ServerSocket upstream;
+	
+	@Before
+	public void setup() throws Exception
+	{
+		group = new NioEventLoopGroup( 1 );
+		loop = group.next();
+		upstream = new ServerSocket( 0 );
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		UpstreamPool.setDefaults( 0, 4, 30, 300, TimeUnit.SECONDS );
+		upstream.close();
+		group.shutdownGracefully().syncUninterruptibly();
+	}
+	
+	private UpstreamPool get() throws Exception
+	{
+		return loop.submit( new Callable<UpstreamPool>()
+		{
+			@Override
+			public UpstreamPool call()
+			{
+				return UpstreamPool.get( loop, "127.0.0.1", upstream.getLocalPort(), false );
+			}
+		} ).get();
+	}
+	
+	private int failures( final UpstreamPool pool ) throws Exception
+	{
+		return loop.submit( new Callable<Integer>()
+		{
+			@Override
+			public Integer call()
+			{
+				return pool.getFailures();
+			}
+		} ).get();
+	}
+	
+	private int idle( final UpstreamPool pool ) throws Exception
+	{
+		return loop.submit( new Callable<Integer>()
+		{
+			@Override
+			public Integer call()
+			{
+				return pool.getIdle();
+			}
+		} ).get();
+	}
+	
+	@Test
+	public void disabledByDefault() throws Exception
+	{
+		assertNull( get() );
+	}
+	
+	@Test
+	public void claimedLegSendsTheUrlOfTheClaimer() throws Exception
+	{
+		UpstreamPool.setDefaults( 1, 1, 30, 300, TimeUnit.SECONDS );
+		final UpstreamPool pool = get();
+		
+		for ( int i = 0; i < 50 && idle( pool ) == 0; i++ )
+			Thread.sleep( 20 );
+		
+		final NetClient client = loop.submit( new Callable<NetClient>()
+		{
+			@Override
+			public NetClient call()
+			{
+				NetClient client = pool.claim();
+				client.request( "/dvr" );
+				return client;
+			}
+		} ).get();
+		assertNotNull( client );
+		
+		upstream.setSoTimeout( 5000 );
+		Socket socket = upstream.accept();
+		try
+		{
+			BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+			assertEquals( "GET /dvr HTTP/1.0", in.readLine() );
+		}
+		finally
+		{
+			socket.close();
+			client.disconnect();
+		}
+	}
+	
+	@Test
+	public void unclaimedPoolIsRetired() throws Exception
+	{
+		UpstreamPool.setDefaults( 1, 1, 30000, 100, TimeUnit.MILLISECONDS );
+		UpstreamPool pool = get();
+		
+		// The refill task runs once a second and notices nobody claimed a leg, then a new pool takes its place
+		for ( int i = 0; i < 50 && get() == pool; i++ )
+			Thread.sleep( 100 );
+		
+		assertNotSame( pool, get() );
+		assertEquals( 0, idle( pool ) );
+	}
+	
+	@Test
+	public void failedRefillsBackOff() throws Exception
+	{
+		// Nothing listens on the port anymore, every connect is refused
+		upstream.close();
+		
+		UpstreamPool.setDefaults( 4, 4, 30, 300, TimeUnit.SECONDS );
+		UpstreamPool pool = get();
+		
+		for ( int i = 0; i < 50 && failures( pool ) < 4; i++ )
+			Thread.sleep( 20 );
+		assertEquals( 4, failures( pool ) );
+		
+		// Without the backoff the refills of the next seconds would try 4 legs each
+		Thread.sleep( 2500 );
+		assertEquals( 4, failures( pool ) );
+	}
+}
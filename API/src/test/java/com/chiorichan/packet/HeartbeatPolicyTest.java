@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HeartbeatPolicyTest
+{
+	private static final long INTERVAL = TimeUnit.SECONDS.toNanos( 30 );
+	private static final long JITTER = TimeUnit.SECONDS.toNanos( 5 );
+	
+	@Test
+	public void firstPingIsRandomWithinOneInterval()
+	{
+		HeartbeatPolicy policy = new HeartbeatPolicy( 30, 5, false, TimeUnit.SECONDS );
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		
+		for ( int i = 0; i < 1000; i++ )
+		{
+			long delay = policy.initialDelay();
+			assertTrue( delay > 0 && delay <= INTERVAL );
+			min = Math.min( min, delay );
+			max = Math.max( max, delay );
+		}
+		
+		assertTrue( "The first pings of sessions that connected together spread out", max - min > INTERVAL / 2 );
+	}
+	
+	@Test
+	public void nextPingStaysWithinTheJitter()
+	{
+		HeartbeatPolicy policy = new HeartbeatPolicy( 30, 5, false, TimeUnit.SECONDS );
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		
+		for ( int i = 0; i < 1000; i++ )
+		{
+			long delay = policy.nextDelay();
+			assertTrue( delay >= INTERVAL - JITTER && delay <= INTERVAL + JITTER );
+			min = Math.min( min, delay );
+			max = Math.max( max, delay );
+		}
+		
+		assertTrue( "The pings are moved either way", min < INTERVAL && max > INTERVAL );
+	}
+	
+	@Test
+	public void withoutJitterEveryPingIsOneIntervalApart()
+	{
+		HeartbeatPolicy policy = new HeartbeatPolicy( 30, 0, false, TimeUnit.SECONDS );
+		
+		for ( int i = 0; i < 10; i++ )
+			assertEquals( INTERVAL, policy.nextDelay() );
+	}
+	
+	@Test
+	public void adaptiveSkipsOnlyWhileThereWasTraffic()
+	{
+		HeartbeatPolicy policy = new HeartbeatPolicy( 30, 5, true, TimeUnit.SECONDS );
+		
+		assertTrue( policy.skip( 0 ) );
+		assertTrue( policy.skip( INTERVAL - 1 ) );
+		assertFalse( policy.skip( INTERVAL ) );
+		assertFalse( policy.skip( INTERVAL * 2 ) );
+	}
+	
+	@Test
+	public void notAdaptiveNeverSkips()
+	{
+		HeartbeatPolicy policy = new HeartbeatPolicy( 30, 5, false, TimeUnit.SECONDS );
+		
+		assertFalse( policy.skip( 0 ) );
+		assertFalse( policy.skip( INTERVAL * 2 ) );
+	}
+	
+	@Test( expected = IllegalArgumentException.class )
+	public void jitterMustBeLessThanTheInterval()
+	{
+		new HeartbeatPolicy( 5, 5, false, TimeUnit.SECONDS );
+	}
+}
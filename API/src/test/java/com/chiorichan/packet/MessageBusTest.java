@@ -0,0 +1,159 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageBusTest
+{
+	static class TestBus extends MessageBus
+	{
+		MessageBus peer;
+		
+		@Override
+		protected void badCommand( byte[] packetId )
+		{
+			
+		}
+		
+		@Override
+		protected void failedCommand( byte[] packetId )
+		{
+			
+		}
+		
+		@Override
+		public void incoming( ByteBuf buf )
+		{
+			buf.release();
+		}
+		
+		@Override
+		protected boolean packetReceived( Packet... packets )
+		{
+			return false;
+		}
+		
+		@Override
+		protected MessageBus peer()
+		{
+			return peer;
+		}
+		
+		@Override
+		protected void start()
+		{
+			
+		}
+	}
+	
+	private EmbeddedChannel upstream;
+	private EmbeddedChannel dvr;
+	private TestBus bus;
+	
+	static MessageStream stream( EmbeddedChannel channel )
+	{
+		return new MessageStream( channel.pipeline().firstContext() );
+	}
+	
+	@Before
+	public void setup()
+	{
+		PreConnectQueue.setDefaults( 16, PreConnectQueue.Overflow.PAUSE_READ );
+		
+		upstream = new EmbeddedChannel( new ChannelHandlerAdapter() );
+		dvr = new EmbeddedChannel( new ChannelHandlerAdapter() );
+		
+		TestBus peer = new TestBus();
+		peer.setStream( stream( dvr ) );
+		
+		bus = new TestBus();
+		bus.peer = peer;
+		bus.setStream( stream( upstream ) );
+	}
+	
+	@After
+	public void tearDown()
+	{
+		PreConnectQueue.setDefaults( 256 * 1024, PreConnectQueue.Overflow.PAUSE_READ );
+		upstream.finish();
+		dvr.finish();
+		
+		for ( Object msg = upstream.readOutbound(); msg != null; msg = upstream.readOutbound() )
+			( ( ByteBuf ) msg ).release();
+	}
+	
+	@Test
+	public void backpressureKeepsTheCachePauseFromResumingReads()
+	{
+		bus.write( Unpooled.wrappedBuffer( new byte[32] ) );
+		assertFalse( "Over the cache limit the DVR stops reading", dvr.config().isAutoRead() );
+		
+		bus.writabilityChanged( false );
+		bus.start0();
+		assertFalse( "The upstream is still not writable", dvr.config().isAutoRead() );
+		
+		bus.writabilityChanged( true );
+		assertTrue( dvr.config().isAutoRead() );
+	}
+	
+	@Test
+	public void drainingTheCacheResumesReads()
+	{
+		bus.write( Unpooled.wrappedBuffer( new byte[32] ) );
+		assertFalse( dvr.config().isAutoRead() );
+		
+		bus.start0();
+		assertTrue( dvr.config().isAutoRead() );
+	}
+	
+	@Test
+	public void theCacheKeepsBackpressureFromResumingReads()
+	{
+		bus.writabilityChanged( false );
+		bus.write( Unpooled.wrappedBuffer( new byte[32] ) );
+		
+		bus.writabilityChanged( true );
+		assertFalse( "The cache is still over its limit", dvr.config().isAutoRead() );
+		
+		bus.start0();
+		assertTrue( dvr.config().isAutoRead() );
+	}
+	
+	@Test
+	public void closingWhileThePingRunsStopsThePinger() throws Exception
+	{
+		bus.setHeartbeatPolicy( new HeartbeatPolicy( 1, 0, false, TimeUnit.MILLISECONDS )
+		{
+			@Override
+			public boolean skip( long idle )
+			{
+				bus.close();
+				return true;
+			}
+		} );
+		bus.start0();
+		bus.startPinger();
+		
+		Thread.sleep( 5 );
+		assertEquals( "No ping is scheduled after the bus closed", -1, upstream.runScheduledPendingTasks() );
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.List;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class PacketFrameDecoderTest
+{
+	/**
+	 * ~LGIN login detail request from the March Hexcodes notes
+	 */
+	static final String LGIN = "01001a0016000000" + "0b0306057e4c47494e0300000000004c9cc10b020202";
+	
+	static ByteBuf hex( String hex ) throws DecoderException
+	{
+		return Unpooled.wrappedBuffer( Hex.decodeHex( hex.toCharArray() ) );
+	}
+	
+	static List<String> readAll( EmbeddedChannel ch )
+	{
+		List<String> result = Lists.newArrayList();
+		
+		for ( ;; )
+		{
+			ByteBuf buf = ch.readInbound();
+			if ( buf == null )
+				return result;
+			result.add( ByteBufUtil.hexDump( buf ) );
+			buf.release();
+		}
+	}
+	
+	@Test
+	public void frameSplitAcrossReads() throws Exception
+	{
+		EmbeddedChannel ch = new EmbeddedChannel( new PacketFrameDecoder() );
+		
+		assertFalse( ch.writeInbound( hex( LGIN.substring( 0, 10 ) ) ) );
+		assertFalse( ch.writeInbound( hex( LGIN.substring( 10, 30 ) ) ) );
+		ch.writeInbound( hex( LGIN.substring( 30 ) + LGIN ) );
+		
+		assertEquals( Lists.newArrayList( LGIN, LGIN ), readAll( ch ) );
+		assertFalse( ch.finish() );
+	}
+	
+	@Test
+	public void rawDataAroundFrames() throws Exception
+	{
+		EmbeddedChannel ch = new EmbeddedChannel( new PacketFrameDecoder() );
+		
+		ch.writeInbound( hex( "616263" + LGIN + "6465" ) );
+		
+		assertEquals( Lists.newArrayList( "616263", LGIN, "6465" ), readAll( ch ) );
+	}
+	
+	@Test
+	public void strayFrameStartWithBadLengthsIsRawData() throws Exception
+	{
+		EmbeddedChannel ch = new EmbeddedChannel( new PacketFrameDecoder() );
+		
+		// The lengths don't differ by 4, so we must not wait for 0xff61 bytes
+		ch.writeInbound( hex( "6101ff616263" + LGIN ) );
+		
+		assertEquals( Lists.newArrayList( "61", "01ff616263", LGIN ), readAll( ch ) );
+	}
+	
+	@Test
+	public void strayFrameStartWithNonZeroPaddingIsRawData() throws Exception
+	{
+		EmbeddedChannel ch = new EmbeddedChannel( new PacketFrameDecoder() );
+		
+		ch.writeInbound( hex( "01001a00160000ff" + LGIN ) );
+		
+		assertEquals( Lists.newArrayList( "01001a00160000ff", LGIN ), readAll( ch ) );
+	}
+	
+	@Test
+	public void plausiblePartialHeaderWaits() throws Exception
+	{
+		EmbeddedChannel ch = new EmbeddedChannel( new PacketFrameDecoder() );
+		
+		assertFalse( ch.writeInbound( hex( "01001a0016" ) ) );
+		assertNull( ch.readInbound() );
+		
+		ch.writeInbound( hex( LGIN.substring( 10 ) ) );
+		assertEquals( Lists.newArrayList( LGIN ), readAll( ch ) );
+	}
+	
+	@Test
+	public void isFrameChecksTheWholeHeader() throws Exception
+	{
+		assertEquals( true, PacketFrameDecoder.isFrame( hex( LGIN ) ) );
+		assertEquals( false, PacketFrameDecoder.isFrame( hex( "01ff616263" ) ) );
+		assertEquals( false, PacketFrameDecoder.isFrame( hex( "01001a00160000ff" ) ) );
+	}
+}
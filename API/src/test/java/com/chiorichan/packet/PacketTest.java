@@ -0,0 +1,132 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.packet;
+
+import static com.chiorichan.packet.PacketFrameDecoderTest.LGIN;
+import static com.chiorichan.packet.PacketFrameDecoderTest.hex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+
+import org.junit.Test;
+
+public class PacketTest
+{
+	/**
+	 * 0x65 response carrying the loginParams AssocArray, from the March Hexcodes notes
+	 */
+	static final String LOGIN_PARAMS = "010072006e000000" + "0b030601650300000000004c9cc10b02060b6c6f67696e506172616d7309" + "0a4173736f6341727261790608" + "2a64656661756c7402061b64656661756c7441757468656e7469636174696f6e4d6574686f640605" + "4d61726368060c7761726e496e61637469766508" + "06042a656e640a";
+	
+	static void assertMalformed( String hex ) throws Exception
+	{
+		ByteBuf buf = hex( hex );
+		
+		try
+		{
+			Packet.decodeLazy( buf ).release();
+			fail( "Expected a PacketException" );
+		}
+		catch ( PacketException e )
+		{
+			// Expected
+		}
+		finally
+		{
+			buf.release();
+		}
+	}
+	
+	@Test
+	public void lazyPacketParsesOnAccess() throws Exception
+	{
+		ByteBuf buf = hex( LGIN );
+		Packet packet = Packet.decodeLazy( buf );
+		
+		assertFalse( buf.isReadable() );
+		assertEquals( "~LGIN", packet.command() );
+		assertTrue( packet.hasPacketId() );
+		
+		// The packet holds its own reference to the frame
+		assertEquals( 2, buf.refCnt() );
+		assertFalse( packet.release() );
+		assertTrue( buf.release() );
+	}
+	
+	@Test
+	public void flatAndMapPayloadsAgree() throws Exception
+	{
+		Packet flat = Packet.decodeLazy( hex( LOGIN_PARAMS ) );
+		assertTrue( flat.getPayload() instanceof FlatPacketPayload );
+		
+		FlatPacketPayload.setEnabled( false );
+		try
+		{
+			Packet map = Packet.decodeLazy( hex( LOGIN_PARAMS ) );
+			assertFalse( map.getPayload() instanceof FlatPacketPayload );
+			assertEquals( map.toString(), flat.toString() );
+			
+			PacketPayload child = ( ( PacketPayload ) flat.getPayload() ).getValue( "*0" ).getPayload();
+			assertTrue( child.isAssocArray() );
+			assertEquals( "March", child.getString( "*1" ) );
+			
+			map.release();
+		}
+		finally
+		{
+			FlatPacketPayload.setEnabled( true );
+		}
+		
+		flat.release();
+	}
+	
+	@Test
+	public void payloadIsDetachedOnlyWhenTheFrameIsFreed() throws Exception
+	{
+		ByteBuf buf = hex( LOGIN_PARAMS );
+		Packet packet = Packet.decodeLazy( buf );
+		FlatPacketPayload payload = ( FlatPacketPayload ) packet.getPayload();
+		buf.release();
+		
+		packet.retain();
+		assertFalse( packet.release() );
+		assertFalse( payload.isDetached() );
+		
+		assertTrue( packet.release() );
+		assertTrue( payload.isDetached() );
+		assertTrue( payload.getValue( "*0" ).getPayload().isAssocArray() );
+	}
+	
+	@Test
+	public void malformedFramesAreRefusedByDecodeLazy() throws Exception
+	{
+		// Body does not start with 0x0b
+		assertMalformed( "010008000400000000000000" );
+		// Command runs past the end of the frame
+		assertMalformed( "0100090005000000" + "0b010609ff" );
+		// Payload string runs past the end of the frame
+		assertMalformed( "01000b0007000000" + "0b020601650609" );
+		// Unknown payload marker
+		assertMalformed( "01000d0009000000" + "0b0206016505010f" );
+		// 0x09 followed by something else than AssocArray
+		assertMalformed( "01000f000b000000" + "0b02060165050109026162" );
+	}
+	
+	@Test
+	public void touchReachesTheFrame() throws Exception
+	{
+		Packet packet = Packet.decodeLazy( hex( LGIN ) );
+		
+		assertTrue( packet.touch() == packet );
+		assertTrue( packet.touch( "hint" ) == packet );
+		
+		packet.release();
+	}
+}
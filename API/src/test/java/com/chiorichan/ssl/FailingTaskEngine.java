@@ -0,0 +1,198 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Passes everything to another engine, but its delegated tasks throw instead of running
+ */
+class FailingTaskEngine extends SSLEngine
+{
+	private final SSLEngine engine;
+	
+	FailingTaskEngine( SSLEngine engine )
+	{
+		this.engine = engine;
+	}
+	
+	@Override
+	public void beginHandshake() throws SSLException
+	{
+		engine.beginHandshake();
+	}
+	
+	@Override
+	public void closeInbound() throws SSLException
+	{
+		engine.closeInbound();
+	}
+	
+	@Override
+	public void closeOutbound()
+	{
+		engine.closeOutbound();
+	}
+	
+	@Override
+	public Runnable getDelegatedTask()
+	{
+		final Runnable task = engine.getDelegatedTask();
+		if ( task == null )
+			return null;
+		
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				throw new IllegalStateException( "Delegated task failed" );
+			}
+		};
+	}
+	
+	@Override
+	public boolean getEnableSessionCreation()
+	{
+		return engine.getEnableSessionCreation();
+	}
+	
+	@Override
+	public String[] getEnabledCipherSuites()
+	{
+		return engine.getEnabledCipherSuites();
+	}
+	
+	@Override
+	public String[] getEnabledProtocols()
+	{
+		return engine.getEnabledProtocols();
+	}
+	
+	@Override
+	public HandshakeStatus getHandshakeStatus()
+	{
+		return engine.getHandshakeStatus();
+	}
+	
+	@Override
+	public boolean getNeedClientAuth()
+	{
+		return engine.getNeedClientAuth();
+	}
+	
+	@Override
+	public SSLSession getSession()
+	{
+		return engine.getSession();
+	}
+	
+	@Override
+	public SSLParameters getSSLParameters()
+	{
+		return engine.getSSLParameters();
+	}
+	
+	@Override
+	public String[] getSupportedCipherSuites()
+	{
+		return engine.getSupportedCipherSuites();
+	}
+	
+	@Override
+	public String[] getSupportedProtocols()
+	{
+		return engine.getSupportedProtocols();
+	}
+	
+	@Override
+	public boolean getUseClientMode()
+	{
+		return engine.getUseClientMode();
+	}
+	
+	@Override
+	public boolean getWantClientAuth()
+	{
+		return engine.getWantClientAuth();
+	}
+	
+	@Override
+	public boolean isInboundDone()
+	{
+		return engine.isInboundDone();
+	}
+	
+	@Override
+	public boolean isOutboundDone()
+	{
+		return engine.isOutboundDone();
+	}
+	
+	@Override
+	public void setEnabledCipherSuites( String[] suites )
+	{
+		engine.setEnabledCipherSuites( suites );
+	}
+	
+	@Override
+	public void setEnabledProtocols( String[] protocols )
+	{
+		engine.setEnabledProtocols( protocols );
+	}
+	
+	@Override
+	public void setEnableSessionCreation( boolean flag )
+	{
+		engine.setEnableSessionCreation( flag );
+	}
+	
+	@Override
+	public void setNeedClientAuth( boolean need )
+	{
+		engine.setNeedClientAuth( need );
+	}
+	
+	@Override
+	public void setSSLParameters( SSLParameters params )
+	{
+		engine.setSSLParameters( params );
+	}
+	
+	@Override
+	public void setUseClientMode( boolean mode )
+	{
+		engine.setUseClientMode( mode );
+	}
+	
+	@Override
+	public void setWantClientAuth( boolean want )
+	{
+		engine.setWantClientAuth( want );
+	}
+	
+	@Override
+	public SSLEngineResult unwrap( ByteBuffer src, ByteBuffer[] dsts, int offset, int length ) throws SSLException
+	{
+		return engine.unwrap( src, dsts, offset, length );
+	}
+	
+	@Override
+	public SSLEngineResult wrap( ByteBuffer[] srcs, int offset, int length, ByteBuffer dst ) throws SSLException
+	{
+		return engine.wrap( srcs, offset, length, dst );
+	}
+}
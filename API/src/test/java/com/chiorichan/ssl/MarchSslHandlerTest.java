@@ -0,0 +1,415 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class MarchSslHandlerTest
+{
+	/**
+	 * Keeps the batches of delegated tasks until the test runs them, so every step happens on the test thread
+	 */
+	static class ManualExecutor extends HandshakeExecutor
+	{
+		final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		
+		ManualExecutor( int maxHandshakes )
+		{
+			super( 1, maxHandshakes );
+		}
+		
+		@Override
+		public void execute( Runnable task )
+		{
+			tasks.add( task );
+		}
+		
+		/**
+		 * Runs the batches handed over so far, like the handshake threads would
+		 */
+		void runAll()
+		{
+			for ( Runnable task = tasks.poll(); task != null; task = tasks.poll() )
+				task.run();
+		}
+	}
+	
+	/**
+	 * TLS record content types
+	 */
+	static final int ALERT = 21;
+	static final int APPLICATION_DATA = 23;
+	
+	private JdkSslEngineProvider serverProvider;
+	private JdkSslEngineProvider clientProvider;
+	private MarchSslHandler clientHandler;
+	private MarchSslHandler serverHandler;
+	private EmbeddedChannel client;
+	private EmbeddedChannel server;
+	private final List<EmbeddedChannel> channels = Lists.newArrayList();
+	
+	private final Map<EmbeddedChannel, MarchSslHandler> handlers = Maps.newHashMap();
+	
+	private MarchSslHandler handler( EmbeddedChannel ch )
+	{
+		return handlers.get( ch );
+	}
+	
+	static SSLContext serverContext() throws Exception
+	{
+		InputStream in = MarchSslHandlerTest.class.getResourceAsStream( "server.p12" );
+		KeyStore ks = KeyStore.getInstance( "PKCS12" );
+		
+		try
+		{
+			ks.load( in, "abc123".toCharArray() );
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance( "SunX509" );
+		kmf.init( ks, "abc123".toCharArray() );
+		
+		SSLContext context = SSLContext.getInstance( "TLS" );
+		context.init( kmf.getKeyManagers(), null, null );
+		return context;
+	}
+	
+	/**
+	 * Hands what each channel wrote to the other until neither writes anything
+	 */
+	static void pump( EmbeddedChannel a, EmbeddedChannel b )
+	{
+		for ( boolean moved = true; moved; )
+			moved = transfer( a, b ) | transfer( b, a );
+	}
+	
+	/**
+	 * @return The content types of the records in what the channel wrote, which is kept to be transferred
+	 */
+	static List<Integer> records( EmbeddedChannel ch )
+	{
+		List<Integer> types = Lists.newArrayList();
+		
+		for ( Object msg : ch.outboundMessages() )
+		{
+			ByteBuf buf = ( ByteBuf ) msg;
+			for ( int i = buf.readerIndex(); i < buf.writerIndex(); i += 5 + buf.getUnsignedShort( i + 3 ) )
+				types.add( ( int ) buf.getUnsignedByte( i ) );
+		}
+		
+		return types;
+	}
+	
+	static boolean transfer( EmbeddedChannel from, EmbeddedChannel to )
+	{
+		boolean moved = false;
+		
+		for ( Object msg = from.readOutbound(); msg != null; msg = from.readOutbound() )
+		{
+			if ( to.isOpen() )
+				to.writeInbound( msg );
+			else
+				( ( ByteBuf ) msg ).release();
+			moved = true;
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * Hands everything the channel wrote to the other one as a single read, like a whole flight arriving at once
+	 */
+	static boolean transferFlight( EmbeddedChannel from, EmbeddedChannel to )
+	{
+		ByteBuf flight = Unpooled.buffer();
+		for ( Object msg = from.readOutbound(); msg != null; msg = from.readOutbound() )
+		{
+			flight.writeBytes( ( ByteBuf ) msg );
+			( ( ByteBuf ) msg ).release();
+		}
+		
+		if ( !flight.isReadable() )
+		{
+			flight.release();
+			return false;
+		}
+		
+		if ( to.isOpen() )
+			to.writeInbound( flight );
+		else
+			flight.release();
+		return true;
+	}
+	
+	/**
+	 * Hands what the pairs of channels wrote to each other, the handler tasks queued on their loops and the batches on the
+	 * executor until nothing is left to do
+	 */
+	static void settle( ManualExecutor executor, EmbeddedChannel... pairs )
+	{
+		for ( int i = 0; i < 100; i++ )
+		{
+			for ( EmbeddedChannel ch : pairs )
+				ch.runPendingTasks();
+			
+			boolean moved = false;
+			for ( int j = 0; j < pairs.length; j += 2 )
+				moved |= transferFlight( pairs[j], pairs[j + 1] ) | transferFlight( pairs[j + 1], pairs[j] );
+			
+			if ( !executor.tasks.isEmpty() )
+				executor.runAll();
+			else if ( !moved )
+				return;
+		}
+		
+		throw new IllegalStateException( "The channels did not settle" );
+	}
+	
+	/**
+	 * @return A client and a server channel, the server runs its delegated tasks on the executor
+	 */
+	private EmbeddedChannel[] pair( HandshakeExecutor executor, boolean failingTasks )
+	{
+		SSLEngine engine = serverProvider.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 );
+		MarchSslHandler handler = new MarchSslHandler( failingTasks ? new FailingTaskEngine( engine ) : engine );
+		handler.setHandshakeExecutor( executor );
+		
+		MarchSslHandler clientHandler = new MarchSslHandler( clientProvider.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ) );
+		EmbeddedChannel[] pair = new EmbeddedChannel[] {new EmbeddedChannel( clientHandler ), new EmbeddedChannel( handler )};
+		handlers.put( pair[0], clientHandler );
+		handlers.put( pair[1], handler );
+		channels.add( pair[0] );
+		channels.add( pair[1] );
+		return pair;
+	}
+	
+	@Before
+	public void setup() throws Exception
+	{
+		serverProvider = new JdkSslEngineProvider( serverContext(), false, TlsProfile.MODERN );
+		clientProvider = new JdkSslEngineProvider( SslContextFactory.getClientContext(), true, TlsProfile.MODERN );
+		
+		serverHandler = new MarchSslHandler( serverProvider.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ) );
+		clientHandler = new MarchSslHandler( clientProvider.newEngine( UnpooledByteBufAllocator.DEFAULT, null, 0 ) );
+		
+		server = new EmbeddedChannel( serverHandler );
+		client = new EmbeddedChannel( clientHandler );
+		channels.add( client );
+		channels.add( server );
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for ( EmbeddedChannel ch : channels )
+		{
+			ch.finish();
+			
+			for ( Object msg = ch.readOutbound(); msg != null; msg = ch.readOutbound() )
+				( ( ByteBuf ) msg ).release();
+			for ( Object msg = ch.readInbound(); msg != null; msg = ch.readInbound() )
+				( ( ByteBuf ) msg ).release();
+		}
+	}
+	
+	@Test
+	public void handshake()
+	{
+		pump( client, server );
+		
+		assertTrue( clientHandler.handshakeFuture().isSuccess() );
+		assertTrue( serverHandler.handshakeFuture().isSuccess() );
+	}
+	
+	@Test
+	public void coalescedWritesCompleteEveryPromise()
+	{
+		pump( client, server );
+		
+		ChannelFuture[] writes = new ChannelFuture[3];
+		for ( int i = 0; i < writes.length; i++ )
+			writes[i] = client.write( Unpooled.wrappedBuffer( new byte[] {( byte ) i, ( byte ) i} ) );
+		client.flush();
+		
+		assertEquals( "The small writes go out as one record", Lists.newArrayList( APPLICATION_DATA ), records( client ) );
+		
+		pump( client, server );
+		
+		for ( ChannelFuture write : writes )
+			assertTrue( write.isSuccess() );
+		
+		ByteBuf received = Unpooled.buffer();
+		for ( Object msg = server.readInbound(); msg != null; msg = server.readInbound() )
+		{
+			received.writeBytes( ( ByteBuf ) msg );
+			( ( ByteBuf ) msg ).release();
+		}
+		assertEquals( Unpooled.wrappedBuffer( new byte[] {0, 0, 1, 1, 2, 2} ), received );
+	}
+	
+	@Test
+	public void closeNotifyIsNotHeldForTheCoalesceDeadline()
+	{
+		pump( client, server );
+		
+		// Far longer than the test, the close_notify must not wait for it
+		clientHandler.setCoalesceDelay( 1, TimeUnit.HOURS );
+		client.close();
+		
+		assertEquals( Lists.newArrayList( ALERT ), records( client ) );
+		assertFalse( client.isOpen() );
+		
+		pump( client, server );
+		
+		assertNotNull( serverHandler.sslCloseFuture().getNow() );
+		assertTrue( serverHandler.sslCloseFuture().isSuccess() );
+	}
+	
+	@Test
+	public void handshakeOnTheExecutor()
+	{
+		ManualExecutor executor = new ManualExecutor( 1 );
+		EmbeddedChannel[] pair = pair( executor, false );
+		
+		// The client checks the certificate off the loop while the rest of the server's flight waits in the cumulation
+		handler( pair[0] ).setHandshakeExecutor( executor );
+		
+		// Flushed before the handshake, it arrives with the last flight and has to be decoded once the tasks are done
+		ChannelFuture write = pair[0].writeAndFlush( Unpooled.wrappedBuffer( new byte[] {1, 2, 3} ) );
+		
+		settle( executor, pair );
+		
+		assertTrue( handler( pair[0] ).handshakeFuture().isSuccess() );
+		assertTrue( handler( pair[1] ).handshakeFuture().isSuccess() );
+		assertTrue( write.isSuccess() );
+		
+		ByteBuf received = Unpooled.buffer();
+		for ( Object msg = pair[1].readInbound(); msg != null; msg = pair[1].readInbound() )
+		{
+			received.writeBytes( ( ByteBuf ) msg );
+			( ( ByteBuf ) msg ).release();
+		}
+		assertEquals( Unpooled.wrappedBuffer( new byte[] {1, 2, 3} ), received );
+		
+		assertEquals( 0, executor.getAdmitted() );
+		assertEquals( 0, executor.getWaiting() );
+	}
+	
+	@Test
+	public void admissionPassesToTheWaitingHandshake()
+	{
+		ManualExecutor executor = new ManualExecutor( 1 );
+		EmbeddedChannel[] a = pair( executor, false );
+		EmbeddedChannel[] b = pair( executor, false );
+		
+		// Both ClientHellos arrive, one handshake runs its tasks and the other waits for the room
+		transfer( a[0], a[1] );
+		transfer( b[0], b[1] );
+		a[1].runPendingTasks();
+		b[1].runPendingTasks();
+		assertEquals( 1, executor.getAdmitted() );
+		assertEquals( 1, executor.getWaiting() );
+		assertEquals( 1, executor.tasks.size() );
+		
+		settle( executor, a[0], a[1], b[0], b[1] );
+		
+		assertTrue( handler( a[1] ).handshakeFuture().isSuccess() );
+		assertTrue( handler( b[1] ).handshakeFuture().isSuccess() );
+		assertEquals( 0, executor.getAdmitted() );
+		assertEquals( 0, executor.getWaiting() );
+	}
+	
+	@Test
+	public void failedTaskFailsTheHandshake()
+	{
+		ManualExecutor executor = new ManualExecutor( 1 );
+		EmbeddedChannel[] pair = pair( executor, true );
+		
+		settle( executor, pair );
+		
+		assertTrue( handler( pair[1] ).handshakeFuture().isDone() );
+		assertFalse( handler( pair[1] ).handshakeFuture().isSuccess() );
+		assertFalse( pair[1].isOpen() );
+		assertEquals( 0, executor.getAdmitted() );
+	}
+	
+	@Test
+	public void closingWhileWaitingPassesTheRoomOn()
+	{
+		ManualExecutor executor = new ManualExecutor( 1 );
+		EmbeddedChannel[] a = pair( executor, false );
+		EmbeddedChannel[] b = pair( executor, false );
+		
+		transfer( a[0], a[1] );
+		transfer( b[0], b[1] );
+		a[1].runPendingTasks();
+		b[1].runPendingTasks();
+		assertEquals( 1, executor.getWaiting() );
+		
+		// The DVR of the waiting handshake goes away
+		b[1].unsafe().close( b[1].voidPromise() );
+		assertFalse( handler( b[1] ).handshakeFuture().isSuccess() );
+		
+		settle( executor, a[0], a[1], b[0], b[1] );
+		
+		assertTrue( handler( a[1] ).handshakeFuture().isSuccess() );
+		assertEquals( 0, executor.getAdmitted() );
+		assertEquals( 0, executor.getWaiting() );
+	}
+	
+	@Test
+	public void closingWhileTasksRunKeepsTheRoomUntilTheyAreDone()
+	{
+		ManualExecutor executor = new ManualExecutor( 1 );
+		EmbeddedChannel[] pair = pair( executor, false );
+		
+		transfer( pair[0], pair[1] );
+		pair[1].runPendingTasks();
+		assertEquals( 1, executor.tasks.size() );
+		
+		pair[1].unsafe().close( pair[1].voidPromise() );
+		assertEquals( "The batch still uses the CPU", 1, executor.getAdmitted() );
+		
+		executor.runAll();
+		pair[1].runPendingTasks();
+		
+		assertFalse( handler( pair[1] ).handshakeFuture().isSuccess() );
+		assertEquals( 0, executor.getAdmitted() );
+	}
+}
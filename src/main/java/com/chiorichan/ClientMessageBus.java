@@ -10,11 +10,8 @@ package com.chiorichan;
 
 import io.netty.buffer.ByteBuf;
 
-import java.util.Map;
-
 import com.chiorichan.packet.MessageBus;
 import com.chiorichan.packet.Packet;
-import com.google.common.collect.Maps;
 
 public class ClientMessageBus extends MessageBus
 {
@@ -28,17 +25,13 @@ public class ClientMessageBus extends MessageBus
 	@Override
 	protected void badCommand( byte[] packetId )
 	{
-		Map<String, Object> data = Maps.newHashMap();
-		data.put( "*0", "badCommand" );
-		bus.sendPacket( new Packet( new byte[] {0x65} ).addPacketId( packetId ).setPayload( data ) );
+		bus.write( BAD_COMMAND_PACKET.newInstance( packetId ) );
 	}
 	
 	@Override
 	protected void failedCommand( byte[] packetId )
 	{
-		Map<String, Object> data = Maps.newHashMap();
-		data.put( "*0", "failed" );
-		bus.sendPacket( new Packet( new byte[] {0x65} ).addPacketId( packetId ).setPayload( data ) );
+		bus.write( FAILED_COMMAND_PACKET.newInstance( packetId ) );
 	}
 	
 	@Override
@@ -54,6 +47,12 @@ public class ClientMessageBus extends MessageBus
 		return true;
 	}
 	
+	@Override
+	protected MessageBus peer()
+	{
+		return bus;
+	}
+	
 	@Override
 	protected void start()
 	{
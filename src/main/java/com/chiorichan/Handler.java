@@ -13,19 +13,21 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Timer;
 
 import javax.net.ssl.SSLEngine;
 
 import com.chiorichan.packet.Packet;
 import com.chiorichan.packet.PacketException;
+import com.chiorichan.packet.PacketFrameDecoder;
+import com.chiorichan.ssl.MarchSslHandler;
+import com.chiorichan.ssl.SslEngineProvider;
+import com.chiorichan.util.NetMetrics;
 import com.google.common.base.Charsets;
 
 /**
@@ -34,22 +36,43 @@ import com.google.common.base.Charsets;
  */
 public class Handler extends SimpleChannelInboundHandler<Object>
 {
-	private Timer timer = new Timer( "Heartbeat", true );
 	private boolean ssl;
+	private SslEngineProvider sslProvider;
 	private ServerMessageBus bus;
 	private String url;
+	private long engineCreatedAt;
 	
-	public Handler( boolean ssl )
+	public Handler( boolean ssl, SslEngineProvider sslProvider )
 	{
 		this.ssl = ssl;
+		this.sslProvider = sslProvider;
+	}
+	
+	@Override
+	public void channelReadComplete( ChannelHandlerContext ctx ) throws Exception
+	{
+		if ( bus != null )
+			bus.endRead();
+		ctx.fireChannelReadComplete();
+	}
+	
+	@Override
+	public void channelWritabilityChanged( ChannelHandlerContext ctx ) throws Exception
+	{
+		if ( bus != null )
+			bus.writabilityChanged( ctx.channel().isWritable() );
+		ctx.fireChannelWritabilityChanged();
 	}
 	
 	@Override
 	public void channelInactive( ChannelHandlerContext ctx )
 	{
-		timer.cancel();
-		if ( bus != null && bus.client() != null )
-			bus.client().disconnect();
+		if ( bus != null )
+		{
+			bus.close();
+			if ( bus.client() != null )
+				bus.client().disconnect();
+		}
 	}
 	
 	public String getUri( String uri )
@@ -101,23 +124,24 @@ public class Handler extends SimpleChannelInboundHandler<Object>
 			
 			if ( ssl )
 			{
-				SSLEngine engine = SslContextFactory.getServerContext().createSSLEngine();
-				engine.setUseClientMode( false );
-				engine.setEnabledProtocols( new String[] {"TLSv1"} );
-				engine.setEnabledCipherSuites( new String[] {"SSL_RSA_WITH_RC4_128_SHA", "SSL_RSA_WITH_RC4_128_MD5"} );
+				engineCreatedAt = System.currentTimeMillis();
+				SSLEngine engine = sslProvider.newEngine( ctx.alloc(), null, 0 );
 				
 				ctx.pipeline().addFirst( "ssl", new MarchSslHandler( engine ) );
+				
+				// The upstream leg connects while the DVR negotiates TLS, what it sends meanwhile is cached by our bus
+				bus = new ServerMessageBus( ssl, url, ctx );
+				bus.handshaking();
 			}
 			else
 				start( ctx );
 		}
-		else if ( obj instanceof HttpContent )
+		else if ( obj instanceof ByteBuf )
 			try
 			{
 				System.out.println( "From Client Message Received: " + obj );
 				
-				HttpContent msg = ( HttpContent ) obj;
-				ByteBuf buf = msg.content();
+				ByteBuf buf = ( ByteBuf ) obj;
 				
 				if ( buf.readableBytes() < 1 )
 				{
@@ -125,13 +149,16 @@ public class Handler extends SimpleChannelInboundHandler<Object>
 					return;
 				}
 				
-				int mark = buf.readerIndex();
-				Packet[] rcvds = Packet.decode( buf );
+				bus.beginRead();
 				
-				if ( rcvds.length > 0 )
-					bus.handle( rcvds );
+				// PacketFrameDecoder hands us either exactly one whole frame or a run of raw data
+				if ( PacketFrameDecoder.isFrame( buf ) )
+					bus.handle( Packet.decodeLazy( buf ) );
 				else
-					bus.incoming( buf.copy( mark, buf.readerIndex() - mark ) );
+				{
+					bus.markActivity();
+					bus.incoming( buf.retain() );
+				}
 			}
 			catch ( PacketException e )
 			{
@@ -144,7 +171,8 @@ public class Handler extends SimpleChannelInboundHandler<Object>
 	
 	public void start( ChannelHandlerContext ctx )
 	{
-		bus = new ServerMessageBus( ssl, url, ctx );
+		if ( bus == null )
+			bus = new ServerMessageBus( ssl, url, ctx );
 		
 		bus.start0();
 		bus.startPinger();
@@ -157,7 +185,10 @@ public class Handler extends SimpleChannelInboundHandler<Object>
 		{
 			SslHandshakeCompletionEvent event = ( SslHandshakeCompletionEvent ) evt;
 			if ( event.isSuccess() )
+			{
+				NetMetrics.handshakeCompleted( ctx.pipeline().get( MarchSslHandler.class ).engine(), engineCreatedAt );
 				start( ctx );
+			}
 			else
 			{
 				System.err.println( "SSL Handshake Failed!" );
@@ -12,17 +12,20 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 
+import com.chiorichan.packet.PacketEncoder;
+import com.chiorichan.packet.PacketFrameDecoder;
+
 /**
  * @author Chiori Greene
  * @email chiorigreene@gmail.com
  */
 public class Initializer extends ChannelInitializer<SocketChannel>
 {
-	private boolean ssl;
+	private final Listener listener;
 	
-	public Initializer( boolean ssl )
+	public Initializer( Listener listener )
 	{
-		this.ssl = ssl;
+		this.listener = listener;
 	}
 	
 	@Override
@@ -31,10 +34,12 @@ public class Initializer extends ChannelInitializer<SocketChannel>
 		ChannelPipeline p = ch.pipeline();
 		
 		p.addLast( "decoder", new Decoder() );
+		p.addLast( "frameDecoder", new PacketFrameDecoder() );
 		p.addLast( "encoder", new Encoder() );
 		
 		p.addLast( new LoggingHandler( LogLevel.INFO ) );
 		
-		p.addLast( "handler", new Handler( ssl ) );
+		p.addLast( "packetEncoder", new PacketEncoder() );
+		p.addLast( "handler", new Handler( listener.isSsl(), listener.getSslProvider() ) );
 	}
 }
@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright 2015 Chiori Greene a.k.a. Chiori-chan <me@chiorichan.com>
+ * All Right Reserved.
+ */
+package com.chiorichan;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+import com.chiorichan.ssl.SslEngineProvider;
+import com.google.common.collect.Lists;
+
+/**
+ * Configuration of a port we accept DVR connections on.
+ * <p>
+ * With a transport supporting {@code SO_REUSEPORT} the port is bound by several acceptor channels, so the kernel spreads
+ * new connections over them. Otherwise a single acceptor is bound.
+ */
+public class Listener
+{
+	private final int port;
+	private final boolean ssl;
+	private int acceptors = 1;
+	private int lowWaterMark = 32 * 1024;
+	private int highWaterMark = 64 * 1024;
+	private SslEngineProvider sslProvider = null;
+	
+	public Listener( int port, boolean ssl )
+	{
+		this.port = port;
+		this.ssl = ssl;
+	}
+	
+	/**
+	 * Binds the acceptor channels and waits until they are bound
+	 *
+	 * @return The bound acceptor channels
+	 */
+	public List<Channel> bind( Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup ) throws InterruptedException
+	{
+		List<Channel> channels = Lists.newArrayList();
+		int count = transport.supportsReusePort() ? acceptors : 1;
+		
+		for ( int i = 0; i < count; i++ )
+		{
+			ServerBootstrap b = new ServerBootstrap();
+			b.group( bossGroup, workerGroup ).channel( transport.serverChannel() ).childHandler( new Initializer( this ) );
+			
+			// Crossing these stops reading from the other leg of the session, see MessageBus#writabilityChanged
+			b.childOption( ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, highWaterMark );
+			b.childOption( ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, lowWaterMark );
+			
+			if ( count > 1 )
+				transport.reusePort( b );
+			
+			channels.add( b.bind( new InetSocketAddress( port ) ).sync().channel() );
+		}
+		
+		return channels;
+	}
+	
+	public int getAcceptors()
+	{
+		return acceptors;
+	}
+	
+	public int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+	
+	public int getLowWaterMark()
+	{
+		return lowWaterMark;
+	}
+	
+	/**
+	 * @return The provider of the engines of this listener, {@link SslContextFactory#getServerProvider()} if none was set
+	 */
+	public SslEngineProvider getSslProvider()
+	{
+		return sslProvider == null ? SslContextFactory.getServerProvider() : sslProvider;
+	}
+	
+	public int getPort()
+	{
+		return port;
+	}
+	
+	public boolean isSsl()
+	{
+		return ssl;
+	}
+	
+	/**
+	 * @param acceptors
+	 *            The number of acceptor channels bound to the port, only honored if the transport supports {@code SO_REUSEPORT}
+	 */
+	public Listener setAcceptors( int acceptors )
+	{
+		Validate.isTrue( acceptors > 0, "There must be at least one acceptor" );
+		this.acceptors = acceptors;
+		return this;
+	}
+	
+	/**
+	 * Sets the provider of the engines of this listener, such as one with another {@link com.chiorichan.ssl.TlsProfile}
+	 */
+	public Listener setSslProvider( SslEngineProvider sslProvider )
+	{
+		this.sslProvider = sslProvider;
+		return this;
+	}
+	
+	/**
+	 * Sets the write buffer watermarks of the connections accepted here, also used for their upstream leg
+	 */
+	public Listener setWriteBufferWaterMarks( int lowWaterMark, int highWaterMark )
+	{
+		Validate.isTrue( lowWaterMark > 0 && lowWaterMark <= highWaterMark, "The low watermark must be positive and no more than the high watermark" );
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
+		return this;
+	}
+}
@@ -6,83 +6,71 @@
  */
 package com.chiorichan;
 
-import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
 
-import java.net.InetSocketAddress;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import com.chiorichan.ssl.HandshakeExecutor;
+import com.chiorichan.ssl.MarchSslHandler;
+import com.chiorichan.ssl.TlsProfile;
+import com.google.common.collect.Lists;
 
 public class Main
 {
-	public static EventLoopGroup bossGroup = new NioEventLoopGroup( 1 );
-	public static EventLoopGroup workerGroup = new NioEventLoopGroup();
+	public static final Transport transport = Transport.best();
+	
+	/**
+	 * Number of acceptor channels per port, several only pay off when they can share the port through SO_REUSEPORT
+	 */
+	public static final int acceptors = transport.supportsReusePort() ? Runtime.getRuntime().availableProcessors() : 1;
+	
+	/**
+	 * Default microseconds of CPU a full handshake with the RSA 2048 certificate costs, override with
+	 * {@code -Dgreenetree.handshake.costMicros}. Measured once by HandshakeBenchmark in the API with both sides together,
+	 * and with a MODERN ECDHE handshake as the JDK no longer enables the LEGACY suites, while the DVRs negotiate LEGACY
+	 * RSA key exchange. Measure the actual DVR handshake on the server hardware before relying on it.
+	 */
+	private static final long HANDSHAKE_COST_MICROS = 5000;
+	
+	/**
+	 * Microseconds of handshake work the admitted task batches may queue per handshake thread, which bounds how long an
+	 * admitted DVR waits for its key operations. A batch only holds its room while it runs, not while the DVR answers.
+	 */
+	private static final long HANDSHAKE_BACKLOG_MICROS = 50000;
+	
+	public static EventLoopGroup bossGroup = transport.newGroup( acceptors );
+	public static EventLoopGroup workerGroup = transport.newGroup( 0 );
 	
 	public static void main( String... args )
 	{
-		new Thread()
-		{
-			@Override
-			public void run()
-			{
-				// Secure 4443
-				ServerBootstrap secure = new ServerBootstrap();
-				secure.group( bossGroup, workerGroup ).channel( NioServerSocketChannel.class ).childHandler( new Initializer( true ) );
-				
-				try
-				{
-					final Channel ch = secure.bind( new InetSocketAddress( 4443 ) ).sync().channel();
-					ch.closeFuture().sync();
-				}
-				catch ( InterruptedException e )
-				{
-					e.printStackTrace();
-				}
-				finally
-				{
-					bossGroup.shutdownGracefully();
-					workerGroup.shutdownGracefully();
-				}
-			}
-		}.start();
+		MarchSslHandler.setDefaultHandshakeExecutor( newHandshakeExecutor() );
 		
-		/*
-		new Thread()
-		{
-			@Override
-			public void run()
-			{
-				// Unsecure 8080
-				ServerBootstrap unsecure = new ServerBootstrap();
-				unsecure.group( bossGroup, workerGroup ).channel( NioServerSocketChannel.class ).childHandler( new Initializer( false ) );
-				
-				try
-				{
-					final Channel ch = unsecure.bind( new InetSocketAddress( 8080 ) ).sync().channel();
-					ch.closeFuture().sync();
-				}
-				catch ( InterruptedException e )
-				{
-					e.printStackTrace();
-				}
-				finally
-				{
-					bossGroup.shutdownGracefully();
-					workerGroup.shutdownGracefully();
-				}
-			}
-		}.start();
-		*/
+		useOpenSslIfConfigured();
+		useUpstreamPoolIfConfigured();
 		
-		// DVR 2804
-		ServerBootstrap dvr = new ServerBootstrap();
-		dvr.group( bossGroup, workerGroup ).channel( NioServerSocketChannel.class ).childHandler( new Initializer( true ) );
+		// Secure 4443 and DVR 2804, Unsecure 8080 is disabled
+		Listener[] listeners = new Listener[] {new Listener( 4443, true ).setAcceptors( acceptors ), new Listener( 2804, true ).setAcceptors( acceptors )};
 		
 		try
 		{
-			final Channel ch = dvr.bind( new InetSocketAddress( 2804 ) ).sync().channel();
-			ch.closeFuture().sync();
+			List<Channel> channels = Lists.newArrayList();
+			
+			for ( Listener listener : listeners )
+				channels.addAll( listener.bind( transport, bossGroup, workerGroup ) );
+			
+			System.out.println( "Listening with the " + transport + " transport and " + acceptors + " acceptor(s) per port" );
+			
+			if ( transport == Transport.NIO )
+				System.out.println( "The epoll transport is not used: " + Transport.epollUnavailabilityCause() );
+			
+			for ( Channel ch : channels )
+				ch.closeFuture().sync();
 		}
 		catch ( InterruptedException e )
 		{
@@ -94,4 +82,74 @@ public class Main
 			workerGroup.shutdownGracefully();
 		}
 	}
+	
+	/**
+	 * RSA handshakes of the DVRs run off the event loops, only as many task batches at a time as the handshake threads get
+	 * through within the backlog. The threads default to the cores and can be set with
+	 * {@code -Dgreenetree.handshake.threads}, the admitted batches with {@code -Dgreenetree.handshake.max}, otherwise they
+	 * follow from the threads and {@code -Dgreenetree.handshake.costMicros}.
+	 */
+	private static HandshakeExecutor newHandshakeExecutor()
+	{
+		int threads = Math.max( 1, Integer.getInteger( "greenetree.handshake.threads", Runtime.getRuntime().availableProcessors() ) );
+		long cost = Math.max( 1, Long.getLong( "greenetree.handshake.costMicros", HANDSHAKE_COST_MICROS ) );
+		int maxHandshakes = Math.max( 1, Integer.getInteger( "greenetree.handshake.max", ( int ) ( threads * HANDSHAKE_BACKLOG_MICROS / cost ) ) );
+		
+		System.out.println( "Handshakes run on " + threads + " thread(s) with up to " + maxHandshakes + " admitted at a time" );
+		return new HandshakeExecutor( threads, maxHandshakes );
+	}
+	
+	/**
+	 * Switches the listeners to OpenSSL when the PEM certificate chain and key are given with
+	 * {@code -Dgreenetree.openssl.cert} and {@code -Dgreenetree.openssl.key}, the key password if any with
+	 * {@code -Dgreenetree.openssl.keyPassword}. Without them, or if OpenSSL can't be loaded, the JDK engine is kept.
+	 */
+	private static void useOpenSslIfConfigured()
+	{
+		String cert = System.getProperty( "greenetree.openssl.cert" );
+		String key = System.getProperty( "greenetree.openssl.key" );
+		
+		if ( cert == null || key == null )
+			return;
+		
+		try
+		{
+			if ( SslContextFactory.useOpenSsl( new File( cert ), new File( key ), System.getProperty( "greenetree.openssl.keyPassword" ), TlsProfile.MODERN ) )
+				System.out.println( "The listeners use OpenSSL" );
+			else
+				System.out.println( "OpenSSL is not available, the listeners keep the JDK engine: " + OpenSsl.unavailabilityCause() );
+		}
+		catch ( SSLException e )
+		{
+			System.err.println( "Failed to load the certificate for OpenSSL, the listeners keep the JDK engine: " + e );
+		}
+	}
+	
+	/**
+	 * Keeps connected legs to the ESM server for the DVRs to claim when {@code -Dgreenetree.pool.targetSize} is above 0,
+	 * with {@code -Dgreenetree.pool.refillRate} legs opened per second at most, idle legs closed after
+	 * {@code -Dgreenetree.pool.maxIdleSeconds} and unclaimed pools retired after
+	 * {@code -Dgreenetree.pool.retireAfterSeconds}.
+	 */
+	private static void useUpstreamPoolIfConfigured()
+	{
+		int targetSize = Integer.getInteger( "greenetree.pool.targetSize", 0 );
+		
+		if ( targetSize <= 0 )
+			return;
+		
+		int refillRate = Integer.getInteger( "greenetree.pool.refillRate", 4 );
+		long maxIdle = Long.getLong( "greenetree.pool.maxIdleSeconds", 30 );
+		long retireAfter = Long.getLong( "greenetree.pool.retireAfterSeconds", 300 );
+		
+		try
+		{
+			UpstreamPool.setDefaults( targetSize, refillRate, maxIdle, retireAfter, TimeUnit.SECONDS );
+			System.out.println( "Keeping " + targetSize + " connection(s) to the ESM server ready per event loop" );
+		}
+		catch ( IllegalArgumentException e )
+		{
+			System.err.println( "The upstream pool is not used: " + e.getMessage() );
+		}
+	}
 }
@@ -9,17 +9,21 @@
 package com.chiorichan;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelHandlerContext;
-
-import java.util.Map;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 
 import com.chiorichan.packet.MessageBus;
 import com.chiorichan.packet.MessageStream;
 import com.chiorichan.packet.Packet;
-import com.google.common.collect.Maps;
 
 public class ServerMessageBus extends MessageBus
 {
+	private static final String ESM_ADDR = "96.95.92.35"; // "162.220.160.185", 443
+	private static final int ESM_PORT = 2804;
+	
 	private final NetClient client;
 	private final ClientMessageBus bus;
 	
@@ -28,10 +32,39 @@ public class ServerMessageBus extends MessageBus
 		super( new MessageStream( ctx ) );
 		
 		bus = new ClientMessageBus( this );
-		client = new NetClient( "96.95.92.35", 2804, url, ssl, bus );
-		// "162.220.160.185", 443
 		
-		client.connect();
+		// Claim a leg that is already connected if pooling is enabled, otherwise connect a new one
+		UpstreamPool pool = UpstreamPool.get( ctx.channel().eventLoop(), ESM_ADDR, ESM_PORT, ssl );
+		NetClient pooled = pool == null ? null : pool.claim();
+		client = pooled == null ? new NetClient( ESM_ADDR, ESM_PORT, url, ssl, bus, ctx.channel().eventLoop() ) : pooled;
+		
+		// The upstream leg buffers as much as the DVR leg, as configured on the listener
+		ChannelConfig config = ctx.channel().config();
+		client.setWriteBufferWaterMarks( config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark() );
+		
+		Future<Channel> ready;
+		if ( pooled != null )
+		{
+			pooled.attach( bus );
+			ready = pooled.request( url );
+		}
+		else
+			ready = client.connect();
+		
+		// Packets from the DVR are cached by the bus until the upstream leg is ready
+		ready.addListener( new FutureListener<Channel>()
+		{
+			@Override
+			public void operationComplete( Future<Channel> future )
+			{
+				if ( !future.isSuccess() )
+				{
+					System.err.println( "Failed to connect to the ESM server: " + future.cause() );
+					bus.close();
+					stream.close();
+				}
+			}
+		} );
 		
 		/*
 		 * register( new MessageReceiver()
@@ -134,9 +167,7 @@ public class ServerMessageBus extends MessageBus
 	@Override
 	protected void badCommand( byte[] packetId )
 	{
-		Map<String, Object> data = Maps.newHashMap();
-		data.put( "*0", "badCommand" );
-		bus.sendPacket( new Packet( new byte[] {0x65} ).addPacketId( packetId ).setPayload( data ) );
+		bus.write( BAD_COMMAND_PACKET.newInstance( packetId ) );
 	}
 	
 	public NetClient client()
@@ -147,9 +178,7 @@ public class ServerMessageBus extends MessageBus
 	@Override
 	protected void failedCommand( byte[] packetId )
 	{
-		Map<String, Object> data = Maps.newHashMap();
-		data.put( "*0", "failed" );
-		bus.sendPacket( new Packet( new byte[] {0x65} ).addPacketId( packetId ).setPayload( data ) );
+		bus.write( FAILED_COMMAND_PACKET.newInstance( packetId ) );
 	}
 	
 	@Override
@@ -165,6 +194,12 @@ public class ServerMessageBus extends MessageBus
 		return true;
 	}
 	
+	@Override
+	protected MessageBus peer()
+	{
+		return bus;
+	}
+	
 	@Override
 	protected void start()
 	{
@@ -7,13 +7,22 @@
 package com.chiorichan;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.security.KeyStore;
 import java.security.Security;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.Validate;
+
+import com.chiorichan.ssl.JdkSslEngineProvider;
+import com.chiorichan.ssl.OpenSslEngineProvider;
+import com.chiorichan.ssl.SslEngineProvider;
+import com.chiorichan.ssl.TlsProfile;
 
 /**
  * @author Chiori Greene
@@ -23,6 +32,9 @@ public class SslContextFactory
 {
 	// private static final String PROTOCOL = "TLS";
 	private static final SSLContext SERVER_CONTEXT;
+	private static volatile SslEngineProvider serverProvider;
+	private static int sessionCacheSize;
+	private static int sessionTimeout;
 	
 	static
 	{
@@ -49,6 +61,10 @@ public class SslContextFactory
 		}
 		
 		SERVER_CONTEXT = serverContext;
+		serverProvider = new JdkSslEngineProvider( SERVER_CONTEXT, false, TlsProfile.MODERN );
+		
+		// Large enough for every DVR to resume after a reconnect wave, saving the full RSA handshake
+		setSessionCache( 10000, 4 * 60 * 60 );
 	}
 	
 	
@@ -57,6 +73,55 @@ public class SslContextFactory
 		return SERVER_CONTEXT;
 	}
 	
+	/**
+	 * @return The provider of listeners that were not given one
+	 */
+	public static SslEngineProvider getServerProvider()
+	{
+		return serverProvider;
+	}
+	
+	public static void setServerProvider( SslEngineProvider provider )
+	{
+		Validate.notNull( provider );
+		serverProvider = provider;
+	}
+	
+	/**
+	 * Switches the listeners to OpenSSL if it's available, the embedded PKCS12 certificate can't be used by OpenSSL so it
+	 * has to be given as PEM files
+	 * 
+	 * @return true if the listeners now use OpenSSL
+	 */
+	public static boolean useOpenSsl( File certChainFile, File keyFile, String keyPassword, TlsProfile profile ) throws SSLException
+	{
+		if ( !OpenSslEngineProvider.isAvailable() )
+			return false;
+		
+		setServerProvider( new OpenSslEngineProvider( certChainFile, keyFile, keyPassword, profile, sessionCacheSize, sessionTimeout ) );
+		return true;
+	}
+	
+	/**
+	 * Sizes the server-side session cache
+	 * 
+	 * @param size
+	 *            The most sessions kept, 0 for no limit
+	 * @param timeout
+	 *            The seconds a session may be resumed for, 0 for no limit
+	 */
+	public static void setSessionCache( int size, int timeout )
+	{
+		Validate.isTrue( size >= 0 && timeout >= 0, "The size and timeout can't be negative" );
+		
+		sessionCacheSize = size;
+		sessionTimeout = timeout;
+		
+		SSLSessionContext sessions = SERVER_CONTEXT.getServerSessionContext();
+		sessions.setSessionCacheSize( size );
+		sessions.setSessionTimeout( timeout );
+	}
+	
 	private SslContextFactory()
 	{
 		// Unused